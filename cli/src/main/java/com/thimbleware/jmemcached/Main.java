@@ -18,13 +18,24 @@ package com.thimbleware.jmemcached;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStoreFactory;
-import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.admission.AdmissionFilteredCacheStorage;
+import com.thimbleware.jmemcached.storage.shard.ShardedCacheStorage;
+import com.thimbleware.jmemcached.protocol.ShardedCommandExecutor;
 import org.apache.commons.cli.*;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.thimbleware.jmemcached.util.Bytes;
 import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.MemoryPressureMonitor;
+import com.thimbleware.jmemcached.storage.segment.SegmentedCacheStorage;
+import com.thimbleware.jmemcached.storage.slab.SlabAllocator;
+import com.thimbleware.jmemcached.storage.slab.SlabCacheStorage;
 import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
 
 
@@ -42,7 +53,9 @@ public class Main {
         Options options = new Options();
         options.addOption("h", "help", false, "print this help screen");
         options.addOption("bl", "block-store", false, "use external (from JVM) heap");
+        options.addOption("sg", "segmented", false, "use external (from JVM) heap, in fixed size segments grouped by time to live");
         options.addOption("f", "mapped-file", false, "use external (from JVM) heap through a memory mapped file");
+        options.addOption("pf", "pre-fault", false, "fault in all of the external heap before accepting connections");
         options.addOption("bs", "block-size", true, "block size (in bytes) for external memory mapped file allocator.  default is 8 bytes");
         options.addOption("i", "idle", true, "disconnect after idle <x> seconds");
         options.addOption("p", "port", true, "port to listen on");
@@ -51,6 +64,18 @@ public class Main {
         options.addOption("l", "listen", true, "Address to listen on");
         options.addOption("s", "size", true, "max items");
         options.addOption("b", "binary", false, "binary protocol mode");
+        options.addOption("ad", "auto-detect", false, "serve both text and binary clients on the one port, detecting the protocol of each connection");
+        options.addOption("af", "admission-filter", true, "only admit items of at least this size (in bytes, specify K, kb, M for larger units) when they are requested more often than the items they would evict");
+        options.addOption("sl", "slabs", false, "copy values of the heap storage into pooled slabs, reducing garbage collection");
+        options.addOption("mp", "memory-pressure", false, "shrink the heap storage when the JVM heap stays nearly full after garbage collections, and grow it back once the pressure is gone");
+        options.addOption("e", "eviction", true, "eviction policy for the heap storage: FIFO, LRU, SECOND_CHANCE or TTL_AWARE. default is FIFO");
+        options.addOption("wt", "worker-threads", true, "number of I/O worker threads. default is twice the number of processors");
+        options.addOption("sb", "socket-buffer", true, "send and receive buffer size of each connection; in bytes, specify K, kb, M for larger units. default is 64K");
+        options.addOption("bk", "backlog", true, "length of the queue of connections waiting to be accepted");
+        options.addOption("wb", "write-buffer", true, "bytes queued for writing to a connection above which it stops being writable; it is writable again below half of it");
+        options.addOption("td", "tcp-delay", false, "let TCP delay small writes to coalesce them (Nagle's algorithm)");
+        options.addOption("ot", "offload-threads", true, "run cache operations on this many threads instead of the I/O threads, so that a slow operation only holds up its own connection");
+        options.addOption("sh", "shards", true, "split the cache into this many shards, each with its own storage and a thread running the commands on its keys");
         options.addOption("V", false, "Show version number");
         options.addOption("v", false, "verbose (show commands)");
 
@@ -116,6 +141,13 @@ public class Main {
         }
 
         boolean verbose = false;
+        boolean segmented = false;
+        if (cmdline.hasOption("sg")) {
+            segmented = true;
+        } else if (cmdline.hasOption("segmented")) {
+            segmented = true;
+        }
+
         if (cmdline.hasOption("v")) {
             verbose = true;
         }
@@ -141,6 +173,53 @@ public class Main {
             binary = true;
         }
 
+        boolean detectProtocol = cmdline.hasOption("ad");
+
+        int admissionSize = -1;
+        if (cmdline.hasOption("af")) {
+            admissionSize = (int)Bytes.valueOf(cmdline.getOptionValue("af")).bytes();
+        } else if (cmdline.hasOption("admission-filter")) {
+            admissionSize = (int)Bytes.valueOf(cmdline.getOptionValue("admission-filter")).bytes();
+        }
+        if (admissionSize > 0)
+            System.out.println("Setting admission filter for items of " + String.valueOf(admissionSize) + " bytes or more");
+
+        ConcurrentLinkedHashMap.EvictionPolicy evictionPolicy = ConcurrentLinkedHashMap.EvictionPolicy.FIFO;
+        String evictionOption = null;
+        if (cmdline.hasOption("e")) {
+            evictionOption = cmdline.getOptionValue("e");
+        } else if (cmdline.hasOption("eviction")) {
+            evictionOption = cmdline.getOptionValue("eviction");
+        }
+        if (evictionOption != null) {
+            try {
+                evictionPolicy = ConcurrentLinkedHashMap.EvictionPolicy.valueOf(evictionOption.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR : unknown eviction policy " + evictionOption);
+                return;
+            }
+            if (blockStore || memoryMapped || segmented)
+                System.out.println("WARN : eviction policy option is only valid for heap storage; ignoring");
+        }
+
+        boolean slabs = cmdline.hasOption("sl") || cmdline.hasOption("slabs");
+        if (slabs && (blockStore || memoryMapped || segmented)) {
+            System.out.println("WARN : slabs option is only valid for heap storage; ignoring");
+            slabs = false;
+        }
+
+        boolean memoryPressure = cmdline.hasOption("mp") || cmdline.hasOption("memory-pressure");
+        if (memoryPressure && (blockStore || memoryMapped || segmented)) {
+            System.out.println("WARN : memory pressure option is only valid for heap storage; ignoring");
+            memoryPressure = false;
+        }
+
+        boolean preFault = cmdline.hasOption("pf") || cmdline.hasOption("pre-fault");
+        if (preFault && !blockStore && !memoryMapped) {
+            System.out.println("WARN : pre-fault option is only valid for external heap block storage; ignoring");
+            preFault = false;
+        }
+
         int blockSize = 8;
         if (!memoryMapped && (cmdline.hasOption("bs") || cmdline.hasOption("block-size"))) {
             System.out.println("WARN : block size option is only valid for memory mapped external heap storage; ignoring");
@@ -165,41 +244,149 @@ public class Main {
             return;
         }
 
-        if (!memoryMapped && !blockStore && maxBytes > Runtime.getRuntime().maxMemory()) {
+        if (!memoryMapped && !blockStore && !segmented && maxBytes > Runtime.getRuntime().maxMemory()) {
             System.out.println("ERROR : JVM heap size is not big enough. use '-Xmx" + String.valueOf(maxBytes / 1024000) + "m' java argument before the '-jar' option.");
             return;
-        } else if ((memoryMapped || !blockStore) && maxBytes > Integer.MAX_VALUE) {
+        } else if ((memoryMapped || (!blockStore && !segmented)) && maxBytes > Integer.MAX_VALUE) {
             System.out.println("ERROR : when external memory mapped, memory size may not exceed the size of Integer.MAX_VALUE (" + Bytes.bytes(Integer.MAX_VALUE).gigabytes() + "GB");
             return;
         }
 
+        int workerThreads = 0;
+        if (cmdline.hasOption("wt")) {
+            workerThreads = Integer.parseInt(cmdline.getOptionValue("wt"));
+        } else if (cmdline.hasOption("worker-threads")) {
+            workerThreads = Integer.parseInt(cmdline.getOptionValue("worker-threads"));
+        }
+
+        int socketBuffer = 0;
+        if (cmdline.hasOption("sb")) {
+            socketBuffer = (int)Bytes.valueOf(cmdline.getOptionValue("sb")).bytes();
+        } else if (cmdline.hasOption("socket-buffer")) {
+            socketBuffer = (int)Bytes.valueOf(cmdline.getOptionValue("socket-buffer")).bytes();
+        }
+
+        int backlog = 0;
+        if (cmdline.hasOption("bk")) {
+            backlog = Integer.parseInt(cmdline.getOptionValue("bk"));
+        } else if (cmdline.hasOption("backlog")) {
+            backlog = Integer.parseInt(cmdline.getOptionValue("backlog"));
+        }
+
+        int writeBuffer = 0;
+        if (cmdline.hasOption("wb")) {
+            writeBuffer = (int)Bytes.valueOf(cmdline.getOptionValue("wb")).bytes();
+        } else if (cmdline.hasOption("write-buffer")) {
+            writeBuffer = (int)Bytes.valueOf(cmdline.getOptionValue("write-buffer")).bytes();
+        }
+
+        boolean tcpDelay = cmdline.hasOption("td") || cmdline.hasOption("tcp-delay");
+
+        int offloadThreads = 0;
+        if (cmdline.hasOption("ot")) {
+            offloadThreads = Integer.parseInt(cmdline.getOptionValue("ot"));
+        } else if (cmdline.hasOption("offload-threads")) {
+            offloadThreads = Integer.parseInt(cmdline.getOptionValue("offload-threads"));
+        }
+
+        int shards = 0;
+        if (cmdline.hasOption("sh")) {
+            shards = Integer.parseInt(cmdline.getOptionValue("sh"));
+        } else if (cmdline.hasOption("shards")) {
+            shards = Integer.parseInt(cmdline.getOptionValue("shards"));
+        }
+
         // create daemon and start it
         final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
 
-        CacheStorage<Key, LocalCacheElement> storage;
-        if (blockStore) {
-            BlockStoreFactory blockStoreFactory = ByteBufferBlockStore.getFactory();
+        // each shard gets its own storage, with an even share of the memory and items
+        int shardCount = Math.max(shards, 1);
+        long shardBytes = maxBytes / shardCount;
+        int shardSize = max_size / shardCount;
+        long shardCeiling = ceiling / shardCount;
+        List<CacheStorage<Key, LocalCacheElement>> shardStorages = new ArrayList<CacheStorage<Key, LocalCacheElement>>(shardCount);
+        List<ConcurrentLinkedHashMap<Key, LocalCacheElement>> maps = new ArrayList<ConcurrentLinkedHashMap<Key, LocalCacheElement>>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            CacheStorage<Key, LocalCacheElement> storage;
+            if (blockStore) {
+                BlockStoreFactory blockStoreFactory = DirectByteBufferBlockStore.getFactory();
+
+                storage = new BlockStorageCacheStorage(8, (int)shardCeiling, blockSize, shardBytes, shardSize, blockStoreFactory);
+            }  else if (memoryMapped) {
+                BlockStoreFactory blockStoreFactory = MemoryMappedBlockStore.getFactory();
+
+                storage = new BlockStorageCacheStorage(8, (int)shardCeiling, blockSize, shardBytes, shardSize, blockStoreFactory);
+            }  else if (segmented) {
+                storage = new SegmentedCacheStorage(SegmentedCacheStorage.DEFAULT_SEGMENT_SIZE, shardBytes, shardSize);
+            }
+            else {
+                ConcurrentLinkedHashMap<Key, LocalCacheElement> map;
+                if (slabs) {
+                    SlabAllocator allocator = new SlabAllocator(shardBytes);
+                    map = ConcurrentLinkedHashMap.create(evictionPolicy, shardSize, shardBytes, allocator);
+                    storage = new SlabCacheStorage(map, allocator);
+                } else {
+                    map = ConcurrentLinkedHashMap.create(evictionPolicy, shardSize, shardBytes);
+                    storage = map;
+                }
+
+                maps.add(map);
+            }
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
-        }  else if (memoryMapped) {
-            BlockStoreFactory blockStoreFactory = MemoryMappedBlockStore.getFactory();
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
-        }
-        else  {
-            storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, max_size, maxBytes);
+            if (preFault) {
+                System.out.println("Pre-faulting " + Bytes.bytes(shardBytes).gigabytes() + "GB of external heap");
+                try {
+                    ((BlockStorageCacheStorage) storage).preFault(Runtime.getRuntime().availableProcessors());
+                } catch (InterruptedException e) {
+                    System.out.println("ERROR : interrupted while pre-faulting external heap");
+                    return;
+                }
+            }
+
+            if (admissionSize > 0) {
+                storage = new AdmissionFilteredCacheStorage<Key, LocalCacheElement>(storage, admissionSize, shardSize);
+            }
+            shardStorages.add(storage);
         }
 
+        CacheStorage<Key, LocalCacheElement> storage;
+        if (shards > 0) {
+            System.out.println("Setting " + shards + " shards, each owned by a thread of its own");
+            ShardedCacheStorage<Key, LocalCacheElement> sharded = new ShardedCacheStorage<Key, LocalCacheElement>(shardStorages);
+            daemon.setCommandExecutor(new ShardedCommandExecutor(sharded));
+            storage = sharded;
+        } else {
+            storage = shardStorages.get(0);
+        }
 
         daemon.setCache(new CacheImpl(storage));
         daemon.setBinary(binary);
+        daemon.setDetectProtocol(detectProtocol);
         daemon.setAddr(addr);
         daemon.setIdleTime(idle);
         daemon.setVerbose(verbose);
+        daemon.setWorkerThreads(workerThreads);
+        if (socketBuffer > 0) {
+            daemon.setSendBufferSize(socketBuffer);
+            daemon.setReceiveBufferSize(socketBuffer);
+        }
+        daemon.setBacklog(backlog);
+        if (writeBuffer > 0) daemon.setWriteBufferWaterMarks(writeBuffer / 2, writeBuffer);
+        daemon.setTcpNoDelay(!tcpDelay);
+        daemon.setOffloadThreads(offloadThreads);
+
+        // keep the names the daemon's thread factories gave, rather than have Netty rename its threads
+        ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
         daemon.start();
 
+        // the heap is shared by all the shards, so one monitor watches it for all of them
+        final MemoryPressureMonitor monitor = memoryPressure && !maps.isEmpty() ? new MemoryPressureMonitor(maps) : null;
+        if (monitor != null) monitor.start();
+
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             public void run() {
+                if (monitor != null) monitor.stop();
                 if (daemon.isRunning()) daemon.stop();
             }
         }));
@@ -1,7 +1,11 @@
 package com.thimbleware.jmemcached;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import com.thimbleware.jmemcached.util.CasSequence;
+import com.thimbleware.jmemcached.util.ProcessStatistics;
+import com.thimbleware.jmemcached.util.StripedCounter;
+
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.Collections;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
@@ -17,11 +21,27 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     protected final AtomicLong started = new AtomicLong();
 
-    protected final AtomicInteger getCmds = new AtomicInteger();
-    protected final AtomicInteger setCmds = new AtomicInteger();
-    protected final AtomicInteger getHits = new AtomicInteger();
-    protected final AtomicInteger getMisses = new AtomicInteger();
-    protected final AtomicLong casCounter = new AtomicLong(1);
+    // statistics are updated by every command, so they're striped rather than shared atomics
+    protected final StripedCounter getCmds = new StripedCounter();
+    protected final StripedCounter setCmds = new StripedCounter();
+    protected final StripedCounter getHits = new StripedCounter();
+    protected final StripedCounter getMisses = new StripedCounter();
+    protected final StripedCounter touchCmds = new StripedCounter();
+    protected final StripedCounter touchHits = new StripedCounter();
+    protected final StripedCounter touchMisses = new StripedCounter();
+    protected final StripedCounter flushCmds = new StripedCounter();
+    protected final StripedCounter deleteHits = new StripedCounter();
+    protected final StripedCounter deleteMisses = new StripedCounter();
+    protected final StripedCounter incrHits = new StripedCounter();
+    protected final StripedCounter incrMisses = new StripedCounter();
+    protected final StripedCounter decrHits = new StripedCounter();
+    protected final StripedCounter decrMisses = new StripedCounter();
+    protected final StripedCounter casHits = new StripedCounter();
+    protected final StripedCounter casMisses = new StripedCounter();
+    protected final StripedCounter casBadval = new StripedCounter();
+    protected final StripedCounter expirations = new StripedCounter();
+    protected final StripedCounter reclaimedBytes = new StripedCounter();
+    protected final CasSequence casSequence = new CasSequence();
 
     public AbstractCache() {
         initStats();
@@ -43,19 +63,19 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
     public abstract long getCurrentBytes();
 
 
-    public final int getGetCmds() {
+    public final long getGetCmds() {
         return getCmds.get();
     }
 
-    public final int getSetCmds() {
+    public final long getSetCmds() {
         return setCmds.get();
     }
 
-    public final int getGetHits() {
+    public final long getGetHits() {
         return getHits.get();
     }
 
-    public final int getGetMisses() {
+    public final long getGetMisses() {
         return getMisses.get();
     }
 
@@ -74,6 +94,21 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         multiSet(result, "cmd_sets", valueOf(getSetCmds()));
         multiSet(result, "get_hits", valueOf(getGetHits()));
         multiSet(result, "get_misses", valueOf(getGetMisses()));
+        multiSet(result, "cmd_touch", valueOf(touchCmds.get()));
+        multiSet(result, "touch_hits", valueOf(touchHits.get()));
+        multiSet(result, "touch_misses", valueOf(touchMisses.get()));
+        multiSet(result, "cmd_flush", valueOf(flushCmds.get()));
+        multiSet(result, "delete_hits", valueOf(deleteHits.get()));
+        multiSet(result, "delete_misses", valueOf(deleteMisses.get()));
+        multiSet(result, "incr_hits", valueOf(incrHits.get()));
+        multiSet(result, "incr_misses", valueOf(incrMisses.get()));
+        multiSet(result, "decr_hits", valueOf(decrHits.get()));
+        multiSet(result, "decr_misses", valueOf(decrMisses.get()));
+        multiSet(result, "cas_hits", valueOf(casHits.get()));
+        multiSet(result, "cas_misses", valueOf(casMisses.get()));
+        multiSet(result, "cas_badval", valueOf(casBadval.get()));
+        multiSet(result, "expirations", valueOf(expirations.get()));
+        multiSet(result, "reclaimed_bytes", valueOf(reclaimedBytes.get()));
         multiSet(result, "time", valueOf(valueOf(Now())));
         multiSet(result, "uptime", valueOf(Now() - this.started.longValue()));
         multiSet(result, "cur_items", valueOf(this.getCurrentItems()));
@@ -81,21 +116,29 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         multiSet(result, "current_bytes", valueOf(this.getCurrentBytes()));
         multiSet(result, "free_bytes", valueOf(Runtime.getRuntime().freeMemory()));
 
-        // Not really the same thing precisely, but meaningful nonetheless. potentially this should be renamed
-        multiSet(result, "pid", valueOf(Thread.currentThread().getId()));
+        multiSet(result, "pid", ProcessStatistics.pid());
+        long cpuTime = ProcessStatistics.cpuTime();
+        long userTime = ProcessStatistics.userTime();
+        multiSet(result, "rusage_user", ProcessStatistics.rusage(userTime));
+        multiSet(result, "rusage_system", ProcessStatistics.rusage(Math.max(0, cpuTime - userTime)));
 
-        // stuff we know nothing about; gets faked only because some clients expect this
-        multiSet(result, "rusage_user", "0:0");
-        multiSet(result, "rusage_system", "0:0");
-        multiSet(result, "connection_structures", "0");
+        // connections and the bytes they carry are counted by the daemon's pipeline, which adds them
 
-        // TODO we could collect these stats
-        multiSet(result, "bytes_read", "0");
-        multiSet(result, "bytes_written", "0");
+        // whatever the storage keeps track of itself
+        for (Map.Entry<String, String> storageStat : storageStats().entrySet()) {
+            multiSet(result, storageStat.getKey(), storageStat.getValue());
+        }
 
         return result;
     }
 
+    /**
+     * @return statistics collected by the underlying storage, if any
+     */
+    protected Map<String, String> storageStats() {
+        return Collections.emptyMap();
+    }
+
     private void multiSet(Map<String, Set<String>> map, String key, String val) {
         Set<String> cur = map.get(key);
         if (cur == null) {
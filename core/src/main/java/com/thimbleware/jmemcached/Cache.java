@@ -18,7 +18,21 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      * Enum defining responses statuses from removal commands
      */
     public enum DeleteResponse {
-        DELETED, NOT_FOUND
+        DELETED, NOT_FOUND, EXISTS
+    }
+
+    /**
+     * The response to a meta get: the element, as the one element of an array like {@link #get} returns, and
+     * whether the client getting it was the one given the right to recache it.
+     */
+    public static final class MetaGetResponse<CACHE_ELEMENT extends CacheElement> {
+        public final CACHE_ELEMENT[] elements;
+        public final boolean won;
+
+        public MetaGetResponse(CACHE_ELEMENT[] elements, boolean won) {
+            this.elements = elements;
+            this.won = won;
+        }
     }
 
     /**
@@ -87,6 +101,29 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     Integer get_add(Key key, int mod);
 
+    /**
+     * Increment or decrement the unsigned 64-bit value of an element in the cache. Increments wrap around at
+     * 2^64, decrements stop at 0.
+     * @param key the key to increment
+     * @param delta the amount to add or subtract, an unsigned 64-bit value
+     * @param incr whether to add rather than subtract
+     * @return the new value, an unsigned 64-bit value, or null if the element isn't present
+     * @throws NumberFormatException if the value of the element isn't a number
+     */
+    Long incr_decr(Key key, long delta, boolean incr);
+
+    /**
+     * Increment or decrement the value of an element, as {@link #incr_decr(Key, long, boolean)} does, giving it a
+     * new expiration time in the same step.
+     * @param key the key to increment
+     * @param delta the amount to add or subtract, an unsigned 64-bit value
+     * @param incr whether to add rather than subtract
+     * @param expire the new expiration time of the element, or -1 to leave it as it is
+     * @return the new value, an unsigned 64-bit value, or null if the element isn't present
+     * @throws NumberFormatException if the value of the element isn't a number
+     */
+    Long incr_decr(Key key, long delta, boolean incr, long expire);
+
     /**
      * Get element(s) from the cache
      * @param keys the key for the element to lookup
@@ -94,6 +131,37 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     CACHE_ELEMENT[] get(Key ... keys);
 
+    /**
+     * Give element(s) in the cache a new expiration time, leaving their values as they are
+     * @param expire the new expiration time, in seconds from epoch, or 0 for none
+     * @param keys the keys of the elements to touch
+     * @return the elements, as touched, or 'null' in case of cache miss.
+     */
+    CACHE_ELEMENT[] touch(long expire, Key ... keys);
+
+    /**
+     * Get an element from the cache for a client which may recache it. The first client to find the element stale,
+     * or about to expire, or (when asked to create it) missing, wins the right to recache it; no other client is
+     * given it until the element is replaced.
+     * @param key the key for the element to lookup
+     * @param expire the new expiration time of the element, or -1 to leave it as it is
+     * @param vivify the expiration time of an empty element to create if there's none, or -1 to create none
+     * @param recache the number of seconds before the element expires from which it is to be recached, or -1
+     * @return the element, or 'null' in case of cache miss; and whether the client won
+     */
+    MetaGetResponse<CACHE_ELEMENT> metaGet(Key key, long expire, long vivify, long recache);
+
+    /**
+     * Delete an element from the cache, or mark it stale, so that it's kept for clients to use while one of them
+     * recaches it.
+     * @param key the key for the element
+     * @param casUnique the cas unique the element must have, or 0 for any
+     * @param invalidate whether to mark the element stale rather than delete it
+     * @param expire the new expiration time of an element marked stale, or -1 to leave it as it is
+     * @return the message response; EXISTS if the element has another cas unique
+     */
+    DeleteResponse metaDelete(Key key, long casUnique, boolean invalidate, long expire);
+
     /**
      * Flush all cache entries
      * @return command response
@@ -107,6 +175,15 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     boolean flush_all(int expire);
 
+    /**
+     * Change the limits of the cache while it is running. Shrinking evicts entries, growing lets the cache take
+     * more memory as it needs it.
+     *
+     * @param maxBytes the new maximum size of the cache (in bytes), or 0 to leave it as it is
+     * @param maxItems the new maximum number of items in the cache, or 0 to leave it as it is
+     */
+    void setLimits(long maxBytes, int maxItems);
+
     /**
      * Close the cache, freeing all resources on which it depends.
      * @throws IOException
@@ -132,22 +209,22 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     /**
      * @return the number of get commands executed
      */
-    int getGetCmds();
+    long getGetCmds();
 
     /**
      * @return the number of set commands executed
      */
-    int getSetCmds();
+    long getSetCmds();
 
     /**
      * @return the number of get hits
      */
-    int getGetHits();
+    long getGetHits();
 
     /**
-     * @return the number of stats
+     * @return the number of get misses
      */
-    int getGetMisses();
+    long getGetMisses();
 
     /**
      * Retrieve stats about the cache. If an argument is specified, a specific category of stats is requested.
@@ -1,6 +1,6 @@
 package com.thimbleware.jmemcached;
 
-import com.thimbleware.jmemcached.storage.hash.SizedItem;
+import com.thimbleware.jmemcached.storage.hash.ExpiringItem;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 import java.io.Serializable;
@@ -8,15 +8,17 @@ import java.nio.ByteBuffer;
 
 /**
  */
-public interface CacheElement extends Serializable, SizedItem {
-    public final static long THIRTY_DAYS = 2592000000L;
+public interface CacheElement extends Serializable, ExpiringItem {
+    /**
+     * Expiry times up to this many seconds are relative to the current time; larger ones are absolute
+     * (seconds since the epoch).
+     */
+    public final static long THIRTY_DAYS = 2592000L;
 
     int size();
 
     int hashCode();
 
-    long getExpire();
-
     int getFlags();
 
     ChannelBuffer getData();
@@ -35,9 +37,24 @@ public interface CacheElement extends Serializable, SizedItem {
 
     long getBlockedUntil();
 
+    /**
+     * @return true if the element has been invalidated, and is only kept for clients to use while one of them
+     * recaches it
+     */
+    boolean isStale();
+
+    /**
+     * @return true if a client has been given the right to recache the element
+     */
+    boolean isWinSent();
+
     CacheElement append(LocalCacheElement element);
 
     CacheElement prepend(LocalCacheElement element);
 
-    LocalCacheElement.IncrDecrResult add(int mod);
+    boolean isCounter();
+
+    LocalCacheElement toCounter(long value);
+
+    long getCounter();
 }
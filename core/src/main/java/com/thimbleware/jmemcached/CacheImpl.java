@@ -16,11 +16,17 @@
 package com.thimbleware.jmemcached;
 
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.NotStoredException;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import com.thimbleware.jmemcached.storage.shard.ShardedCacheStorage;
+import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -69,8 +75,13 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         } else
             removed = storage.remove(key) != null;
 
-        if (removed) return DeleteResponse.DELETED;
-        else return DeleteResponse.NOT_FOUND;
+        if (removed) {
+            deleteHits.increment();
+            return DeleteResponse.DELETED;
+        } else {
+            deleteMisses.increment();
+            return DeleteResponse.NOT_FOUND;
+        }
 
     }
 
@@ -79,8 +90,13 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public StoreResponse add(LocalCacheElement e) {
         final long origCasUnique = e.getCasUnique();
-        e.setCasUnique(casCounter.getAndIncrement());
-        final boolean stored = storage.putIfAbsent(e.getKey(), e) == null;
+        e.setCasUnique(casSequence.next());
+        boolean stored;
+        try {
+            stored = storage.putIfAbsent(e.getKey(), e) == null;
+        } catch (NotStoredException ex) {
+            stored = false;
+        }
         // we should restore the former cas so that the object isn't left dirty
         if (!stored) {
             e.setCasUnique(origCasUnique);
@@ -92,46 +108,52 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        try {
+            return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        } catch (NotStoredException ex) {
+            return StoreResponse.NOT_STORED;
+        }
     }
 
     /**
      * @inheritDoc
      */
     public StoreResponse append(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
-        }
+        return concatenate(new Concatenation(element, false));
     }
 
     /**
      * @inheritDoc
      */
     public StoreResponse prepend(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        return concatenate(new Concatenation(element, true));
+    }
+
+    private StoreResponse concatenate(Concatenation concatenation) {
+        try {
+            if (storage.computeIfPresent(concatenation.element.getKey(), concatenation) == null || !concatenation.found) {
+                getMisses.increment();
+                return StoreResponse.NOT_FOUND;
+            }
+        } catch (NotStoredException e) {
+            return StoreResponse.NOT_STORED;
         }
+        return StoreResponse.STORED;
     }
 
     /**
      * @inheritDoc
      */
     public StoreResponse set(LocalCacheElement e) {
-        setCmds.incrementAndGet();//update stats
+        setCmds.increment();//update stats
 
-        e.setCasUnique(casCounter.getAndIncrement());
+        e.setCasUnique(casSequence.next());
 
-        storage.put(e.getKey(), e);
+        try {
+            storage.put(e.getKey(), e);
+        } catch (NotStoredException ex) {
+            return StoreResponse.NOT_STORED;
+        }
 
         return StoreResponse.STORED;
     }
@@ -140,38 +162,269 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse cas(Long cas_key, LocalCacheElement e) {
-        // have to get the element
-        LocalCacheElement element = storage.get(e.getKey());
-        if (element == null || isBlocked(element)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-
-        if (element.getCasUnique() == cas_key) {
-            // casUnique matches, now set the element
-        	e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
-            else {
-                getMisses.incrementAndGet();
+        CompareAndSet cas = new CompareAndSet(cas_key, e);
+        try {
+            if (storage.computeIfPresent(e.getKey(), cas) == null || cas.response == StoreResponse.NOT_FOUND) {
+                getMisses.increment();
+                casMisses.increment();
                 return StoreResponse.NOT_FOUND;
             }
-        } else {
-            // cas didn't match; someone else beat us to it
-            return StoreResponse.EXISTS;
+        } catch (NotStoredException ex) {
+            return StoreResponse.NOT_STORED;
         }
+        (cas.response == StoreResponse.STORED ? casHits : casBadval).increment();
+        return cas.response;
     }
 
     /**
      * @inheritDoc
      */
     public Integer get_add(Key key, int mod) {
-        LocalCacheElement old = storage.get(key);
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
+        Long value = incr_decr(key, Math.abs((long) mod), mod >= 0);
+        return value == null ? null : (int) value.longValue();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public Long incr_decr(Key key, long delta, boolean incr) {
+        return incr_decr(key, delta, incr, -1);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public Long incr_decr(Key key, long delta, boolean incr, long expire) {
+        if (expire >= 0) touchCmds.increment();
+
+        Increment increment = new Increment(delta, incr, expire);
+        if (storage.computeIfPresent(key, increment) == null || !increment.found) {
+            getMisses.increment();
+            (incr ? incrMisses : decrMisses).increment();
+            if (expire >= 0) touchMisses.increment();
             return null;
-        } else {
-            LocalCacheElement.IncrDecrResult result = old.add(mod);
-            return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
+        }
+        (incr ? incrHits : decrHits).increment();
+        if (expire >= 0) touchHits.increment();
+        return increment.value;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement[] touch(long expire, Key ... keys) {
+        touchCmds.increment();
+
+        LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+        int hits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Touch touch = new Touch(expire);
+            LocalCacheElement e = storage.computeIfPresent(keys[i], touch);
+            if (e != null && touch.found) {
+                elements[i] = e;
+                hits++;
+            }
+        }
+        touchHits.add(hits);
+        touchMisses.add(keys.length - hits);
+
+        return elements;
+    }
+
+    /**
+     * Gives an element a new expiration time, if it is live.
+     */
+    private final class Touch implements RemappingFunction<Key, LocalCacheElement> {
+        final long expire;
+        boolean found;
+
+        Touch(long expire) {
+            this.expire = expire;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            found = !isBlocked(old) && !isExpired(old);
+            if (!found) return old;
+
+            return old.touch(expire);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public MetaGetResponse<LocalCacheElement> metaGet(Key key, long expire, long vivify, long recache) {
+        getCmds.increment();
+        if (expire >= 0) touchCmds.increment();
+
+        MetaGet get = new MetaGet(expire, vivify, recache);
+        LocalCacheElement e = vivify >= 0 ? storage.compute(key, get) : storage.computeIfPresent(key, get);
+        if (e == null || !get.found) {
+            getMisses.increment();
+            if (expire >= 0) touchMisses.increment();
+            return new MetaGetResponse<LocalCacheElement>(new LocalCacheElement[] { get.won ? e : null }, get.won);
+        }
+        getHits.increment();
+        if (expire >= 0) touchHits.increment();
+        return new MetaGetResponse<LocalCacheElement>(new LocalCacheElement[] { e }, get.won);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public DeleteResponse metaDelete(Key key, long casUnique, boolean invalidate, long expire) {
+        MetaDelete delete = new MetaDelete(casUnique, invalidate, expire);
+        storage.computeIfPresent(key, delete);
+        if (delete.response == DeleteResponse.DELETED) deleteHits.increment();
+        else deleteMisses.increment();
+        return delete.response;
+    }
+
+    /**
+     * Gets an element for a meta get, touching it and handing out the right to recache it as asked; or creates an
+     * empty one, if asked to, for the client to fill in.
+     */
+    private final class MetaGet implements RemappingFunction<Key, LocalCacheElement> {
+        final long expire;
+        final long vivify;
+        final long recache;
+        boolean found;
+        boolean won;
+
+        MetaGet(long expire, long vivify, long recache) {
+            this.expire = expire;
+            this.vivify = vivify;
+            this.recache = recache;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            found = old != null && !isBlocked(old) && !isExpired(old);
+            won = false;
+            if (!found) {
+                if (vivify < 0 || (old != null && isBlocked(old))) return old;
+
+                won = true;
+                LocalCacheElement created = new LocalCacheElement(key, 0, vivify, casSequence.next());
+                created.setData(ChannelBuffers.buffer(0));
+                return created.touch(vivify, false, true);
+            }
+
+            long newExpire = expire >= 0 ? expire : old.getExpire();
+            won = !old.isWinSent() && (old.isStale() || (recache >= 0 && old.getExpire() != 0
+                    && old.getExpire() - LocalCacheElement.Now() < recache));
+            if (!won && newExpire == old.getExpire()) return old;
+            return old.touch(newExpire, old.isStale(), old.isWinSent() || won);
+        }
+    }
+
+    /**
+     * Deletes an element, or marks it stale, if it is live and has the cas unique asked for.
+     */
+    private final class MetaDelete implements RemappingFunction<Key, LocalCacheElement> {
+        final long casUnique;
+        final boolean invalidate;
+        final long expire;
+        DeleteResponse response = DeleteResponse.NOT_FOUND;
+
+        MetaDelete(long casUnique, boolean invalidate, long expire) {
+            this.casUnique = casUnique;
+            this.invalidate = invalidate;
+            this.expire = expire;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            if (isBlocked(old) || isExpired(old)) {
+                response = DeleteResponse.NOT_FOUND;
+                return old;
+            } else if (casUnique != 0 && old.getCasUnique() != casUnique) {
+                response = DeleteResponse.EXISTS;
+                return old;
+            }
+            response = DeleteResponse.DELETED;
+            if (!invalidate) return null;
+            return old.touch(expire >= 0 ? expire : old.getExpire(), true, false);
+        }
+    }
+
+    /**
+     * Appends or prepends to an element, if it is live.
+     */
+    private final class Concatenation implements RemappingFunction<Key, LocalCacheElement> {
+        final LocalCacheElement element;
+        final boolean prepend;
+        boolean found;
+
+        Concatenation(LocalCacheElement element, boolean prepend) {
+            this.element = element;
+            this.prepend = prepend;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            found = !isBlocked(old) && !isExpired(old);
+            if (!found) return old;
+
+            LocalCacheElement result = prepend ? old.prepend(element) : old.append(element);
+            result.setCasUnique(casSequence.next(old.getCasUnique()));
+            return result;
+        }
+    }
+
+    /**
+     * Replaces an element, if its cas unique is the one expected.
+     */
+    private final class CompareAndSet implements RemappingFunction<Key, LocalCacheElement> {
+        final long casKey;
+        final LocalCacheElement element;
+        StoreResponse response;
+
+        CompareAndSet(long casKey, LocalCacheElement element) {
+            this.casKey = casKey;
+            this.element = element;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            if (isBlocked(old)) {
+                response = StoreResponse.NOT_FOUND;
+                return old;
+            } else if (old.getCasUnique() != casKey) {
+                // cas didn't match; someone else beat us to it
+                response = StoreResponse.EXISTS;
+                return old;
+            }
+            response = StoreResponse.STORED;
+            element.setCasUnique(casSequence.next(old.getCasUnique()));
+            return element;
+        }
+    }
+
+    /**
+     * Adds to or subtracts from the numeric value of an element, if it is live, by replacing it with a counter
+     * holding the new value and a new cas unique, and the new expiration time if one is given. The stored element
+     * is never changed, so a reader always gets a value and the cas unique that goes with it.
+     */
+    private final class Increment implements RemappingFunction<Key, LocalCacheElement> {
+        final long delta;
+        final boolean incr;
+        final long expire;
+        boolean found;
+        long value;
+
+        Increment(long delta, boolean incr, long expire) {
+            this.delta = delta;
+            this.incr = incr;
+            this.expire = expire;
+        }
+
+        public LocalCacheElement apply(Key key, LocalCacheElement old) {
+            found = !isBlocked(old) && !isExpired(old);
+            if (!found) return old;
+
+            long current = old.isCounter() ? old.getCounter() : BufferUtils.atoul(old.getData());
+            value = LocalCacheElement.add(current, delta, incr);
+            LocalCacheElement counter = old.toCounter(value);
+            if (expire >= 0) counter = counter.touch(expire);
+            counter.setCasUnique(casSequence.next(old.getCasUnique()));
+            return counter;
         }
     }
 
@@ -181,23 +434,29 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     }
 
     protected boolean isExpired(CacheElement e) {
-        return e.getExpire() != 0 && e.getExpire() < Now();
+        return e.getExpire() != 0 && e.getExpire() < LocalCacheElement.Now();
     }
 
     /**
      * @inheritDoc
      */
     public LocalCacheElement[] get(Key ... keys) {
-        getCmds.incrementAndGet();//updates stats
+        getCmds.increment();//updates stats
 
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+        // sharded storage looks up the keys of all its shards at once
+        Map<Key, LocalCacheElement> found = null;
+        if (keys.length > 1 && storage instanceof ShardedCacheStorage) {
+            found = ((ShardedCacheStorage<Key, LocalCacheElement>) storage).getAll(keys);
+        }
         int x = 0;
         int hits = 0;
         int misses = 0;
         for (Key key : keys) {
-            LocalCacheElement e = storage.get(key);
+            LocalCacheElement e = found != null ? found.get(key) : storage.get(key);
             if (e == null || isExpired(e) || e.isBlocked()) {
                 misses++;
+                if (e != null && isExpired(e)) reclaim(key, e);
 
                 elements[x] = null;
             } else {
@@ -208,13 +467,23 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             x++;
 
         }
-        getMisses.addAndGet(misses);
-        getHits.addAndGet(hits);
+        getMisses.add(misses);
+        getHits.add(hits);
 
         return elements;
 
     }
 
+    /**
+     * Remove an expired element found by a get, unless it has been replaced in the meantime.
+     */
+    private void reclaim(Key key, LocalCacheElement e) {
+        if (storage.remove(key, e)) {
+            expirations.increment();
+            reclaimedBytes.add(e.memorySize());
+        }
+    }
+
     /**
      * @inheritDoc
      */
@@ -226,11 +495,20 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public boolean flush_all(int expire) {
+        flushCmds.increment();
         // TODO implement this, it isn't right... but how to handle efficiently? (don't want to linear scan entire cacheStorage)
         storage.clear();
         return true;
     }
 
+    /**
+     * @inheritDoc
+     */
+    public void setLimits(long maxBytes, int maxItems) {
+        if (maxBytes > 0) storage.setMemoryCapacity(maxBytes);
+        if (maxItems > 0) storage.setCapacity(maxItems);
+    }
+
     /**
      * @inheritDoc
      */
@@ -271,6 +549,15 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         return storage.getMemoryUsed();
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected Map<String, String> storageStats() {
+        if (storage instanceof StorageStatistics) return ((StorageStatistics) storage).getStatistics();
+        else return super.storageStats();
+    }
+
     /**
      * @inheritDoc
      */
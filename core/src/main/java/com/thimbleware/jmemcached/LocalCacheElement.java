@@ -24,20 +24,68 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Represents information about a cache entry.
  */
 public final class LocalCacheElement implements CacheElement {
-    private long expire ;
+    /**
+     * The length of the longest unsigned 64-bit value in decimal.
+     */
+    public static final int MAX_COUNTER_LENGTH = 20;
+
+    /**
+     * The most spare room given to a value which is appended or prepended to.
+     */
+    public static final int MAX_RESERVE = 64 * 1024;
+
+    private volatile long expire ;
     private int flags;
     private ChannelBuffer data;
     private Key key;
-    private long casUnique = 0L;
+    private volatile long casUnique = 0L;
     private boolean blocked = false;
     private long blockedUntil;
 
+    /**
+     * The state of the element for recaching by meta commands; see {@link #isStale} and {@link #isWinSent}.
+     * Written with the blocked flag, as bits of one byte.
+     */
+    private volatile boolean stale;
+    private volatile boolean winSent;
+    private static final int BLOCKED = 1;
+    private static final int STALE = 2;
+    private static final int WIN_SENT = 4;
+
+    /**
+     * Whether this element is a counter, whose value is kept in {@link #counter} and rendered to decimal when read,
+     * rather than held in {@link #data}. A counter is never changed once stored: updating it stores a new element,
+     * so that its value and cas unique are always read together.
+     */
+    private boolean numeric;
+    private long counter;
+    private volatile ChannelBuffer digits;
+
+    /**
+     * The buffer this element's value is a slice of, starting at offset, if it was given room to grow.
+     */
+    private Reservation reservation;
+    private int offset;
+
+    /**
+     * Whether the value was read from block storage and still refers to it; and, for an element appended to such a
+     * value, the element appended to.
+     */
+    private boolean view;
+    private LocalCacheElement appendedTo;
+
+    /**
+     * For an element read from block storage and given a new expiration time, the element touched.
+     */
+    private LocalCacheElement touchedFrom;
+
     public LocalCacheElement() {
     }
 
@@ -59,78 +107,218 @@ public final class LocalCacheElement implements CacheElement {
         return (int) (System.currentTimeMillis() / 1000);
     }
 
+    /**
+     * @return the length of the value
+     */
     public int size() {
         return getData().capacity();
     }
 
+    /**
+     * @return the memory the value is accounted for: for a counter, the room its longest value takes, so that it
+     * doesn't change as the counter is updated; for an appended value, the buffer it was given to grow in
+     */
+    public int memorySize() {
+        if (numeric) return MAX_COUNTER_LENGTH;
+        Reservation r = reservation;
+        return r != null ? r.buffer.capacity() : value().capacity();
+    }
+
+    /**
+     * @param length the length of a value being appended or prepended to
+     * @return the spare room to give it, so that repeated appends copy it only every so often
+     */
+    public static int reserve(int length) {
+        return Math.min(length, MAX_RESERVE);
+    }
+
+    /**
+     * Append to the value. The result shares this element's buffer if the buffer has room after the value which
+     * no other element has claimed yet; otherwise the value is copied to a new buffer with room to spare. Either
+     * way this element is left as it was.
+     */
     public LocalCacheElement append(LocalCacheElement appendElement) {
-        int newLength = size() + appendElement.size();
-        LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer appended = ChannelBuffers.buffer(newLength);
         ChannelBuffer existing = getData();
         ChannelBuffer append = appendElement.getData();
+        int length = existing.capacity();
+        int appendLength = append.capacity();
+        int end = offset + length;
+
+        Reservation r = reservation;
+        if (r != null && end + appendLength <= r.buffer.capacity() && r.end.compareAndSet(end, end + appendLength)) {
+            r.buffer.setBytes(end, append, 0, appendLength);
+            return reserved(r, offset, length + appendLength);
+        }
 
-        appended.writeBytes(existing);
-        appended.writeBytes(append);
-
-        appended.readerIndex(0);
-
-        existing.readerIndex(0);
-        append.readerIndex(0);
-
-        appendedElement.setData(appended);
-        appendedElement.setCasUnique(appendedElement.getCasUnique() + 1);
+        if (view) {
+            // read from block storage, which can write just the appended bytes after the ones it has
+            LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
+            appendedElement.data = ChannelBuffers.wrappedBuffer(existing, ChannelBuffers.copiedBuffer(append));
+            appendedElement.appendedTo = this;
+            return appendedElement;
+        }
 
-        return appendedElement;
+        int newLength = length + appendLength;
+        r = new Reservation(ChannelBuffers.buffer(newLength + reserve(newLength)), 0, newLength);
+        r.buffer.setBytes(0, existing, 0, length);
+        r.buffer.setBytes(length, append, 0, appendLength);
+        return reserved(r, 0, newLength);
     }
 
+    /**
+     * Prepend to the value, sharing this element's buffer if it has unclaimed room before the value, as
+     * {@link #append} does after it.
+     */
     public LocalCacheElement prepend(LocalCacheElement prependElement) {
-        int newLength = size() + prependElement.size();
-
-        LocalCacheElement prependedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer prepended = ChannelBuffers.buffer(newLength);
         ChannelBuffer prepend = prependElement.getData();
         ChannelBuffer existing = getData();
+        int length = existing.capacity();
+        int prependLength = prepend.capacity();
+
+        Reservation r = reservation;
+        if (r != null && offset >= prependLength && r.start.compareAndSet(offset, offset - prependLength)) {
+            r.buffer.setBytes(offset - prependLength, prepend, 0, prependLength);
+            return reserved(r, offset - prependLength, length + prependLength);
+        }
+
+        int newLength = length + prependLength;
+        int spare = reserve(newLength);
+        r = new Reservation(ChannelBuffers.buffer(newLength + spare), spare, spare + newLength);
+        r.buffer.setBytes(spare, prepend, 0, prependLength);
+        r.buffer.setBytes(spare + prependLength, existing, 0, length);
+        return reserved(r, spare, newLength);
+    }
 
-        prepended.writeBytes(prepend);
-        prepended.writeBytes(existing);
+    private LocalCacheElement reserved(Reservation r, int offset, int length) {
+        LocalCacheElement element = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
+        element.data = r.buffer.slice(offset, length);
+        element.reservation = r;
+        element.offset = offset;
+        return element;
+    }
 
-        existing.readerIndex(0);
-        prepend.readerIndex(0);
+    /**
+     * @return true if the value was given room to grow, which a pooling storage shouldn't take away by copying it
+     */
+    public boolean hasSpareCapacity() {
+        return reservation != null;
+    }
 
-        prepended.readerIndex(0);
+    /**
+     * @return true if this element is the result of appending to the given one, as read from block storage, so
+     * that only the appended bytes need writing; see {@link #writeAppendedToBuffer}
+     */
+    public boolean isAppendOf(LocalCacheElement element) {
+        return element != null && appendedTo == element;
+    }
 
-        prependedElement.setData(prepended);
-        prependedElement.setCasUnique(prependedElement.getCasUnique() + 1);
+    /**
+     * Give the element a new expiration time, leaving its value as it is.
+     *
+     * @param expire the new expiration time
+     * @return the touched element
+     */
+    public LocalCacheElement touch(long expire) {
+        return touch(expire, stale, winSent);
+    }
 
-        return prependedElement;
+    /**
+     * Give the element a new expiration time and recache state, leaving its value as it is. The element is copied,
+     * sharing the value.
+     *
+     * @param expire the new expiration time
+     * @param stale whether the element is stale
+     * @param winSent whether a client has been given the right to recache it
+     * @return the touched element
+     */
+    public LocalCacheElement touch(long expire, boolean stale, boolean winSent) {
+        LocalCacheElement element = new LocalCacheElement(getKey(), getFlags(), expire, getCasUnique());
+        element.numeric = numeric;
+        element.counter = counter;
+        element.digits = digits;
+        element.data = data;
+        element.reservation = reservation;
+        element.offset = offset;
+        element.view = view;
+        element.blocked = blocked;
+        element.blockedUntil = blockedUntil;
+        element.stale = stale;
+        element.winSent = winSent;
+        if (view) element.touchedFrom = this;
+        return element;
     }
 
-    public static class IncrDecrResult {
-        int oldValue;
-        LocalCacheElement replace;
+    /**
+     * @return true if this element is the given one, as read from block storage, with a new expiration time or
+     * recache state and nothing else changed, so that only those need writing; see {@link #writeTouchedToBuffer}
+     */
+    public boolean isTouchOf(LocalCacheElement element) {
+        return element != null && touchedFrom == element;
+    }
 
-        public IncrDecrResult(int oldValue, LocalCacheElement replace) {
-            this.oldValue = oldValue;
-            this.replace = replace;
+    /**
+     * A buffer shared by a value and the values appended or prepended to it. Each of them is a slice of the
+     * buffer; the bytes between start and end are in use by one of them, the rest is spare. An element may only
+     * write to the spare room next to its own slice, and only once it has moved start or end over it, so two
+     * elements never write the same bytes.
+     */
+    private static final class Reservation {
+        final ChannelBuffer buffer;
+        final AtomicInteger start;
+        final AtomicInteger end;
+
+        Reservation(ChannelBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = new AtomicInteger(start);
+            this.end = new AtomicInteger(end);
         }
     }
 
-    public IncrDecrResult add(int mod) {
-        // TODO handle parse failure!
-        int modVal = BufferUtils.atoi(getData()) + mod; // change value
-        if (modVal < 0) {
-            modVal = 0;
+    public boolean isCounter() {
+        return numeric;
+    }
 
-        } // check for underflow
+    /**
+     * @return the unsigned 64-bit value of the counter
+     */
+    public long getCounter() {
+        if (!numeric) throw new IllegalStateException("not a counter");
+        return counter;
+    }
+
+    /**
+     * @param value the unsigned 64-bit value of the counter
+     * @return a copy of this element which holds the value as a counter, leaving this element as it was
+     */
+    public LocalCacheElement toCounter(long value) {
+        LocalCacheElement counterElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), getCasUnique());
+        counterElement.numeric = true;
+        counterElement.counter = value;
+        counterElement.stale = stale;
+        counterElement.winSent = winSent;
+        return counterElement;
+    }
 
-        ChannelBuffer newData = BufferUtils.itoa(modVal);
+    /**
+     * Unsigned 64-bit arithmetic as memcached does it: adding wraps around at 2^64, subtracting stops at 0.
+     */
+    public static long add(long value, long delta, boolean incr) {
+        if (incr) return value + delta;
 
-        LocalCacheElement replace = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        replace.setData(newData);
-        replace.setCasUnique(replace.getCasUnique() + 1);
+        // compare as unsigned by flipping the sign bits
+        return (value ^ Long.MIN_VALUE) < (delta ^ Long.MIN_VALUE) ? 0 : value - delta;
+    }
 
-        return new IncrDecrResult(modVal, replace);
+    /**
+     * @return the decimal digits of the counter, rendered the first time they are read
+     */
+    private ChannelBuffer rendered() {
+        ChannelBuffer rendered = digits;
+        if (rendered == null) {
+            rendered = BufferUtils.ultoa(counter);
+            digits = rendered;
+        }
+        return rendered;
     }
 
     @Override
@@ -145,7 +333,9 @@ public final class LocalCacheElement implements CacheElement {
         if (casUnique != that.casUnique) return false;
         if (expire != that.expire) return false;
         if (flags != that.flags) return false;
-        if (data != null ? !data.equals(that.data) : that.data != null) return false;
+        ChannelBuffer data = value();
+        ChannelBuffer thatData = that.value();
+        if (data != null ? !data.equals(thatData) : thatData != null) return false;
         if (key != null ? !key.equals(that.key) : that.key != null) return false;
 
         return true;
@@ -155,6 +345,7 @@ public final class LocalCacheElement implements CacheElement {
     public int hashCode() {
         int result = (int) (expire ^ (expire >>> 32));
         result = 31 * result + flags;
+        ChannelBuffer data = value();
         result = 31 * result + (data != null ? data.hashCode() : 0);
         result = 31 * result + (key != null ? key.hashCode() : 0);
         result = 31 * result + (int) (casUnique ^ (casUnique >>> 32));
@@ -176,10 +367,15 @@ public final class LocalCacheElement implements CacheElement {
     }
 
     public ChannelBuffer getData() {
+        ChannelBuffer data = value();
         data.readerIndex(0);
         return data;
     }
 
+    private ChannelBuffer value() {
+        return numeric ? rendered() : data;
+    }
+
     public Key getKey() {
         return key;
     }
@@ -200,6 +396,14 @@ public final class LocalCacheElement implements CacheElement {
         this.casUnique = casUnique;
     }
 
+    public boolean isStale() {
+        return stale;
+    }
+
+    public boolean isWinSent() {
+        return winSent;
+    }
+
     public void block(long blockedUntil) {
         this.blocked = true;
         this.blockedUntil = blockedUntil;
@@ -208,7 +412,13 @@ public final class LocalCacheElement implements CacheElement {
 
     public void setData(ChannelBuffer data) {
         data.readerIndex(0);
+        this.numeric = false;
         this.data = data;
+        this.reservation = null;
+        this.offset = 0;
+        this.view = false;
+        this.appendedTo = null;
+        this.touchedFrom = null;
     }
 
     public static LocalCacheElement readFromBuffer(ChannelBuffer in) {
@@ -226,28 +436,82 @@ public final class LocalCacheElement implements CacheElement {
         localCacheElement.data = in.slice(in.readerIndex(), dataLength);
         in.skipBytes(dataLength);
 
-        localCacheElement.casUnique = in.readInt();
-        localCacheElement.blocked = in.readByte() == 1;
+        localCacheElement.casUnique = in.readLong();
+        byte state = in.readByte();
+        localCacheElement.blocked = (state & BLOCKED) != 0;
+        localCacheElement.stale = (state & STALE) != 0;
+        localCacheElement.winSent = (state & WIN_SENT) != 0;
         localCacheElement.blockedUntil = in.readLong();
 
         return localCacheElement;
     }
 
+    /**
+     * Read an element from block storage, leaving its value in place there.
+     */
+    public static LocalCacheElement readView(ChannelBuffer in) {
+        LocalCacheElement localCacheElement = readFromBuffer(in);
+        localCacheElement.view = true;
+        return localCacheElement;
+    }
+
     public int bufferSize() {
-        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + data.capacity() + 8 + 1 + 8;
+        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + value().capacity() + 8 + 1 + 8;
     }
 
     public void writeToBuffer(ChannelBuffer out) {
+        ChannelBuffer data = getData();
         out.writeInt(bufferSize());
         out.writeLong(expire) ;
         out.writeInt(key.bytes.capacity());
-        out.writeBytes(key.bytes);
+        out.writeBytes(key.bytes, 0, key.bytes.capacity());
         out.writeInt(flags);
         out.writeInt(data.capacity());
         out.writeBytes(data);
         out.writeLong(casUnique);
-        out.writeByte(blocked ? 1 : 0);
+        out.writeByte(state());
+        out.writeLong(blockedUntil);
+    }
+
+    private int state() {
+        return (blocked ? BLOCKED : 0) | (stale ? STALE : 0) | (winSent ? WIN_SENT : 0);
+    }
+
+    /**
+     * Write the expiration time and recache state of this element over the element it was touched from, as
+     * {@link #writeToBuffer} wrote it. See {@link #isTouchOf}.
+     *
+     * @param out the buffer the old element was written to
+     */
+    public void writeTouchedToBuffer(ChannelBuffer out) {
+        int keyLength = out.getInt(4 + 8);
+        int dataLengthIndex = 4 + 8 + 4 + keyLength + 4;
+        int dataLength = out.getInt(dataLengthIndex);
+
+        out.setLong(4, expire);
+        out.setByte(dataLengthIndex + 4 + dataLength + 8, state());
+    }
+
+    /**
+     * Write this element over the element it was appended to, as {@link #writeToBuffer} wrote it, by updating
+     * the lengths and writing the bytes from the end of the old value on. See {@link #isAppendOf}.
+     *
+     * @param out the buffer the old element was written to, with room for this one
+     */
+    public void writeAppendedToBuffer(ChannelBuffer out) {
+        ChannelBuffer data = getData();
+        int keyLength = out.getInt(4 + 8);
+        int dataLengthIndex = 4 + 8 + 4 + keyLength + 4;
+        int appendedFrom = out.getInt(dataLengthIndex);
+
+        out.setInt(0, bufferSize());
+        out.setLong(4, expire);
+        out.setInt(dataLengthIndex, data.capacity());
+        out.writerIndex(dataLengthIndex + 4 + appendedFrom);
+        out.writeBytes(data, appendedFrom, data.capacity() - appendedFrom);
+        out.writeLong(casUnique);
+        out.writeByte(state());
         out.writeLong(blockedUntil);
     }
 
-}
\ No newline at end of file
+}
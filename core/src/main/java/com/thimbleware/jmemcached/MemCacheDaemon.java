@@ -15,21 +15,31 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.MemcachedDetectingPipelineFactory;
 import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The actual daemon - responsible for the binding and configuration of the network configuration.
@@ -43,14 +53,61 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
     private int frameSize = 32768 * 1024;
 
     private boolean binary = false;
+
+    /**
+     * Whether each connection is served the protocol its first byte shows it to speak, rather than the one set
+     * by the binary flag.
+     */
+    private boolean detectProtocol = false;
     private boolean verbose;
     private int idleTime;
     private InetSocketAddress addr;
     private Cache<CACHE_ELEMENT> cache;
 
+    /**
+     * The number of I/O worker threads; 0 leaves it to Netty, which starts twice as many as there are processors.
+     */
+    private int workerThreads;
+    private ThreadFactory bossThreadFactory = new NamedThreadFactory("jmemcached-boss");
+    private ThreadFactory workerThreadFactory = new NamedThreadFactory("jmemcached-worker");
+
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 65536;
+    private int receiveBufferSize = 65536;
+
+    /**
+     * The length of the queue of connections not yet accepted; 0 leaves it to the operating system.
+     */
+    private int backlog;
+
+    /**
+     * The number of bytes queued for writing to a connection above which it stops being writable, and below
+     * which it becomes writable again; 0 leaves them to Netty.
+     */
+    private int writeBufferHighWaterMark;
+    private int writeBufferLowWaterMark;
+
+    /**
+     * Runs the cache operations, if they shouldn't run on the I/O threads.
+     */
+    private Executor commandExecutor;
+
+    /**
+     * The number of threads the cache operations are offloaded to, if no command executor is given; 0 runs them
+     * on the I/O threads.
+     */
+    private int offloadThreads;
+
+    /**
+     * The bytes of decoded commands a connection may have waiting for an offload thread before it stops being
+     * read from.
+     */
+    private int maxQueuedPerConnection = 1024 * 1024;
+
     private boolean running = false;
     private ServerSocketChannelFactory channelFactory;
     private DefaultChannelGroup allChannels;
+    private ExecutionHandler executionHandler;
 
 
     public MemCacheDaemon() {
@@ -64,25 +121,47 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
      * Bind the network connection and start the network processing threads.
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
-        channelFactory =
-                new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+        Executor bossExecutor = Executors.newCachedThreadPool(bossThreadFactory);
+        Executor workerExecutor = Executors.newCachedThreadPool(workerThreadFactory);
+        if (workerThreads > 0) {
+            channelFactory = new NioServerSocketChannelFactory(bossExecutor, workerExecutor, workerThreads);
+        } else {
+            channelFactory = new NioServerSocketChannelFactory(bossExecutor, workerExecutor);
+        }
 
         allChannels = new DefaultChannelGroup("jmemcachedChannelGroup");
 
         ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
 
         ChannelPipelineFactory pipelineFactory;
-        if (binary)
+        if (detectProtocol)
+            pipelineFactory = createMemcachedDetectingPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+        else if (binary)
             pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
         else
             pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
 
+        Executor executor = commandExecutor;
+        if (executor == null && offloadThreads > 0) {
+            executor = new OrderedMemoryAwareThreadPoolExecutor(offloadThreads, maxQueuedPerConnection, 0,
+                    60, TimeUnit.SECONDS, new NamedThreadFactory("jmemcached-command"));
+        }
+        if (executor != null) {
+            executionHandler = new ExecutionHandler(executor);
+            pipelineFactory = new ExecutingPipelineFactory(pipelineFactory, executionHandler);
+        }
+
         bootstrap.setPipelineFactory(pipelineFactory);
-        bootstrap.setOption("sendBufferSize", 65536 );
-        bootstrap.setOption("receiveBufferSize", 65536);
+
+        // the receive buffer of accepted connections has to be set on the listening socket for windows of over
+        // 64 KB to be negotiated
+        bootstrap.setOption("receiveBufferSize", receiveBufferSize);
+        if (backlog > 0) bootstrap.setOption("backlog", backlog);
+        bootstrap.setOption("child.tcpNoDelay", tcpNoDelay);
+        bootstrap.setOption("child.sendBufferSize", sendBufferSize);
+        bootstrap.setOption("child.receiveBufferSize", receiveBufferSize);
+        if (writeBufferHighWaterMark > 0) bootstrap.setOption("child.writeBufferHighWaterMark", writeBufferHighWaterMark);
+        if (writeBufferLowWaterMark > 0) bootstrap.setOption("child.writeBufferLowWaterMark", writeBufferLowWaterMark);
 
         Channel serverChannel = bootstrap.bind(addr);
         allChannels.add(serverChannel);
@@ -92,11 +171,37 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         running = true;
     }
 
+    /**
+     * Puts an execution handler in front of the command handler of each pipeline, so that commands are run on
+     * its executor once they've been decoded.
+     */
+    private static final class ExecutingPipelineFactory implements ChannelPipelineFactory {
+        private final ChannelPipelineFactory pipelineFactory;
+        private final ExecutionHandler executionHandler;
+
+        ExecutingPipelineFactory(ChannelPipelineFactory pipelineFactory, ExecutionHandler executionHandler) {
+            this.pipelineFactory = pipelineFactory;
+            this.executionHandler = executionHandler;
+        }
+
+        public ChannelPipeline getPipeline() throws Exception {
+            ChannelPipeline pipeline = pipelineFactory.getPipeline();
+            ChannelHandlerContext handler = pipeline.getContext(MemcachedCommandHandler.class);
+            pipeline.addBefore(handler.getName(), "executor", executionHandler);
+            return pipeline;
+        }
+    }
+
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
             Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
         return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
     }
 
+    protected ChannelPipelineFactory createMemcachedDetectingPipelineFactory(
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
+        return new MemcachedDetectingPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+    }
+
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
             Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
         return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
@@ -117,6 +222,10 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
             throw new RuntimeException("exception while closing storage", e);
         }
         channelFactory.releaseExternalResources();
+        if (executionHandler != null) {
+            executionHandler.releaseExternalResources();
+            executionHandler = null;
+        }
 
         running = false;
         log.info("successfully shut down");
@@ -153,4 +262,90 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
     public void setBinary(boolean binary) {
         this.binary = binary;
     }
+
+    public boolean isDetectProtocol() {
+        return detectProtocol;
+    }
+
+    /**
+     * @param detectProtocol serve both text and binary clients, telling them apart by the first byte each sends
+     */
+    public void setDetectProtocol(boolean detectProtocol) {
+        this.detectProtocol = detectProtocol;
+    }
+
+    /**
+     * @param workerThreads the number of I/O worker threads, among which connections are shared out
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @param bossThreadFactory creates the threads accepting connections, one for each address listened on
+     */
+    public void setBossThreadFactory(ThreadFactory bossThreadFactory) {
+        this.bossThreadFactory = bossThreadFactory;
+    }
+
+    /**
+     * @param workerThreadFactory creates the I/O worker threads. Netty renames them while they run, unless its
+     * ThreadRenamingRunnable is told to keep the current names, which affects all of Netty in the JVM and so is
+     * left to the application; Main does it.
+     */
+    public void setWorkerThreadFactory(ThreadFactory workerThreadFactory) {
+        this.workerThreadFactory = workerThreadFactory;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @param low the number of bytes queued for writing to a connection below which it is writable again
+     * @param high the number of bytes queued above which it stops being writable
+     */
+    public void setWriteBufferWaterMarks(int low, int high) {
+        if (low > high) throw new IllegalArgumentException("low water mark " + low + " above high water mark " + high);
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+    }
+
+    /**
+     * @param commandExecutor runs the cache operations of decoded commands instead of the I/O threads; it must
+     * keep the events of each connection in order, as Netty's OrderedMemoryAwareThreadPoolExecutor does. It is
+     * shut down when the daemon stops.
+     */
+    public void setCommandExecutor(Executor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * @param offloadThreads the number of threads to run the cache operations on, so that one blocked on a page
+     * fault or a lock of the storage only holds up its own connection rather than all those of its I/O thread.
+     * The commands of each connection are still run and answered in order. Ignored if a command executor is set.
+     */
+    public void setOffloadThreads(int offloadThreads) {
+        this.offloadThreads = offloadThreads;
+    }
+
+    /**
+     * @param maxQueuedPerConnection the bytes of commands a connection may have waiting for an offload thread
+     * before the daemon stops reading from it
+     */
+    public void setMaxQueuedPerConnection(int maxQueuedPerConnection) {
+        this.maxQueuedPerConnection = maxQueuedPerConnection;
+    }
 }
@@ -39,7 +39,14 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
     public boolean addKeyToResponse = false;
 
     public int incrExpiry;
-    public int incrAmount;
+    public long incrAmount;
+
+    public long touchExpiry;
+
+    public MetaFlags meta;
+
+    public long memoryLimit;
+    public int itemLimit;
 
     private CommandMessage(Op op) {
         this.op = op;
@@ -58,6 +65,10 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
         }
     }
 
+    public List<Key> getKeys() {
+        return keys;
+    }
+
     public static CommandMessage command(Op operation) {
         return new CommandMessage(operation);
     }
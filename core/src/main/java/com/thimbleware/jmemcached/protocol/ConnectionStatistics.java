@@ -0,0 +1,43 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.util.StripedCounter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+
+/**
+ * Counts the bytes read from and written to the connections of a daemon. It goes first in the pipeline, where
+ * it sees the raw buffers as they arrive and the completion of every write, and keeps one set of counters for
+ * all connections.
+ */
+@ChannelHandler.Sharable
+public final class ConnectionStatistics extends SimpleChannelUpstreamHandler {
+
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            bytesRead.add(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
+        bytesWritten.add(e.getWrittenAmount());
+        super.writeComplete(ctx, e);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+}
@@ -0,0 +1,69 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryCommandDecoder;
+import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryResponseEncoder;
+import com.thimbleware.jmemcached.protocol.text.MemcachedCommandDecoder;
+import com.thimbleware.jmemcached.protocol.text.MemcachedResponseEncoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+/**
+ * Serves text and binary clients on the same port. The first byte of each connection tells which protocol it
+ * speaks, as a binary request starts with the magic byte 0x80, which no text command does; the decoder and
+ * encoder of that protocol are then put in the connection's pipeline. All connections share one cache and one
+ * command handler, whichever protocol they speak.
+ */
+public final class MemcachedDetectingPipelineFactory implements ChannelPipelineFactory {
+
+    private static final byte BINARY_MAGIC = (byte) 0x80;
+
+    private final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+    private final MemcachedCommandHandler<CacheElement> memcachedCommandHandler;
+    private final MemcachedResponseEncoder<CacheElement> memcachedResponseEncoder = new MemcachedResponseEncoder<CacheElement>();
+
+    public MemcachedDetectingPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
+        memcachedCommandHandler = new MemcachedCommandHandler<CacheElement>(cache, version, verbose, idleTime, channelGroup, connectionStatistics);
+    }
+
+    public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("statistics", connectionStatistics);
+        pipeline.addLast("batcher", new ResponseBatcher());
+        pipeline.addLast("detector", new ProtocolDetector());
+        pipeline.addLast("handler", memcachedCommandHandler);
+        return pipeline;
+    }
+
+    /**
+     * Looks at the first bytes read from a connection, then puts the decoder and encoder of their protocol in its
+     * place and passes those bytes on to the decoder.
+     */
+    private final class ProtocolDetector extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+            if (!buffer.readable()) return;
+
+            ChannelPipeline pipeline = ctx.getPipeline();
+            if (buffer.getByte(buffer.readerIndex()) == BINARY_MAGIC) {
+                pipeline.addAfter(ctx.getName(), "decoder", new MemcachedBinaryCommandDecoder());
+                pipeline.addLast("encoder", new MemcachedBinaryResponseEncoder<CacheElement>());
+            } else {
+                pipeline.addAfter(ctx.getName(), "decoder", new MemcachedCommandDecoder(new SessionStatus().ready()));
+                pipeline.addLast("encoder", memcachedResponseEncoder);
+            }
+            pipeline.remove(this);
+
+            // the context still leads on to the decoder just put after it
+            ctx.sendUpstream(e);
+        }
+    }
+}
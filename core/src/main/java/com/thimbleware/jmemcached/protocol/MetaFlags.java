@@ -0,0 +1,47 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.Serializable;
+
+/**
+ * The flags of a meta command (mg, ms, md, ma), as parsed from the text protocol. Flags which take a token keep
+ * it here; those asking for something to be returned are kept in the order given, as they're answered in it.
+ */
+public final class MetaFlags implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The flags to answer with a value, or by themselves: b, c, f, k, O, s and t.
+     */
+    public String returned = "";
+
+    public boolean base64;
+    public boolean quiet;
+    public boolean value;
+    public boolean invalidate;
+
+    public ChannelBuffer opaque;
+
+    /**
+     * The expiration times asked for, already made absolute, or -1 if none was.
+     */
+    public long ttl = -1;
+    public long vivify = -1;
+
+    /**
+     * The number of seconds before expiry from which a meta get wins the right to recache, or -1.
+     */
+    public long recache = -1;
+
+    public long compareCas;
+    public int clientFlags;
+
+    /**
+     * The mode of a meta set or arithmetic command, as its flag letter, or 0 for the default.
+     */
+    public byte mode;
+
+    public long delta = 1;
+    public long initial;
+}
@@ -16,32 +16,64 @@
 package com.thimbleware.jmemcached.protocol;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
-
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  */
 public enum Op {
     GET, GETS, APPEND, PREPEND, DELETE, DECR,
     INCR, REPLACE, ADD, SET, CAS, STATS, VERSION,
-    QUIT, FLUSH_ALL, VERBOSITY;
+    QUIT, FLUSH_ALL, VERBOSITY, CACHE_MEMLIMIT,
+    TOUCH, GAT, GATS,
+    MG, MS, MD, MA, MN;
 
-    private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
+    /**
+     * The names of the operations as they're sent, and the operations grouped by the length of their names.
+     */
+    private static final byte[][] NAMES = new byte[values().length][];
+    private static final Op[][] BY_LENGTH;
 
     static {
-        for (int x = 0 ; x < Op.values().length; x++) {
-            byte[] bytes = Op.values()[x].toString().toLowerCase().getBytes();
-            opsbf.put(ChannelBuffers.wrappedBuffer(bytes), Op.values()[x]);
+        int longest = 0;
+        for (Op op : values()) {
+            NAMES[op.ordinal()] = op.toString().toLowerCase().getBytes();
+            longest = Math.max(longest, NAMES[op.ordinal()].length);
+        }
+        BY_LENGTH = new Op[longest + 1][];
+        for (int length = 0; length <= longest; length++) {
+            int count = 0;
+            for (Op op : values()) {
+                if (NAMES[op.ordinal()].length == length) count++;
+            }
+            BY_LENGTH[length] = new Op[count];
+            for (Op op : values()) {
+                if (NAMES[op.ordinal()].length == length) BY_LENGTH[length][--count] = op;
+            }
         }
     }
 
 
     public static Op FindOp(ChannelBuffer cmd) {
-        cmd.readerIndex(0);
-        return opsbf.get(cmd);
+        return find(cmd, 0, cmd.capacity());
+    }
+
+    /**
+     * Recognize the name of an operation where it lies in a buffer. Only the few operations of the same length
+     * are compared, byte by byte from the first.
+     *
+     * @param buffer the buffer holding the name
+     * @param index the position of the name
+     * @param length the length of the name
+     * @return the operation, or null if there's none of that name
+     */
+    public static Op find(ChannelBuffer buffer, int index, int length) {
+        if (length >= BY_LENGTH.length) return null;
+        for (Op op : BY_LENGTH[length]) {
+            byte[] name = NAMES[op.ordinal()];
+            int i = 0;
+            while (i < length && buffer.getByte(index + i) == name[i]) i++;
+            if (i == length) return op;
+        }
+        return null;
     }
 
 }
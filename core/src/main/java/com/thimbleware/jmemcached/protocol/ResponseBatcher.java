@@ -0,0 +1,85 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the responses written while the commands of one read are decoded and run, and writes them out
+ * together once the decoder has run out of complete commands, so that a pipelining client gets one gathering
+ * write per read rather than one for each response.
+ *
+ * Only writes made by the thread handling the read are held back; responses of commands run on another thread,
+ * by a command executor, go out as they come. There's one batcher for each connection, ahead of the decoder.
+ */
+public final class ResponseBatcher implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+
+    private final List<MessageEvent> pending = new ArrayList<MessageEvent>();
+    private volatile Thread batching;
+
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (!(e instanceof MessageEvent) || !(((MessageEvent) e).getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        batching = Thread.currentThread();
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            batching = null;
+            flush(ctx);
+        }
+    }
+
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (batching == Thread.currentThread()) {
+            if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer) {
+                pending.add((MessageEvent) e);
+                return;
+            }
+            // anything else, such as a disconnect, must come after the responses before it
+            flush(ctx);
+        }
+        ctx.sendDownstream(e);
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        if (pending.isEmpty()) return;
+        if (pending.size() == 1) {
+            ctx.sendDownstream(pending.get(0));
+            pending.clear();
+            return;
+        }
+
+        ChannelBuffer[] buffers = new ChannelBuffer[pending.size()];
+        final ChannelFuture[] futures = new ChannelFuture[pending.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = (ChannelBuffer) pending.get(i).getMessage();
+            futures[i] = pending.get(i).getFuture();
+        }
+        pending.clear();
+
+        // the futures of the responses complete with that of the write carrying them
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                for (ChannelFuture response : futures) {
+                    if (future.isSuccess()) response.setSuccess();
+                    else response.setFailure(future.getCause());
+                }
+            }
+        });
+        Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(buffers));
+    }
+}
@@ -22,8 +22,9 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
     public Map<String, Set<String>> stats;
     public String version;
     public Cache.DeleteResponse deleteResponse;
-    public Integer incrDecrResponse;
+    public Long incrDecrResponse;
     public boolean flushSuccess;
+    public boolean won;
 
     public ResponseMessage<CACHE_ELEMENT> withElements(CACHE_ELEMENT[] elements) {
         this.elements = elements;
@@ -40,7 +41,7 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
         return this;
     }
 
-    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Integer incrDecrResp) {
+    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Long incrDecrResp) {
         this.incrDecrResponse = incrDecrResp;
 
         return this;
@@ -52,6 +53,13 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
         return this;
     }
 
+    public ResponseMessage<CACHE_ELEMENT> withMetaGetResponse(Cache.MetaGetResponse<CACHE_ELEMENT> response) {
+        this.elements = response.elements;
+        this.won = response.won;
+
+        return this;
+    }
+
     public ResponseMessage<CACHE_ELEMENT> withFlushResponse(boolean success) {
         this.flushSuccess = success;
 
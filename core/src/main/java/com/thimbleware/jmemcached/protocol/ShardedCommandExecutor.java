@@ -0,0 +1,143 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.storage.shard.ShardedCacheStorage;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Command executor for the daemon which runs each command on the owner thread of the shard its keys belong to,
+ * for a {@link ShardedCacheStorage}.
+ *
+ * Commands on keys of more than one shard, such as a multi-get, and those on no key at all, run on a pool of
+ * gathering threads, from where the storage fans them out to the shards. The events of a connection are run one
+ * after the other, so its commands are answered in order even when they go to different shards.
+ */
+public final class ShardedCommandExecutor extends AbstractExecutorService {
+
+    private final ShardedCacheStorage<Key, ?> storage;
+    private final ExecutorService gatherers = Executors.newCachedThreadPool(new NamedThreadFactory("jmemcached-gather", true));
+    private final ConcurrentMap<Channel, Connection> connections = new ConcurrentHashMap<Channel, Connection>();
+
+    public ShardedCommandExecutor(ShardedCacheStorage<Key, ?> storage) {
+        this.storage = storage;
+    }
+
+    public void execute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            gatherers.execute(task);
+            return;
+        }
+
+        ChannelEvent event = ((ChannelEventRunnable) task).getEvent();
+        Channel channel = event.getChannel();
+        Connection connection = connections.get(channel);
+        if (connection == null) {
+            connection = new Connection();
+            Connection existing = connections.putIfAbsent(channel, connection);
+            if (existing != null) connection = existing;
+        }
+        // closing is the last event of a channel
+        if (event instanceof ChannelStateEvent && ((ChannelStateEvent) event).getState() == ChannelState.OPEN
+                && !channel.isOpen()) {
+            connections.remove(channel);
+        }
+        connection.execute(task);
+    }
+
+    /**
+     * @return the executor to run an event on: the owner of the shard of its command's keys if they're all in
+     * the same one
+     */
+    private Executor executorFor(Runnable task) {
+        ChannelEvent event = ((ChannelEventRunnable) task).getEvent();
+        if (!(event instanceof MessageEvent) || !(((MessageEvent) event).getMessage() instanceof CommandMessage)) {
+            return gatherers;
+        }
+
+        CommandMessage<?> command = (CommandMessage<?>) ((MessageEvent) event).getMessage();
+        List<Key> keys = command.getKeys();
+        int shard = -1;
+        if (command.element != null) {
+            shard = storage.shard(command.element.getKey());
+        } else if (keys != null && !keys.isEmpty()) {
+            shard = storage.shard(keys.get(0));
+            for (int i = 1; i < keys.size(); i++) {
+                if (storage.shard(keys.get(i)) != shard) return gatherers;
+            }
+        }
+        return shard < 0 ? gatherers : storage.owner(shard);
+    }
+
+    /**
+     * The events of one connection waiting to be run, of which only one runs at a time.
+     */
+    private final class Connection {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            if (running.compareAndSet(false, true)) next();
+        }
+
+        /**
+         * Run the next event, if there is one; only called while holding the running flag.
+         */
+        private void next() {
+            final Runnable task = tasks.poll();
+            if (task == null) {
+                running.set(false);
+                // an event may have been added after the poll, but before the flag was cleared
+                if (!tasks.isEmpty() && running.compareAndSet(false, true)) next();
+                return;
+            }
+            executorFor(task).execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        next();
+                    }
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        gatherers.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return gatherers.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return gatherers.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return gatherers.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return gatherers.awaitTermination(timeout, unit);
+    }
+}
@@ -6,21 +6,21 @@ import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
+import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
+import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.nio.ByteOrder;
 
 /**
+ * Decodes binary protocol requests. The header and extras are read in place from the buffer the requests
+ * arrive in; only the key and any value are copied out, since the command keeps them. Each connection needs a
+ * decoder of its own, as the buffer of a partly received request is kept by it.
  */
-@ChannelHandler.Sharable
 public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
@@ -35,7 +35,7 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         Decrement(0x06, Op.DECR, false),
         Quit(0x07, Op.QUIT, false),
         Flush(0x08, Op.FLUSH_ALL, false),
-        GetQ(0x09, Op.GET, false),
+        GetQ(0x09, Op.GET, true),
         Noop(0x0A, null, false),
         Version(0x0B, Op.VERSION, false),
         GetK(0x0C, Op.GET, false, true),
@@ -52,7 +52,42 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         QuitQ(0x17, Op.QUIT, true),
         FlushQ(0x18, Op.FLUSH_ALL, true),
         AppendQ(0x19, Op.APPEND, true),
-        PrependQ(0x1A, Op.PREPEND, true);
+        PrependQ(0x1A, Op.PREPEND, true),
+        Touch(0x1C, Op.TOUCH, false),
+        GAT(0x1D, Op.GAT, false),
+        GATQ(0x1E, Op.GAT, true),
+        GATK(0x23, Op.GAT, false, true),
+        GATKQ(0x24, Op.GAT, true, true),
+        /**
+         * A jmemcached extension, not part of the binary protocol: the binary form of the text protocol's
+         * cache_memlimit. The opcode is taken from the top of the range, which the protocol leaves unassigned. The
+         * request has 12 bytes of extras, the memory limit in bytes (8 bytes) then the item limit (4 bytes), either
+         * of which may be zero to leave that limit as it is, and no key or value; the response is an empty OK.
+         */
+        MemLimit(0xF0, Op.CACHE_MEMLIMIT, false);
+
+        private static final BinaryOp[] byCode = new BinaryOp[256];
+
+        /**
+         * The binary operations answering commands, by the ordinal of the command's operation (the last entry
+         * being for the no-op, which has none), whether it's quiet and whether it returns the key.
+         */
+        private static final BinaryOp[][][] byCommand = new BinaryOp[Op.values().length + 1][2][2];
+
+        static {
+            for (BinaryOp binaryOp : values()) {
+                byCode[binaryOp.code & 0xFF] = binaryOp;
+            }
+            // the first of several operations answering the same command wins
+            for (int i = values().length - 1; i >= 0; i--) {
+                BinaryOp binaryOp = values()[i];
+                byCommand[ordinal(binaryOp.correspondingOp)][binaryOp.noreply ? 1 : 0][binaryOp.addKeyToResponse ? 1 : 0] = binaryOp;
+            }
+        }
+
+        private static int ordinal(Op op) {
+            return op == null ? Op.values().length : op.ordinal();
+        }
 
         public byte code;
         public Op correspondingOp;
@@ -72,54 +107,68 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             this.addKeyToResponse = addKeyToResponse;
         }
 
-        public static BinaryOp forCommandMessage(CommandMessage msg) {
-            for (BinaryOp binaryOp : values()) {
-                if (binaryOp.correspondingOp == msg.op && binaryOp.noreply == msg.noreply && binaryOp.addKeyToResponse == msg.addKeyToResponse) {
-                    return binaryOp;
-                }
-            }
+        public static BinaryOp forCode(int code) {
+            return byCode[code & 0xFF];
+        }
 
-            return null;
+        public static BinaryOp forCommandMessage(CommandMessage msg) {
+            return byCommand[ordinal(msg.op)][msg.noreply ? 1 : 0][msg.addKeyToResponse ? 1 : 0];
         }
 
     }
 
+    /**
+     * The length of the fixed header of every request.
+     */
+    static final int HEADER_LENGTH = 24;
+
     protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
 
         // need at least 24 bytes, to get header
-        if (channelBuffer.readableBytes() < 24) return null;
+        int readable = channelBuffer.readableBytes();
+        if (readable < HEADER_LENGTH) return null;
 
-        // get the header
-        channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
-
-        short magic = headerBuffer.readUnsignedByte();
+        // read the header where it lies
+        int header = channelBuffer.readerIndex();
+        short magic = channelBuffer.getUnsignedByte(header);
 
         // magic should be 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
+            channelBuffer.skipBytes(HEADER_LENGTH);
 
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();   // unused
-        short reserved = headerBuffer.readShort(); // unused
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
+        short opcode = channelBuffer.getUnsignedByte(header + 1);
+        int keyLength = channelBuffer.getUnsignedShort(header + 2);
+        short extraLength = channelBuffer.getUnsignedByte(header + 4);
+        // the data type and two reserved bytes are unused
+        int totalBodyLength = channelBuffer.getInt(header + 8);
+        int opaque = channelBuffer.getInt(header + 12);
+        long cas = channelBuffer.getLong(header + 16);
+        if (totalBodyLength < 0)
+            throw new MalformedCommandException("binary request body length is invalid");
 
         // we want the whole of totalBodyLength; otherwise, keep waiting.
-        if (channelBuffer.readableBytes() < totalBodyLength) {
-            channelBuffer.resetReaderIndex();
+        if (readable - HEADER_LENGTH < totalBodyLength) {
             return null;
         }
 
-        // This assumes correct order in the enum. If that ever changes, we will have to scan for 'code' field.
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        // the whole request is consumed now; its parts are read where they lie until the frame decoder gets to
+        // compact the buffer, after this returns
+        channelBuffer.skipBytes(HEADER_LENGTH + totalBodyLength);
+        int extras = header + HEADER_LENGTH;
+        int key = extras + extraLength;
+        int value = key + keyLength;
+        // the remainder of the message -- that is, totalLength - (keyLength + extraLength) should be the payload
+        int size = totalBodyLength - keyLength - extraLength;
+        if (size < 0)
+            throw new MalformedCommandException("binary request key and extras are longer than its body");
+
+        BinaryOp bcmd = BinaryOp.forCode(opcode);
+        if (bcmd == null) {
+            throw new UnknownCommandException("unknown binary opcode: " + opcode);
+        }
 
         Op cmdType = bcmd.correspondingOp;
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
@@ -128,17 +177,13 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         cmdMessage.opaque = opaque;
         cmdMessage.addKeyToResponse = bcmd.addKeyToResponse;
 
-        // get extras. could be empty.
-        ChannelBuffer extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, extraLength);
-        channelBuffer.readBytes(extrasBuffer);
-
         // get the key if any
         if (keyLength != 0) {
-            ChannelBuffer keyBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, keyLength);
-            channelBuffer.readBytes(keyBuffer);
+            // the key is kept by the command, which may be run after the buffer has moved on, and may be stored
+            Key commandKey = new Key(BufferUtils.copy(channelBuffer, key, keyLength));
 
-            ArrayList<Key> keys = new ArrayList<Key>();
-            keys.add(new Key(keyBuffer.copy()));
+            ArrayList<Key> keys = new ArrayList<Key>(1);
+            keys.add(commandKey);
 
             cmdMessage.keys = keys;
 
@@ -150,24 +195,39 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
                     cmdType == Op.PREPEND)
             {
                 // TODO these are backwards from the spec, but seem to be what spymemcached demands -- which has the mistake?!
-                long expire = ((short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0)) * 1000;
-                short flags = (short) (extrasBuffer.capacity() != 0 ? extrasBuffer.readUnsignedShort() : 0);
-
-                // the remainder of the message -- that is, totalLength - (keyLength + extraLength) should be the payload
-                int size = totalBodyLength - keyLength - extraLength;
-
-                cmdMessage.element = new LocalCacheElement(new Key(keyBuffer.slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
-                ChannelBuffer data = ChannelBuffers.buffer(size);
-                channelBuffer.readBytes(data);
-                cmdMessage.element.setData(data);
+                long expire = ((short) (extraLength >= 2 ? channelBuffer.getUnsignedShort(extras) : 0));
+                short flags = (short) (extraLength >= 4 ? channelBuffer.getUnsignedShort(extras + 2) : 0);
+
+                cmdMessage.element = new LocalCacheElement(commandKey, flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                // the value is the one thing copied out of the request to be stored
+                cmdMessage.element.setData(BufferUtils.copy(channelBuffer, value, size));
+            } else if (cmdType == Op.TOUCH || cmdType == Op.GAT) {
+                // extras: the new expiration
+                if (extraLength != 4)
+                    throw new MalformedCommandException("invalid touch command");
+
+                long expire = channelBuffer.getUnsignedInt(extras);
+                cmdMessage.touchExpiry = expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire;
             } else if (cmdType == Op.INCR || cmdType == Op.DECR) {
-                long initialValue = extrasBuffer.readUnsignedInt();
-                long amount = extrasBuffer.readUnsignedInt();
-                long expiration = extrasBuffer.readUnsignedInt();
+                // extras: the amount and the initial value, both unsigned 64-bit, then the expiration
+                if (extraLength != 20)
+                    throw new MalformedCommandException("invalid increment command");
+
+                long amount = channelBuffer.getLong(extras);
+                long expiration = channelBuffer.getUnsignedInt(extras + 16);
 
-                cmdMessage.incrAmount = (int) amount;
+                cmdMessage.incrAmount = amount;
                 cmdMessage.incrExpiry = (int) expiration;
             }
+        } else if (cmdType == Op.CACHE_MEMLIMIT) {
+            // extras: the memory limit in bytes (8 bytes) and the item limit (4 bytes); zero leaves a limit as it is
+            if (extraLength != 12)
+                throw new MalformedCommandException("invalid cache memory limit command");
+
+            cmdMessage.memoryLimit = channelBuffer.getLong(extras);
+            cmdMessage.itemLimit = channelBuffer.getInt(extras + 8);
+            if (cmdMessage.memoryLimit < 0 || cmdMessage.itemLimit < 0)
+                throw new MalformedCommandException("invalid cache memory limit command");
         }
 
         return cmdMessage;
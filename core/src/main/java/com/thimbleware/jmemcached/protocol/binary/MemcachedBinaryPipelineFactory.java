@@ -1,7 +1,10 @@
 package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.protocol.ConnectionStatistics;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.ResponseBatcher;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -10,19 +13,20 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 public class MemcachedBinaryPipelineFactory implements ChannelPipelineFactory {
 
-    private final MemcachedBinaryCommandDecoder decoder =  new MemcachedBinaryCommandDecoder();
-    private final MemcachedCommandHandler memcachedCommandHandler;
-    private final MemcachedBinaryResponseEncoder memcachedBinaryResponseEncoder = new MemcachedBinaryResponseEncoder();
+    private final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+    private final MemcachedCommandHandler<CacheElement> memcachedCommandHandler;
 
     public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
-        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup);
+        memcachedCommandHandler = new MemcachedCommandHandler<CacheElement>(cache, version, verbose, idleTime, channelGroup, connectionStatistics);
     }
 
     public ChannelPipeline getPipeline() throws Exception {
         return Channels.pipeline(
-                decoder,
+                connectionStatistics,
+                new ResponseBatcher(),
+                new MemcachedBinaryCommandDecoder(),
                 memcachedCommandHandler,
-                memcachedBinaryResponseEncoder
+                new MemcachedBinaryResponseEncoder<CacheElement>()
         );
     }
 }
@@ -11,18 +11,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- *
+ * Encodes responses in the binary protocol. The responses to quiet commands are held back until the next command
+ * that isn't quiet, and go out in the same write as its response; as they're held for the connection, each
+ * connection needs an encoder of its own.
  */
 // TODO refactor so this can be unit tested separate from netty? scalacheck?
-@ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
+    /**
+     * The responses to the quiet commands since the last one that wasn't, joined without copying when written.
+     * Commands of a connection are handled one at a time, if not always by the same thread.
+     */
+    private final List<ChannelBuffer> corked = new ArrayList<ChannelBuffer>();
 
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
@@ -45,7 +51,10 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
-        if (cmd == Op.GET || cmd == Op.GETS) {
+        if (cmd == null) {
+            // the no-op
+            return ResponseCode.OK;
+        } else if (cmd == Op.GET || cmd == Op.GETS) {
             return ResponseCode.OK;
         } else if (cmd == Op.SET || cmd == Op.CAS || cmd == Op.ADD || cmd == Op.REPLACE || cmd == Op.APPEND  || cmd == Op.PREPEND) {
             switch (command.response) {
@@ -60,12 +69,16 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             }
         } else if (cmd == Op.INCR || cmd == Op.DECR) {
             return command.incrDecrResponse == null ? ResponseCode.KEYNF : ResponseCode.OK;
+        } else if (cmd == Op.TOUCH || cmd == Op.GAT) {
+            return command.elements[0] == null ? ResponseCode.KEYNF : ResponseCode.OK;
         } else if (cmd == Op.DELETE) {
             switch (command.deleteResponse) {
                 case DELETED:
                     return ResponseCode.OK;
                 case NOT_FOUND:
                     return ResponseCode.KEYNF;
+                case EXISTS:
+                    return ResponseCode.KEYEXISTS;
             }
         } else if (cmd == Op.STATS) {
             return ResponseCode.OK;
@@ -73,6 +86,8 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             return ResponseCode.OK;
         } else if (cmd == Op.FLUSH_ALL) {
             return ResponseCode.OK;
+        } else if (cmd == Op.CACHE_MEMLIMIT) {
+            return ResponseCode.OK;
         }
         return ResponseCode.UNKNOWN;
     }
@@ -113,6 +128,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
         try {
             throw e.getCause();
         } catch (UnknownCommandException unknownCommand) {
+            uncork(ctx.getChannel());
             if (ctx.getChannel().isOpen())
                 ctx.getChannel().write(constructHeader(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, null, (short)0x0081, 0, 0));
         } catch (Throwable err) {
@@ -130,6 +146,9 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
 
+        // a quiet get answers only with what it found, so its misses aren't answered at all
+        if (bcmd.noreply && isMiss(command)) return;
+
         // write extras == flags & expiry
         ChannelBuffer extrasBuffer = null;
 
@@ -141,13 +160,13 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
         // write value if there is one
         ChannelBuffer valueBuffer = null;
-        if (command.elements != null) {
+        if (command.elements != null && command.cmd.op != Op.TOUCH) {
             extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
             CacheElement element = command.elements[0];
             extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
             extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
 
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS)) {
+            if (command.cmd.op == Op.GET || command.cmd.op == Op.GETS || command.cmd.op == Op.GAT) {
                 if (element != null) {
                     valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
                 } else {
@@ -169,9 +188,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
         // stats is special -- with it, we write N times, one for each stat, then an empty payload
         if (command.cmd.op == Op.STATS) {
-            // first uncork any corked buffers
-            if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-
+            // all of the stats go out in one write, after any corked responses
             for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
                 for (String stat : statsEntries.getValue()) {
 
@@ -180,7 +197,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
                     ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
 
-                    writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+                    corked.add(payload(extrasBuffer, keyBuffer, valueBuffer, headerBuffer));
                 }
             }
 
@@ -188,8 +205,9 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             valueBuffer = null;
 
             ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
+            corked.add(payload(extrasBuffer, keyBuffer, valueBuffer, headerBuffer));
 
-            writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+            uncork(messageEvent.getChannel());
 
         } else {
             ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
@@ -197,63 +215,52 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             // write everything
             // is the command 'quiet?' if so, then we append to our 'corked' buffer until a non-corked command comes along
             if (bcmd.noreply) {
-                int totalCapacity = headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                        + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ? valueBuffer.capacity() : 0);
-
-                ChannelBuffer corkedResponse  = cork(command.cmd.opaque, totalCapacity);
-
-
-                corkedResponse.writeBytes(headerBuffer);
-                if (extrasBuffer != null)
-                    corkedResponse.writeBytes(extrasBuffer);
-                if (keyBuffer != null)
-                    corkedResponse.writeBytes(keyBuffer);
-                if (valueBuffer != null)
-                    corkedResponse.writeBytes(valueBuffer);
+                corked.add(payload(extrasBuffer, keyBuffer, valueBuffer, headerBuffer));
             } else {
-                // first write out any corked responses
-                 if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-                
-
-                writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+                // the corked responses go out in the same write, ahead of this one; so a run of quiet gets ended
+                // by a no-op is answered with a single write
+                corked.add(payload(extrasBuffer, keyBuffer, valueBuffer, headerBuffer));
+                uncork(messageEvent.getChannel());
             }
         }
     }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
-        }
+    /**
+     * @return whether the command is a get, or a get and touch, of a key that isn't in the cache
+     */
+    private boolean isMiss(ResponseMessage<CACHE_ELEMENT> command) {
+        Op op = command.cmd.op;
+        return (op == Op.GET || op == Op.GETS || op == Op.GAT) && (command.elements == null || command.elements.length == 0 || command.elements[0] == null);
     }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
+    /**
+     * Write out the responses held back, if there are any, in one write.
+     */
+    private void uncork(Channel channel) {
+        if (corked.isEmpty()) return;
+        ChannelBuffer corkedBuffer = corked.size() == 1 ? corked.get(0) : ChannelBuffers.wrappedBuffer(corked.toArray(new ChannelBuffer[corked.size()]));
+        corked.clear();
+        if (channel.isOpen())
+            channel.write(corkedBuffer);
     }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
-        if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
-            if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
-            if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
-            if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
-        }
+    /**
+     * Drop the responses still held back when the connection goes, as there's no one to write them to.
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        corked.clear();
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * @return the parts of a response packet, joined without copying so that they go out in a single write
+     */
+    private ChannelBuffer payload(ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
+        if (extrasBuffer == null && keyBuffer == null && valueBuffer == null) return headerBuffer;
+        return ChannelBuffers.wrappedBuffer(headerBuffer,
+                extrasBuffer != null ? extrasBuffer : ChannelBuffers.EMPTY_BUFFER,
+                keyBuffer != null ? keyBuffer : ChannelBuffers.EMPTY_BUFFER,
+                valueBuffer != null ? valueBuffer : ChannelBuffers.EMPTY_BUFFER);
     }
 }
@@ -4,6 +4,7 @@ import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.MetaFlags;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
 import com.thimbleware.jmemcached.protocol.exceptions.IncorrectlyTerminatedPayloadException;
@@ -12,14 +13,15 @@ import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferIndexFinder;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.base64.Base64;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory.USASCII;
+
 /**
  * The MemcachedCommandDecoder is responsible for taking lines from the MemcachedFrameDecoder and parsing them
  * into CommandMessage instances for handling by the MemcachedCommandHandler
@@ -28,65 +30,70 @@ import java.util.List;
  */
 public final class MemcachedCommandDecoder extends FrameDecoder {
 
-    private static final int MIN_BYTES_LINE = 2;
     private SessionStatus status;
 
-    private static final ChannelBuffer NOREPLY = ChannelBuffers.wrappedBuffer("noreply".getBytes());
+    private static final byte[] NOREPLY = "noreply".getBytes();
 
+    /**
+     * The longest opaque token a meta command may have.
+     */
+    private static final int MAX_OPAQUE_LENGTH = 32;
 
-    public MemcachedCommandDecoder(SessionStatus status) {
-        this.status = status;
-    }
+    /**
+     * The tokens of the line being read, as offsets from the start of the line, kept between calls until it's
+     * complete. They're only allocated again when a line has more tokens than any before it.
+     */
+    private int[] tokenStarts = new int[8];
+    private int[] tokenEnds = new int[8];
+    private int tokens;
 
     /**
-     * Index finder which locates a byte which is neither a {@code CR ('\r')}
-     * nor a {@code LF ('\n')}.
+     * The offset of the token being read, or -1 between tokens.
      */
-    static ChannelBufferIndexFinder CRLF_OR_WS = new ChannelBufferIndexFinder() {
-        public final boolean find(ChannelBuffer buffer, int guessedIndex) {
-            byte b = buffer.getByte(guessedIndex);
-            return b == ' ' || b == '\r' || b == '\n';
-        }
-    };
+    private int tokenStart = -1;
+
+    /**
+     * How much of the line has been looked at already.
+     */
+    private int scanned;
 
-    static boolean eol(int pos, ChannelBuffer buffer) {
-        return buffer.readableBytes() >= MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
+
+    public MemcachedCommandDecoder(SessionStatus status) {
+        this.status = status;
     }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
         if (status.state == SessionStatus.State.READY) {
-            ChannelBuffer in = buffer.slice();
-
-            // split into pieces
-            List<ChannelBuffer> pieces = new ArrayList<ChannelBuffer>(6);
-            if (in.readableBytes() < MIN_BYTES_LINE) return null;
-            int pos = in.bytesBefore(CRLF_OR_WS);
-            boolean eol = false;
-            do {
-                if (pos != -1) {
-                    eol = eol(pos, in);
-                    int skip = eol ? MIN_BYTES_LINE : 1;
-                    ChannelBuffer slice = in.readSlice(pos);
-                    slice.readerIndex(0);
-                    pieces.add(slice);
-                    in.skipBytes(skip);
-                    if (eol) break;
-                }
-            } while ((pos = in.bytesBefore(CRLF_OR_WS)) != -1);
-            if (eol) {
-                buffer.skipBytes(in.readerIndex());
+            // split the line into tokens in a single pass, picking up where the last call left off
+            int line = buffer.readerIndex();
+            int end = buffer.writerIndex();
+            for (int i = line + scanned; i < end; i++) {
+                byte b = buffer.getByte(i);
+                if (b == ' ' || b == '\r' || b == '\n') {
+                    if (tokenStart >= 0) {
+                        addToken(tokenStart, i - line);
+                        tokenStart = -1;
+                    }
+                    if (b == '\n') {
+                        int count = tokens;
+                        tokens = 0;
+                        scanned = 0;
+                        buffer.skipBytes(i + 1 - line);
 
-                return processLine(pieces, channel, ctx);
+                        return processLine(buffer, line, count);
+                    }
+                } else if (tokenStart < 0) {
+                    tokenStart = i - line;
+                }
             }
-            if (status.state != SessionStatus.State.WAITING_FOR_DATA) status.ready();
+            scanned = end - line;
         } else if (status.state == SessionStatus.State.WAITING_FOR_DATA) {
             if (buffer.readableBytes() >= status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity()) {
 
                 // verify delimiter matches at the right location
-                ChannelBuffer dest = buffer.slice(buffer.readerIndex() + status.bytesNeeded, MIN_BYTES_LINE);
-
-                if (!dest.equals(MemcachedResponseEncoder.CRLF)) {
+                int delimiter = buffer.readerIndex() + status.bytesNeeded;
+                if (buffer.getByte(delimiter) != '\r' || buffer.getByte(delimiter + 1) != '\n') {
                     // before we throw error... we're ready for the next command
                     status.ready();
 
@@ -95,10 +102,11 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 } else {
                     status.processingMultiline();
 
-                    // There's enough bytes in the buffer and the delimiter is at the end. Read it.
-                    ChannelBuffer result = buffer.slice(buffer.readerIndex(), status.bytesNeeded);
+                    // There's enough bytes in the buffer and the delimiter is at the end. Read it out of the
+                    // buffer, which the frame decoder compacts and refills as more arrives.
+                    ChannelBuffer result = buffer.readBytes(status.bytesNeeded);
 
-                    buffer.skipBytes(status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity());
+                    buffer.skipBytes(MemcachedResponseEncoder.CRLF.capacity());
 
                     CommandMessage commandMessage = continueSet(channel, status, result, ctx);
 
@@ -113,29 +121,41 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    private void addToken(int start, int end) {
+        if (tokens == tokenStarts.length) {
+            int[] starts = new int[tokens * 2];
+            int[] ends = new int[tokens * 2];
+            System.arraycopy(tokenStarts, 0, starts, 0, tokens);
+            System.arraycopy(tokenEnds, 0, ends, 0, tokens);
+            tokenStarts = starts;
+            tokenEnds = ends;
+        }
+        tokenStarts[tokens] = start;
+        tokenEnds[tokens] = end;
+        tokens++;
+    }
+
     /**
      * Process an individual complete protocol line and either passes the command for processing by the
      * session handler, or (in the case of SET-type commands) partially parses the command and sets the session into
      * a state to wait for additional data.
      *
-     * @param parts                 the (originally space separated) parts of the command
-     * @param channel               the netty channel to operate on
-     * @param channelHandlerContext the netty channel handler context
+     * The tokens are read where they lie in the buffer; only the keys are copied out of it, since they outlive
+     * the line.
+     *
+     * @param buffer   the buffer holding the line
+     * @param line     the position of the line in the buffer
+     * @param numParts the number of (originally space separated) parts of the command
      * @throws com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException
      * @throws com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException
      */
-    private Object processLine(List<ChannelBuffer> parts, Channel channel, ChannelHandlerContext channelHandlerContext) throws UnknownCommandException, MalformedCommandException {
-        final int numParts = parts.size();
+    private Object processLine(ChannelBuffer buffer, int line, int numParts) throws UnknownCommandException, MalformedCommandException {
+        if (numParts == 0) throw new UnknownCommandException("unknown operation: ");
 
         // Turn the command into an enum for matching on
-        Op op;
-        try {
-            op = Op.FindOp(parts.get(0));
-            if (op == null)
-                throw new IllegalArgumentException("unknown operation: " + parts.get(0).toString());
-        } catch (IllegalArgumentException e) {
-            throw new UnknownCommandException("unknown operation: " + parts.get(0).toString());
-        }
+        Op op = Op.find(buffer, line + tokenStarts[0], tokenEnds[0] - tokenStarts[0]);
+        if (op == null)
+            throw new UnknownCommandException("unknown operation: " + token(buffer, line, 0).toString(USASCII));
 
         // Produce the initial command message, for filling in later
         CommandMessage cmd = CommandMessage.command(op);
@@ -143,52 +163,70 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
 
         switch (op) {
             case DELETE:
-                cmd.setKey(parts.get(1));
+                if (numParts < 2)
+                    throw new MalformedCommandException("invalid delete command");
 
-                if (numParts >= MIN_BYTES_LINE) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 4)
-                            cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                    } else if (numParts == 3)
-                        cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                }
+                cmd.setKey(copy(buffer, line, 1));
+
+                if (isNoreply(buffer, line, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 4)
+                        cmd.time = atoi(buffer, line, 2);
+                } else if (numParts == 3)
+                    cmd.time = atoi(buffer, line, 2);
 
                 return cmd;
             case DECR:
             case INCR:
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 3 || numParts > 4)
                     throw new MalformedCommandException("invalid increment command");
 
-                cmd.setKey(parts.get(1));
-                cmd.incrAmount = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
+                cmd.setKey(copy(buffer, line, 1));
+                try {
+                    cmd.incrAmount = BufferUtils.atoul(buffer, line + tokenStarts[2], tokenEnds[2] - tokenStarts[2]);
+                } catch (NumberFormatException e) {
+                    throw new MalformedCommandException("invalid numeric delta argument");
+                }
 
-                if (numParts == 3 && parts.get(MIN_BYTES_LINE).equals(NOREPLY)) {
+                if (numParts == 4 && isNoreply(buffer, line, 3)) {
                     cmd.noreply = true;
                 }
 
                 return cmd;
             case FLUSH_ALL:
-                if (numParts >= 1) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 3)
-                            cmd.time = BufferUtils.atoi((parts.get(1)));
-                    } else if (numParts == MIN_BYTES_LINE)
-                        cmd.time = BufferUtils.atoi((parts.get(1)));
-                }
+                if (isNoreply(buffer, line, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 3)
+                        cmd.time = atoi(buffer, line, 1);
+                } else if (numParts == 2)
+                    cmd.time = atoi(buffer, line, 1);
                 return cmd;
             case VERBOSITY: // verbosity <time> [noreply]\r\n
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 2 || numParts > 3)
                     throw new MalformedCommandException("invalid verbosity command");
 
-                cmd.time = BufferUtils.atoi((parts.get(1))); // verbose level
+                cmd.time = atoi(buffer, line, 1); // verbose level
 
-                if (numParts > 1 && parts.get(MIN_BYTES_LINE).equals(NOREPLY))
+                if (numParts == 3 && isNoreply(buffer, line, 2))
                     cmd.noreply = true;
 
+                return cmd;
+            case CACHE_MEMLIMIT: // cache_memlimit <megabytes> [<items>] [noreply]\r\n
+                int limits = numParts > 1 && isNoreply(buffer, line, numParts - 1) ? numParts - 1 : numParts;
+
+                // Malformed
+                if (limits < 2 || limits > 3)
+                    throw new MalformedCommandException("invalid cache_memlimit command");
+
+                cmd.noreply = limits < numParts;
+                cmd.memoryLimit = BufferUtils.atol(buffer, line + tokenStarts[1], tokenEnds[1] - tokenStarts[1]) * 1024 * 1024;
+                if (limits == 3)
+                    cmd.itemLimit = atoi(buffer, line, 2);
+                if (cmd.memoryLimit < 0 || cmd.itemLimit < 0)
+                    throw new MalformedCommandException("invalid cache_memlimit command");
+
                 return cmd;
             case APPEND:
             case PREPEND:
@@ -202,19 +240,18 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 }
 
                 // Fill in all the elements of the command
-                int size = BufferUtils.atoi(parts.get(4));
-                long expire = BufferUtils.atoi(parts.get(3)) * 1000;
-                int flags = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                cmd.element = new LocalCacheElement(new Key(parts.get(1).slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                int size = atoi(buffer, line, 4);
+                int flags = atoi(buffer, line, 2);
+                cmd.element = new LocalCacheElement(new Key(copy(buffer, line, 1)), flags, expiry(atoi(buffer, line, 3)), 0L);
 
                 // look for cas and "noreply" elements
                 if (numParts > 5) {
                     int noreply = op == Op.CAS ? 6 : 5;
                     if (op == Op.CAS) {
-                        cmd.cas_key = BufferUtils.atol(parts.get(5));
+                        cmd.cas_key = BufferUtils.atol(buffer, line + tokenStarts[5], tokenEnds[5] - tokenStarts[5]);
                     }
 
-                    if (numParts == noreply + 1 && parts.get(noreply).equals(NOREPLY))
+                    if (numParts == noreply + 1 && isNoreply(buffer, line, noreply))
                         cmd.noreply = true;
                 }
 
@@ -223,6 +260,68 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 status.needMore(size, cmd);
                 break;
 
+            case TOUCH: // touch <key> <exptime> [noreply]\r\n
+                // Malformed
+                if (numParts < 3 || numParts > 4)
+                    throw new MalformedCommandException("invalid touch command");
+
+                cmd.setKey(copy(buffer, line, 1));
+                cmd.touchExpiry = expiry(atoi(buffer, line, 2));
+
+                if (numParts == 4 && isNoreply(buffer, line, 3))
+                    cmd.noreply = true;
+
+                return cmd;
+            case GAT: // gat <exptime> <key>*\r\n
+            case GATS:
+                // Malformed
+                if (numParts < 3)
+                    throw new MalformedCommandException("invalid get and touch command");
+
+                cmd.touchExpiry = expiry(atoi(buffer, line, 1));
+
+                List<Key> touched = new ArrayList<Key>(numParts - 2);
+                for (int i = 2; i < numParts; i++) {
+                    touched.add(new Key(copy(buffer, line, i)));
+                }
+                cmd.keys = touched;
+
+                return cmd;
+            case MN: // mn\r\n
+                return cmd;
+            case MG: // mg <key> <flags>*\r\n
+            case MD:
+            case MA:
+                if (numParts < 2)
+                    throw new MalformedCommandException("invalid meta command");
+
+                MetaFlags meta = meta(buffer, line, 2, numParts);
+                if (op == Op.MA && meta.mode != 0 && "Ii+Dd-".indexOf(meta.mode) < 0)
+                    throw new MalformedCommandException("invalid meta arithmetic mode");
+                cmd.meta = meta;
+                Key metaKey = new Key(metaKey(buffer, line, meta));
+                List<Key> metaKeys = new ArrayList<Key>(1);
+                metaKeys.add(metaKey);
+                cmd.keys = metaKeys;
+                if (op == Op.MA && meta.vivify >= 0) {
+                    // the counter to create if there's none
+                    cmd.element = new LocalCacheElement(metaKey, 0, meta.vivify, 0L);
+                    cmd.element.setData(BufferUtils.ultoa(meta.initial));
+                }
+
+                return cmd;
+            case MS: // ms <key> <datalen> <flags>*\r\n
+                if (numParts < 3)
+                    throw new MalformedCommandException("invalid meta set command");
+
+                MetaFlags setMeta = meta(buffer, line, 3, numParts);
+                if (setMeta.mode != 0 && "EeAaPpRrSs".indexOf(setMeta.mode) < 0)
+                    throw new MalformedCommandException("invalid meta set mode");
+                cmd.meta = setMeta;
+                cmd.element = new LocalCacheElement(new Key(metaKey(buffer, line, setMeta)), setMeta.clientFlags, setMeta.ttl < 0 ? 0 : setMeta.ttl, 0L);
+
+                status.needMore(atoi(buffer, line, 2), cmd);
+                break;
             //
             case GET:
             case GETS:
@@ -230,7 +329,11 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             case VERSION:
             case QUIT:
                 // Get all the keys
-                cmd.setKeys(parts.subList(1, numParts));
+                List<Key> keys = new ArrayList<Key>(numParts - 1);
+                for (int i = 1; i < numParts; i++) {
+                    keys.add(new Key(copy(buffer, line, i)));
+                }
+                cmd.keys = keys;
 
                 // Pass it on.
                 return cmd;
@@ -241,6 +344,132 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    /**
+     * Parse the flags of a meta command, from the given token to the end of the line. Each is a letter, followed
+     * by its token for those which take one.
+     */
+    private MetaFlags meta(ChannelBuffer buffer, int line, int first, int numParts) throws MalformedCommandException {
+        MetaFlags meta = new MetaFlags();
+        StringBuilder returned = new StringBuilder();
+        for (int i = first; i < numParts; i++) {
+            int start = line + tokenStarts[i] + 1;
+            int length = tokenEnds[i] - tokenStarts[i] - 1;
+            byte flag = buffer.getByte(start - 1);
+            try {
+                switch (flag) {
+                    case 'b':
+                        meta.base64 = true;
+                        returned.append('b');
+                        break;
+                    case 'c':
+                    case 'f':
+                    case 'k':
+                    case 's':
+                    case 't':
+                        returned.append((char) flag);
+                        break;
+                    case 'O':
+                        if (length > MAX_OPAQUE_LENGTH)
+                            throw new MalformedCommandException("opaque token too long");
+                        meta.opaque = BufferUtils.copy(buffer, start, length);
+                        returned.append('O');
+                        break;
+                    case 'q':
+                        meta.quiet = true;
+                        break;
+                    case 'v':
+                        meta.value = true;
+                        break;
+                    case 'I':
+                        meta.invalidate = true;
+                        break;
+                    case 'T':
+                        meta.ttl = expiry(BufferUtils.atol(buffer, start, length));
+                        break;
+                    case 'N':
+                        meta.vivify = expiry(BufferUtils.atol(buffer, start, length));
+                        break;
+                    case 'R':
+                        meta.recache = BufferUtils.atol(buffer, start, length);
+                        break;
+                    case 'C':
+                        meta.compareCas = BufferUtils.atol(buffer, start, length);
+                        break;
+                    case 'F':
+                        meta.clientFlags = BufferUtils.atoi(buffer, start, length);
+                        break;
+                    case 'M':
+                        if (length != 1)
+                            throw new MalformedCommandException("invalid meta mode");
+                        meta.mode = buffer.getByte(start);
+                        break;
+                    case 'D':
+                        meta.delta = BufferUtils.atoul(buffer, start, length);
+                        break;
+                    case 'J':
+                        meta.initial = BufferUtils.atoul(buffer, start, length);
+                        break;
+                    case 'h':
+                    case 'l':
+                    case 'u':
+                        // access tracking, which isn't kept
+                        break;
+                    default:
+                        throw new MalformedCommandException("invalid meta flag: " + (char) flag);
+                }
+            } catch (NumberFormatException e) {
+                throw new MalformedCommandException("invalid meta flag token: " + (char) flag);
+            }
+        }
+        meta.returned = returned.toString();
+        return meta;
+    }
+
+    /**
+     * @return a copy of the key of a meta command, decoded if it was sent in base64
+     */
+    private ChannelBuffer metaKey(ChannelBuffer buffer, int line, MetaFlags meta) throws MalformedCommandException {
+        if (!meta.base64) return copy(buffer, line, 1);
+        try {
+            return Base64.decode(buffer, line + tokenStarts[1], tokenEnds[1] - tokenStarts[1]);
+        } catch (IllegalArgumentException e) {
+            throw new MalformedCommandException("invalid base64 key");
+        }
+    }
+
+    /**
+     * @return the absolute expiration time for one sent, which is relative to now if it's up to thirty days
+     */
+    private static long expiry(long expire) {
+        return expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire;
+    }
+
+    private ChannelBuffer token(ChannelBuffer buffer, int line, int token) {
+        return buffer.slice(line + tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+    }
+
+    private int atoi(ChannelBuffer buffer, int line, int token) {
+        return BufferUtils.atoi(buffer, line + tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+    }
+
+    private boolean isNoreply(ChannelBuffer buffer, int line, int token) {
+        if (token < 1 || tokenEnds[token] - tokenStarts[token] != NOREPLY.length) return false;
+        for (int i = 0; i < NOREPLY.length; i++) {
+            if (buffer.getByte(line + tokenStarts[token] + i) != NOREPLY[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keys outlive the decoding of their line: they're stored, and the command may be run on another thread while
+     * the next bytes are read into the same buffer.
+     *
+     * @return a copy of a token, which doesn't share the frame decoder's buffer
+     */
+    private ChannelBuffer copy(ChannelBuffer buffer, int line, int token) {
+        return BufferUtils.copy(buffer, line + tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+    }
+
     /**
      * Handles the continuation of a SET/ADD/REPLACE command with the data it was waiting for.
      *
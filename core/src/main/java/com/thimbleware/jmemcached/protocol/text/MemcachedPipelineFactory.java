@@ -1,6 +1,9 @@
 package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.protocol.ConnectionStatistics;
+import com.thimbleware.jmemcached.protocol.ResponseBatcher;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -22,9 +25,10 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
 
     private int frameSize;
     private DefaultChannelGroup channelGroup;
-    private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
+    private final MemcachedResponseEncoder<CacheElement> memcachedResponseEncoder = new MemcachedResponseEncoder<CacheElement>();
 
-    private final MemcachedCommandHandler memcachedCommandHandler;
+    private final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+    private final MemcachedCommandHandler<CacheElement> memcachedCommandHandler;
 
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
@@ -34,13 +38,15 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
         this.idleTime = idleTime;
         this.frameSize = frameSize;
         this.channelGroup = channelGroup;
-        memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup);
+        memcachedCommandHandler = new MemcachedCommandHandler<CacheElement>(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup, connectionStatistics);
     }
 
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
         return Channels.pipeline(
+                connectionStatistics,
+                new ResponseBatcher(),
                 new MemcachedCommandDecoder(status),
                 memcachedCommandHandler,
                 memcachedResponseEncoder);
@@ -2,6 +2,9 @@ package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.protocol.MetaFlags;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.ClientException;
@@ -9,6 +12,7 @@ import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.base64.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,12 +39,22 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
     private static final ChannelBuffer NOT_FOUND = ChannelBuffers.copiedBuffer("NOT_FOUND\r\n", USASCII);
     private static final ChannelBuffer NOT_STORED = ChannelBuffers.copiedBuffer("NOT_STORED\r\n", USASCII);
     private static final ChannelBuffer STORED = ChannelBuffers.copiedBuffer("STORED\r\n", USASCII);
+    private static final ChannelBuffer TOUCHED = ChannelBuffers.copiedBuffer("TOUCHED\r\n", USASCII);
     private static final ChannelBuffer DELETED = ChannelBuffers.copiedBuffer("DELETED\r\n", USASCII);
     private static final ChannelBuffer END = ChannelBuffers.copiedBuffer("END\r\n", USASCII);
     private static final ChannelBuffer OK = ChannelBuffers.copiedBuffer("OK\r\n", USASCII);
     private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", USASCII);
     private static final ChannelBuffer CLIENT_ERROR = ChannelBuffers.copiedBuffer("CLIENT_ERROR\r\n", USASCII);
 
+    // meta command responses
+    private static final ChannelBuffer VA = ChannelBuffers.copiedBuffer("VA ", USASCII);
+    private static final ChannelBuffer HD = ChannelBuffers.copiedBuffer("HD", USASCII);
+    private static final ChannelBuffer NS = ChannelBuffers.copiedBuffer("NS", USASCII);
+    private static final ChannelBuffer EX = ChannelBuffers.copiedBuffer("EX", USASCII);
+    private static final ChannelBuffer NF = ChannelBuffers.copiedBuffer("NF", USASCII);
+    private static final ChannelBuffer EN = ChannelBuffers.copiedBuffer("EN\r\n", USASCII);
+    private static final ChannelBuffer MN = ChannelBuffers.copiedBuffer("MN\r\n", USASCII);
+
     /**
      * Handle exceptions in protocol processing. Exceptions are either client or internal errors.  Report accordingly.
      *
@@ -75,9 +89,12 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
         switch (cmd) {
             case GET:
             case GETS:
+            case GAT:
+            case GATS:
                 CacheElement[] results = command.elements;
+                boolean withCas = cmd == Op.GETS || cmd == Op.GATS;
 
-                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (cmd == Op.GETS ? 2 : 0)) + 1];
+                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (withCas ? 2 : 0)) + 1];
                 int i = 0;
                 for (CacheElement result : results) {
                     if (result != null) {
@@ -86,13 +103,15 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                         buffers[i++] = SPACE;
                         buffers[i++] = BufferUtils.itoa(result.getFlags());
                         buffers[i++] = SPACE;
-                        buffers[i++] = BufferUtils.itoa(result.size());
-                        if (cmd == Op.GETS) {
+                        // a counter's data is rendered when asked for, so ask once for both its length and content
+                        ChannelBuffer data = result.getData();
+                        buffers[i++] = BufferUtils.itoa(data.capacity());
+                        if (withCas) {
                             buffers[i++] = SPACE;
                             buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
                         }
                         buffers[i++] = CRLF;
-                        buffers[i++] = result.getData();
+                        buffers[i++] = data;
                         buffers[i++] = CRLF;
                     }
                 }
@@ -100,6 +119,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
                 Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers));
                 break;
+            case TOUCH:
+                if (!command.cmd.noreply)
+                    Channels.write(channel, command.elements[0] != null ? TOUCHED.duplicate() : NOT_FOUND.duplicate());
+                break;
             case APPEND:
             case PREPEND:
             case ADD:
@@ -120,19 +143,48 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                     Channels.write(channel, incrDecrResponseString(command.incrDecrResponse));
                 break;
             case STATS:
+                // all of the stats go out in one write
+                StringBuilder builder = new StringBuilder();
                 for (Map.Entry<String, Set<String>> stat : command.stats.entrySet()) {
                     for (String statVal : stat.getValue()) {
-                        StringBuilder builder = new StringBuilder();
                         builder.append("STAT ");
                         builder.append(stat.getKey());
                         builder.append(" ");
                         builder.append(String.valueOf(statVal));
                         builder.append("\r\n");
-                        Channels.write(channel, ChannelBuffers.copiedBuffer(builder.toString(), USASCII));
                     }
                 }
-                Channels.write(channel, END.duplicate());
+                builder.append("END\r\n");
+                Channels.write(channel, ChannelBuffers.copiedBuffer(builder.toString(), USASCII));
 
+                break;
+            case MG:
+                CacheElement element = command.elements[0];
+                if (element == null) {
+                    if (!command.cmd.meta.quiet)
+                        Channels.write(channel, EN.duplicate());
+                } else {
+                    Channels.write(channel, metaResponse(command, HD, element, command.cmd.meta.value ? element.getData() : null));
+                }
+                break;
+            case MS:
+                if (command.response != Cache.StoreResponse.STORED || !command.cmd.meta.quiet)
+                    Channels.write(channel, metaResponse(command, metaStoreResponse(command.response), command.cmd.element, null));
+                break;
+            case MD:
+                if (command.deleteResponse != Cache.DeleteResponse.DELETED || !command.cmd.meta.quiet)
+                    Channels.write(channel, metaResponse(command, metaDeleteResponse(command.deleteResponse), null, null));
+                break;
+            case MA:
+                if (command.incrDecrResponse == null)
+                    Channels.write(channel, metaResponse(command, NF, null, null));
+                else if (command.cmd.meta.value)
+                    Channels.write(channel, metaResponse(command, HD, null, BufferUtils.ultoa(command.incrDecrResponse)));
+                else if (!command.cmd.meta.quiet)
+                    Channels.write(channel, metaResponse(command, HD, null, null));
+                break;
+            case MN:
+                Channels.write(channel, MN.duplicate());
                 break;
             case VERSION:
                 Channels.write(channel, ChannelBuffers.copiedBuffer("VERSION " + command.version + "\r\n", USASCII));
@@ -150,6 +202,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 break;
             case VERBOSITY:
                 break;
+            case CACHE_MEMLIMIT:
+                if (!command.cmd.noreply)
+                    Channels.write(channel, OK.duplicate());
+                break;
             default:
                 Channels.write(channel, ERROR.duplicate());
                 logger.error("error; unrecognized command: " + cmd);
@@ -158,17 +214,104 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     }
 
+    /**
+     * Render the response to a meta command: the code, or the length of the value if there is one, followed by the
+     * flags asked to be returned, in the order they were asked for, and for a meta get the state of the element
+     * for recaching; then the value.
+     *
+     * @param code the response code, for a response without value
+     * @param element the element the command found or stored, if any
+     * @param value the value to return, or null
+     */
+    private ChannelBuffer metaResponse(ResponseMessage<CACHE_ELEMENT> command, ChannelBuffer code, CacheElement element, ChannelBuffer value) {
+        MetaFlags meta = command.cmd.meta;
+        List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        if (value != null) {
+            buffers.add(VA);
+            buffers.add(BufferUtils.itoa(value.capacity()));
+        } else {
+            buffers.add(code);
+        }
+
+        for (int i = 0; i < meta.returned.length(); i++) {
+            char flag = meta.returned.charAt(i);
+            switch (flag) {
+                case 'b':
+                    buffers.add(flag(flag));
+                    break;
+                case 'k':
+                    Key key = command.cmd.element != null ? command.cmd.element.getKey() : command.cmd.keys.get(0);
+                    buffers.add(flag(flag));
+                    buffers.add(meta.base64 ? Base64.encode(key.bytes, 0, key.bytes.capacity(), false) : key.bytes);
+                    break;
+                case 'O':
+                    buffers.add(flag(flag));
+                    buffers.add(meta.opaque);
+                    break;
+                case 'c':
+                case 'f':
+                case 's':
+                case 't':
+                    // only known for an element the command found or stored
+                    if (element == null) break;
+                    buffers.add(flag(flag));
+                    if (flag == 'c') buffers.add(BufferUtils.ltoa(element.getCasUnique()));
+                    else if (flag == 'f') buffers.add(BufferUtils.itoa(element.getFlags()));
+                    else if (flag == 's') buffers.add(BufferUtils.itoa(element.size()));
+                    else buffers.add(BufferUtils.ltoa(element.getExpire() == 0 ? -1 : Math.max(0, element.getExpire() - LocalCacheElement.Now())));
+                    break;
+            }
+        }
+
+        if (command.cmd.op == Op.MG) {
+            if (command.won) buffers.add(flag('W'));
+            if (element.isStale()) buffers.add(flag('X'));
+            if (!command.won && element.isWinSent()) buffers.add(flag('Z'));
+        }
+
+        buffers.add(CRLF);
+        if (value != null) {
+            buffers.add(value);
+            buffers.add(CRLF);
+        }
+        return ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
+
+    private static ChannelBuffer flag(char flag) {
+        return ChannelBuffers.wrappedBuffer(new byte[] { ' ', (byte) flag });
+    }
+
+    private ChannelBuffer metaStoreResponse(Cache.StoreResponse storeResponse) {
+        switch (storeResponse) {
+            case EXISTS:
+                return EX;
+            case NOT_FOUND:
+                return NF;
+            case NOT_STORED:
+                return NS;
+            default:
+                return HD;
+        }
+    }
+
+    private ChannelBuffer metaDeleteResponse(Cache.DeleteResponse deleteResponse) {
+        if (deleteResponse == Cache.DeleteResponse.DELETED) return HD;
+        else if (deleteResponse == Cache.DeleteResponse.EXISTS) return EX;
+        else return NF;
+    }
+
     private ChannelBuffer deleteResponseString(Cache.DeleteResponse deleteResponse) {
         if (deleteResponse == Cache.DeleteResponse.DELETED) return DELETED.duplicate();
+        else if (deleteResponse == Cache.DeleteResponse.EXISTS) return EXISTS.duplicate();
         else return NOT_FOUND.duplicate();
     }
 
 
-    private ChannelBuffer incrDecrResponseString(Integer ret) {
+    private ChannelBuffer incrDecrResponseString(Long ret) {
         if (ret == null)
             return NOT_FOUND.duplicate();
         else
-            return ChannelBuffers.copiedBuffer(valueOf(ret) + "\r\n", USASCII);
+            return ChannelBuffers.wrappedBuffer(BufferUtils.ultoa(ret), CRLF.duplicate());
     }
 
     /**
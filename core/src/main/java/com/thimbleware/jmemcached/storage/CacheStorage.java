@@ -8,6 +8,9 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * The interface for cache storage. Essentially a concurrent map but with methods for investigating the heap
  * state of the storage unit and with additional support for explicit resource-cleanup (close()).
+ *
+ * A storage which can't take a value it is given may throw {@link NotStoredException} from the methods storing
+ * it, preferably before removing any value the new one would have replaced.
  */
 public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V> {
     /**
@@ -25,6 +28,40 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     int capacity();
 
+    /**
+     * Atomically update the value of a key: the function is given the current value, or null if there is none,
+     * and its result replaces it. Returning the current value leaves the key as it is; returning null removes it.
+     *
+     * @param key the key to update
+     * @param function computes the new value from the current one
+     * @return the value of the key after the update, or null if it is absent
+     */
+    V compute(K key, RemappingFunction<K, V> function);
+
+    /**
+     * Atomically update the value of a key, if it has one; see {@link #compute}. The function is never given null.
+     *
+     * @param key the key to update
+     * @param function computes the new value from the current one
+     * @return the value of the key after the update, or null if it is absent
+     */
+    V computeIfPresent(K key, RemappingFunction<K, V> function);
+
+    /**
+     * Change the capacity (in bytes) of the storage while it is in use. Entries beyond a lowered capacity are
+     * evicted, either right away or as new ones are stored; a raised capacity is taken up as it is needed.
+     *
+     * @param capacity the new capacity, in bytes
+     */
+    void setMemoryCapacity(long capacity);
+
+    /**
+     * Change the capacity (in # of items) of the storage while it is in use.
+     *
+     * @param capacity the new capacity, in # of items
+     */
+    void setCapacity(int capacity);
+
     /**
      * Close the storage unit, deallocating any resources it might be currently holding.
      * @throws java.io.IOException thrown if IO faults occur anywhere during close.
@@ -0,0 +1,19 @@
+package com.thimbleware.jmemcached.storage;
+
+import java.util.List;
+
+/**
+ * Implemented by storage units which can tell, ahead of time, which entries they would evict to make room
+ * for new data.
+ */
+public interface EvictionCandidateSource<K> {
+    /**
+     * Find the entries that would be evicted in order to free up a number of bytes.
+     *
+     * @param bytesNeeded the number of bytes that have to be freed
+     * @param maxCandidates the maximum number of entries to look at
+     * @return the keys of the entries, in eviction order, or null if more than maxCandidates entries would
+     *         have to go
+     */
+    List<K> evictionCandidates(long bytesNeeded, int maxCandidates);
+}
@@ -0,0 +1,13 @@
+package com.thimbleware.jmemcached.storage;
+
+/**
+ * Thrown by a storage which can't take a value, because it is too large for the storage ever to hold or because
+ * no room could be made for it. The cache answers the command storing it with NOT_STORED.
+ */
+public class NotStoredException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public NotStoredException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,39 @@
+package com.thimbleware.jmemcached.storage;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compare-and-set implementation of {@link CacheStorage#compute} for storage which has no lock of its own to
+ * hold across the update: the function is applied to the current value, and the result installed with
+ * putIfAbsent/replace/remove, retrying if the value changed in the meantime.
+ */
+public final class Remapping {
+
+    private Remapping() {
+    }
+
+    /**
+     * @param map the map to update
+     * @param key the key to update
+     * @param function computes the new value from the current one
+     * @param onlyIfPresent true to leave an absent key absent, without calling the function
+     * @return the value of the key after the update, or null if it is absent
+     */
+    public static <K, V> V compute(ConcurrentMap<K, V> map, K key, RemappingFunction<K, V> function, boolean onlyIfPresent) {
+        while (true) {
+            V old = map.get(key);
+            if (old == null && onlyIfPresent) return null;
+
+            V value = function.apply(key, old);
+            if (value == old) return old;
+
+            if (old == null) {
+                if (map.putIfAbsent(key, value) == null) return value;
+            } else if (value == null) {
+                if (map.remove(key, old)) return null;
+            } else {
+                if (map.replace(key, old, value)) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.thimbleware.jmemcached.storage;
+
+/**
+ * Computes the new value of a key from its current one, for {@link CacheStorage#compute} and
+ * {@link CacheStorage#computeIfPresent}.
+ *
+ * Storage which updates values by compare-and-set may call the function more than once for a single update, if
+ * another writer got in between; only the result of the last call is stored.
+ */
+public interface RemappingFunction<K, V> {
+
+    /**
+     * @param key the key being updated
+     * @param value the current value, or null if the key isn't present
+     * @return the new value; the current value itself to leave it as it is, or null to remove the key
+     */
+    V apply(K key, V value);
+}
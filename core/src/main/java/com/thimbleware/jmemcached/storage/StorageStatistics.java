@@ -0,0 +1,14 @@
+package com.thimbleware.jmemcached.storage;
+
+import java.util.Map;
+
+/**
+ * Implemented by storage units which keep statistics of their own. These are merged into the output of the
+ * 'stats' command.
+ */
+public interface StorageStatistics {
+    /**
+     * @return the current statistics of the storage, keyed by stat name
+     */
+    Map<String, String> getStatistics();
+}
@@ -0,0 +1,43 @@
+package com.thimbleware.jmemcached.storage;
+
+/**
+ * Scores eviction candidates by how much their loss would cost: an entry which is about to expire anyway
+ * is cheap to drop, even if it was used more recently than one which has hours left to live.
+ */
+public final class TtlWeighting {
+
+    /**
+     * Remaining lifetimes longer than this (in seconds) are all treated as equally valuable.
+     */
+    public static final long HORIZON = 3600;
+
+    /**
+     * The number of candidates the storage engines sample when looking for a victim.
+     */
+    public static final int SAMPLE_SIZE = 8;
+
+    private TtlWeighting() {
+    }
+
+    /**
+     * Compute the cost of evicting an entry; the candidate with the lowest weight should be evicted.
+     *
+     * @param expire the expiry time of the entry (in seconds since the epoch), or 0 if it never expires
+     * @param now the current time, in seconds since the epoch
+     * @param recencyRank the position of the entry among the candidates, starting at 0 for the least recently used
+     * @return the weight of the entry, negative if the entry has already expired
+     */
+    public static long weight(long expire, long now, int recencyRank) {
+        if (expire != 0 && expire < now) return -1;
+
+        long remaining = expire == 0 ? HORIZON : Math.min(expire - now, HORIZON);
+        return (remaining + 1) * (recencyRank + 1);
+    }
+
+    /**
+     * @return the current time in seconds since the epoch
+     */
+    public static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
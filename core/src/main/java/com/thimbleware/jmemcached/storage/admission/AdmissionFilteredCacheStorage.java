@@ -0,0 +1,227 @@
+package com.thimbleware.jmemcached.storage.admission;
+
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.EvictionCandidateSource;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import com.thimbleware.jmemcached.storage.hash.SizedItem;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache storage decorator which decides whether a new, large item is worth storing at all.
+ *
+ * Every read and write of a key is recorded in a {@link FrequencySketch}. Items smaller than the configured
+ * threshold, and items which fit without evicting anything, are always admitted. A large item which would
+ * displace other entries is only admitted if it has been asked for more often than the entries it would push
+ * out. When the underlying storage can't name its eviction victims the item must at least have been seen
+ * before, which keeps write-once values (bulk backfills, for example) from flushing out the working set.
+ *
+ * A rejected write behaves as if the item had been stored and evicted straight away; any older value under
+ * the same key is removed so that it can't be served in place of the new one.
+ */
+public final class AdmissionFilteredCacheStorage<K, V extends SizedItem> implements CacheStorage<K, V>, StorageStatistics {
+
+    /**
+     * The maximum number of eviction victims a new item is compared against.
+     */
+    static final int MAX_VICTIMS = 16;
+
+    private final CacheStorage<K, V> storage;
+    private final FrequencySketch sketch;
+    private final int largeItemBytes;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param storage the storage to filter writes for
+     * @param largeItemBytes items at least this large (in bytes) are subject to admission control
+     * @param expectedItems the number of distinct keys the frequency sketch should be sized for
+     */
+    public AdmissionFilteredCacheStorage(CacheStorage<K, V> storage, int largeItemBytes, int expectedItems) {
+        this.storage = storage;
+        this.largeItemBytes = largeItemBytes;
+        this.sketch = new FrequencySketch(expectedItems);
+    }
+
+    /**
+     * Decide whether an item should go into the storage.
+     *
+     * @param key the key of the item
+     * @param value the item
+     * @return true if the item should be stored
+     */
+    boolean admit(K key, V value) {
+        int size = value.memorySize();
+        if (size < largeItemBytes) return true;
+
+        long bytesNeeded = storage.getMemoryUsed() + size - storage.getMemoryCapacity();
+        boolean itemsFull = storage.capacity() > 0 && storage.size() >= storage.capacity();
+        if (bytesNeeded <= 0 && !itemsFull) return true;
+
+        int frequency = sketch.frequency(key.hashCode());
+        if (!(storage instanceof EvictionCandidateSource)) {
+            // we can't see what would be evicted; only refuse items that have never been asked for before
+            return frequency > 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<K> victims = ((EvictionCandidateSource<K>) storage).evictionCandidates(Math.max(bytesNeeded, 1), MAX_VICTIMS);
+        if (victims == null) return false;
+
+        // the new item has to be more popular than everything it would push out put together
+        int victimFrequency = 0;
+        for (K victim : victims) {
+            if (victim.equals(key)) continue;
+            victimFrequency += sketch.frequency(victim.hashCode());
+        }
+        return frequency > victimFrequency;
+    }
+
+    private boolean record(K key, V value) {
+        sketch.increment(key.hashCode());
+        if (admit(key, value)) {
+            admitted.incrementAndGet();
+            return true;
+        } else {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public Map<String, String> getStatistics() {
+        Map<String, String> stats = new HashMap<String, String>();
+        if (storage instanceof StorageStatistics) {
+            stats.putAll(((StorageStatistics) storage).getStatistics());
+        }
+        stats.put("admitted_items", String.valueOf(getAdmitted()));
+        stats.put("rejected_items", String.valueOf(getRejected()));
+        return stats;
+    }
+
+    public V get(Object key) {
+        sketch.increment(key.hashCode());
+        return storage.get(key);
+    }
+
+    public V put(K key, V value) {
+        if (record(key, value)) return storage.put(key, value);
+        else return storage.remove(key);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        if (storage.containsKey(key)) return storage.putIfAbsent(key, value);
+        if (record(key, value)) return storage.putIfAbsent(key, value);
+        else return null;
+    }
+
+    public V replace(K key, V value) {
+        if (record(key, value)) return storage.replace(key, value);
+        else return storage.remove(key);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        // modifications of an item which is already resident are never filtered
+        return storage.replace(key, oldValue, newValue);
+    }
+
+    public V compute(final K key, final RemappingFunction<K, V> function) {
+        return storage.compute(key, new RemappingFunction<K, V>() {
+            public V apply(K k, V value) {
+                V result = function.apply(k, value);
+                // only new items are filtered, as with putIfAbsent
+                if (value == null && result != null && !record(k, result)) return null;
+                return result;
+            }
+        });
+    }
+
+    public V computeIfPresent(K key, RemappingFunction<K, V> function) {
+        return storage.computeIfPresent(key, function);
+    }
+
+    public V remove(Object key) {
+        return storage.remove(key);
+    }
+
+    public boolean remove(Object key, Object value) {
+        return storage.remove(key, value);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public long getMemoryCapacity() {
+        return storage.getMemoryCapacity();
+    }
+
+    public long getMemoryUsed() {
+        return storage.getMemoryUsed();
+    }
+
+    public int capacity() {
+        return storage.capacity();
+    }
+
+    public void setMemoryCapacity(long capacity) {
+        storage.setMemoryCapacity(capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        storage.setCapacity(capacity);
+    }
+
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    public int size() {
+        return storage.size();
+    }
+
+    public boolean isEmpty() {
+        return storage.isEmpty();
+    }
+
+    public boolean containsKey(Object key) {
+        return storage.containsKey(key);
+    }
+
+    public boolean containsValue(Object value) {
+        return storage.containsValue(value);
+    }
+
+    public void clear() {
+        storage.clear();
+    }
+
+    public Set<K> keySet() {
+        return storage.keySet();
+    }
+
+    public Collection<V> values() {
+        return storage.values();
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        return storage.entrySet();
+    }
+}
@@ -0,0 +1,86 @@
+package com.thimbleware.jmemcached.storage.admission;
+
+/**
+ * A count-min sketch estimating how often a key has been seen recently.
+ *
+ * Each key maps to one 4-bit counter in each of four rows; the estimate is the smallest of those counters.
+ * Once the number of recorded events reaches ten times the width of the sketch all counters are halved, so
+ * that the estimates age and reflect recent popularity rather than all-time popularity.
+ *
+ * Updates are deliberately not synchronized. A lost increment under contention only makes an estimate
+ * slightly low, which is harmless for admission decisions and much cheaper than locking on every read.
+ */
+public final class FrequencySketch {
+
+    static final int DEPTH = 4;
+    static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = { 0x97cb3127, 0x9e3779b9, 0x7f4a7c15, 0x2545f491 };
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedItems the number of distinct keys expected to be tracked at once
+     */
+    public FrequencySketch(int expectedItems) {
+        int width = 16;
+        while (width < expectedItems && width < (1 << 30)) width <<= 1;
+
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = width * 10;
+    }
+
+    /**
+     * Record one occurrence of the key.
+     * @param hashCode the hash code of the key
+     */
+    public void increment(int hashCode) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hashCode, row);
+            byte count = table[row][index];
+            if (count < MAX_COUNT) {
+                table[row][index] = (byte) (count + 1);
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @param hashCode the hash code of the key
+     * @return the estimated number of recent occurrences of the key, between 0 and 15
+     */
+    public int frequency(int hashCode) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, table[row][indexOf(hashCode, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Halve every counter, aging the popularity of all keys.
+     */
+    void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions = additions / 2;
+    }
+
+    private int indexOf(int hashCode, int row) {
+        int h = (hashCode ^ SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -3,22 +3,44 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the cache using the block buffer storage back end.
+ *
+ * When a partition runs out of blocks, or the cache holds its maximum number of items, entries are evicted from
+ * the partition receiving the new item. See {@link Partition#evict()} for how victims are chosen.
+ *
+ * The capacity can be changed while the cache is running. Raising it grows the partitions' block stores, where
+ * they support that; lowering it makes each partition evict down to its share of the new capacity the next time
+ * an item is stored in it, so that the cache shrinks gradually rather than all at once.
  */
-public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCacheElement> {
+public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCacheElement>, StorageStatistics {
 
     Partition[] partitions;
 
+    final Logger log = LoggerFactory.getLogger(BlockStorageCacheStorage.class);
+
     volatile int ceilingBytes;
     volatile int maximumItems;
-    volatile int numberItems;
-    final long maximumSizeBytes;
+    final AtomicInteger numberItems = new AtomicInteger();
+    final AtomicLong evictions = new AtomicLong();
+    volatile long maximumSizeBytes;
 
     public BlockStorageCacheStorage(int blockStoreBuckets, int ceilingBytesParam, int blockSizeBytes, long maximumSizeBytes, int maximumItemsVal, BlockStoreFactory factory) {
         this.partitions = new Partition[blockStoreBuckets];
@@ -28,12 +50,115 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
             this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes));
         }
 
-        this.numberItems = 0;
-        this.ceilingBytes = 0;
-        this.maximumItems = 0;
+        this.ceilingBytes = ceilingBytesParam;
+        this.maximumItems = maximumItemsVal;
         this.maximumSizeBytes = maximumSizeBytes;
     }
 
+    /**
+     * Fault in the memory of every partition, so that the first writes to it after startup don't stall on page
+     * faults. The partitions are swept in parallel; this blocks until all of them are done.
+     *
+     * @param threads the number of threads to sweep with
+     * @throws InterruptedException if interrupted while waiting for the sweep to finish
+     */
+    public void preFault(int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partitions.length)));
+        try {
+            CompletionService<Long> completion = new ExecutorCompletionService<Long>(executor);
+            for (final Partition partition : partitions) {
+                completion.submit(new Callable<Long>() {
+                    public Long call() {
+                        partition.storageLock.writeLock().lock();
+                        try {
+                            return partition.blockStore.preFault();
+                        } finally {
+                            partition.storageLock.writeLock().unlock();
+                        }
+                    }
+                });
+            }
+
+            long start = System.currentTimeMillis();
+            long bytes = 0;
+            for (int i = 1; i <= partitions.length; i++) {
+                try {
+                    bytes += completion.take().get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("unable to pre-fault block storage", e.getCause());
+                }
+                log.info("pre-faulted " + i + " of " + partitions.length + " partitions (" + bytes + " bytes)");
+            }
+            log.info("pre-faulted " + bytes + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Store an item in a partition, evicting entries as needed to make room for it. Must be called with the
+     * partition's write lock held.
+     */
+    private void add(Partition partition, Key key, LocalCacheElement item) {
+        add(partition, key, item, 0);
+    }
+
+    private void add(Partition partition, Key key, LocalCacheElement item, int reserve) {
+        while (maximumItems > 0 && numberItems.get() >= maximumItems) {
+            if (!evictFrom(partition)) break;
+        }
+
+        // the capacity may have been lowered below the size of the block store
+        ByteBufferBlockStore store = partition.blockStore;
+        long share = maximumSizeBytes / partitions.length;
+        if (share < store.getStoreSizeBytes()) {
+            while (store.getStoreSizeBytes() - store.getFreeBytes() + item.bufferSize() + reserve > share) {
+                if (partition.evict() == null) break;
+                evicted();
+            }
+        }
+
+        while (true) {
+            try {
+                partition.add(key, item, reserve);
+                numberItems.incrementAndGet();
+                return;
+            } catch (ByteBufferBlockStore.BadAllocationException e) {
+                // out of blocks; make room in this partition, or give up if it is empty
+                if (partition.evict() == null) throw e;
+                evicted();
+            }
+        }
+    }
+
+    /**
+     * Evict an entry to keep the number of items in bounds; from the given partition, whose write lock is held,
+     * or failing that from any other partition which isn't busy.
+     */
+    private boolean evictFrom(Partition partition) {
+        if (partition.evict() != null) {
+            evicted();
+            return true;
+        }
+        for (Partition other : partitions) {
+            if (other == partition || !other.storageLock.writeLock().tryLock()) continue;
+            try {
+                if (other.evict() != null) {
+                    evicted();
+                    return true;
+                }
+            } finally {
+                other.storageLock.writeLock().unlock();
+            }
+        }
+        return false;
+    }
+
+    private void evicted() {
+        numberItems.decrementAndGet();
+        evictions.incrementAndGet();
+    }
+
     private Partition pickPartition(Key key) {
         return partitions[hash(key.hashCode()) & (partitions.length - 1)];
     }
@@ -43,7 +168,37 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         for (Partition byteBufferBlockStore : partitions) {
             capacity += byteBufferBlockStore.blockStore.getStoreSizeBytes();
         }
-        return capacity;
+        return Math.min(capacity, maximumSizeBytes);
+    }
+
+    /**
+     * Raising the capacity grows each partition's block store to its share right away. Lowering it evicts
+     * nothing here, and the block stores keep their size: entries are only evicted as new ones are added, until
+     * the memory used is back under the new capacity.
+     *
+     * @param capacity the new capacity, in bytes
+     */
+    public final void setMemoryCapacity(long capacity) {
+        maximumSizeBytes = capacity;
+
+        long share = capacity / partitions.length;
+        for (Partition partition : partitions) {
+            if (share <= partition.blockStore.getStoreSizeBytes()) continue;
+
+            // under the write lock, as growing may release a chunk that readers would otherwise be reading
+            partition.storageLock.writeLock().lock();
+            try {
+                if (!partition.blockStore.grow(share)) {
+                    log.warn("block store can't grow beyond " + partition.blockStore.getStoreSizeBytes() + " bytes");
+                }
+            } finally {
+                partition.storageLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public final void setCapacity(int capacity) {
+        maximumItems = capacity;
     }
 
     public final long getMemoryUsed() {
@@ -58,6 +213,10 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         return maximumItems;
     }
 
+    public Map<String, String> getStatistics() {
+        return Collections.singletonMap("evictions", String.valueOf(evictions.get()));
+    }
+
     public final void close() throws IOException {
         // first clear all items
         clear();
@@ -81,8 +240,11 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
                 partition.storageLock.readLock().unlock();
                 partition.storageLock.writeLock().lock();
                 try {
-                    numberItems++;
-                    partition.add(key, item);
+                    // somebody may have beaten us to it while we weren't holding a lock
+                    region = partition.find(key);
+                    if (region != null) return region.toValue();
+
+                    add(partition, key, item);
                 } finally {
                     partition.storageLock.readLock().lock();
                     partition.storageLock.writeLock().unlock();
@@ -111,14 +273,16 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         try {
             partition.storageLock.readLock().lock();
             Region region = partition.find(key);
-            if (region == null) return false;
+            if (region == null || !region.toValue().equals(value)) return false;
             else {
                 partition.storageLock.readLock().unlock();
                 partition.storageLock.writeLock().lock();
                 try {
-                    partition.blockStore.free(region);
+                    region = partition.find(key);
+                    if (region == null || !region.toValue().equals(value)) return false;
+
                     partition.remove(key, region);
-                    numberItems++;
+                    numberItems.decrementAndGet();
                     return true;
                 } finally {
                     partition.storageLock.readLock().lock();
@@ -150,8 +314,12 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
                 partition.storageLock.readLock().unlock();
                 partition.storageLock.writeLock().lock();
                 try {
+                    region = partition.find(key);
+                    if (region == null || !region.toValue().equals(original)) return false;
+
                     partition.remove(key, region);
-                    partition.add(key, replace);
+                    numberItems.decrementAndGet();
+                    add(partition, key, replace);
                     return true;
                 } finally {
                     partition.storageLock.readLock().lock();
@@ -181,8 +349,13 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
             partition.storageLock.readLock().unlock();
             partition.storageLock.writeLock().lock();
             try {
+                region = partition.find(key);
+                if (region == null) return null;
+
+                el = region.toValue();
                 partition.remove(key, region);
-                partition.add(key, replace);
+                numberItems.decrementAndGet();
+                add(partition, key, replace);
                 return el;
             } finally {
                 partition.storageLock.readLock().lock();
@@ -196,11 +369,11 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     }
 
     public final int size() {
-        return numberItems;
+        return numberItems.get();
     }
 
     public final boolean isEmpty() {
-        return numberItems == 0;
+        return numberItems.get() == 0;
     }
 
     public final boolean containsKey(Object okey) {
@@ -227,14 +400,26 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        LocalCacheElement value;
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
             if (region == null) return null;
-            return region.toValue();
+            value = region.toValue();
         } finally {
             partition.storageLock.readLock().unlock();
         }
+
+        // the use is recorded under the write lock, but gets don't wait for it: if another thread holds the
+        // partition, the use goes unrecorded and the entry looks a little older to eviction than it is
+        if (partition.storageLock.writeLock().tryLock()) {
+            try {
+                partition.find(key, true);
+            } finally {
+                partition.storageLock.writeLock().unlock();
+            }
+        }
+        return value;
     }
 
     public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
@@ -247,13 +432,15 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
             partition.storageLock.readLock().unlock();
             partition.storageLock.writeLock().lock();
             try {
+                region = partition.find(key);
+
                 LocalCacheElement old = null;
                 if (region != null) {
                     old = region.toValue();
+                    partition.remove(key, region);
+                    numberItems.decrementAndGet();
                 }
-                if (region != null) partition.remove(key, region);
-                partition.add(key, item);
-                numberItems++;
+                add(partition, key, item);
                 return old;
             } finally {
                 partition.storageLock.readLock().lock();
@@ -266,6 +453,62 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         }
     }
 
+    public final LocalCacheElement compute(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return compute(key, function, false);
+    }
+
+    public final LocalCacheElement computeIfPresent(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return compute(key, function, true);
+    }
+
+    /**
+     * Look the key up, apply the function and store its result, all under the partition's write lock.
+     */
+    private LocalCacheElement compute(Key key, RemappingFunction<Key, LocalCacheElement> function, boolean onlyIfPresent) {
+        Partition partition = pickPartition(key);
+
+        partition.storageLock.writeLock().lock();
+        try {
+            Region region = partition.find(key, true);
+            if (region == null && onlyIfPresent) return null;
+
+            // the function sees the value in place, so that updates which can be written over it are recognised;
+            // whatever is handed back out of the lock is a copy of what was stored, as the value the function
+            // returns may still be a view of the blocks, an appended value above all
+            LocalCacheElement old = region == null ? null : region.toView();
+            LocalCacheElement value = function.apply(key, old);
+            if (value == old) return region == null ? null : region.toValue();
+
+            // a touched value only needs its expiration time written
+            if (region != null && value != null && value.isTouchOf(old)) {
+                partition.touch(key, region, value);
+                return region.toValue();
+            }
+
+            // a value which fits in the blocks the old one had is written over it
+            boolean appended = value != null && value.isAppendOf(old);
+            if (region != null && value != null && partition.rewrite(key, region, value, appended)) return partition.find(key).toValue();
+
+            int reserve = 0;
+            if (appended) {
+                // the value still refers to the old blocks, which are about to be freed; and since it is being
+                // appended to, it gets room to grow, so that the next appends can be written in place
+                value.setData(ChannelBuffers.copiedBuffer(value.getData()));
+                reserve = LocalCacheElement.reserve(value.bufferSize());
+            }
+
+            if (region != null) {
+                partition.remove(key, region);
+                numberItems.decrementAndGet();
+            }
+            if (value == null) return null;
+            add(partition, key, value, reserve);
+            return partition.find(key).toValue();
+        } finally {
+            partition.storageLock.writeLock().unlock();
+        }
+    }
+
     public final LocalCacheElement remove(Object okey) {
         if (!(okey instanceof Key)) return null;
 
@@ -280,11 +523,13 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
                 partition.storageLock.readLock().unlock();
                 partition.storageLock.writeLock().lock();
                 try {
+                    region = partition.find(key);
+                    if (region == null) return null;
+
                     LocalCacheElement old = null;
                     old = region.toValue();
-                    partition.blockStore.free(region);
                     partition.remove(key, region);
-                    numberItems--;
+                    numberItems.decrementAndGet();
                     return old;
                 } finally {
                     partition.storageLock.readLock().lock();
@@ -310,8 +555,8 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     public final void clear() {
         for (Partition partition : partitions) {
             partition.storageLock.writeLock().lock();
-            numberItems += partition.keys().size() * - 1;
             try {
+                numberItems.addAndGet(-partition.getNumberItems());
                 partition.clear();
             } finally {
                 partition.storageLock.writeLock().unlock();
@@ -7,17 +7,38 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import java.io.IOException;
 
 /**
- * Memory mapped block storage mechanism with a free-list maintained by TreeMap
+ * Block storage mechanism with a free-list maintained by a bit set.
  *
- * Allows memory for storage to be mapped outside of the VM's main memory, and outside the purvey
- * of the GC.
+ * The store itself lives in buffers on the JVM heap; subclasses provide buffers outside of it, see
+ * {@link DirectByteBufferBlockStore} and {@link com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore}.
  *
- * Should offer O(Log(N)) search and free of blocks.
+ * A store may either be handed one buffer covering all of it up front, or reserve its size but commit memory in
+ * chunks as allocations need it, so that starting up doesn't depend on the configured size and an idle store
+ * only holds the memory it has actually used. A region may straddle two chunks, in which case its buffer is a
+ * composite of both.
  */
 public class ByteBufferBlockStore {
 
+    /**
+     * The amount of memory committed at a time by stores which grow lazily.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The stride used when touching memory to fault it in; the smallest page size in common use.
+     */
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * The buffer covering the entire store, for stores which are given their memory up front.
+     */
     protected ChannelBuffer storageBuffer;
 
+    private ChannelBuffer[] chunks;
+    private int chunkSizeBytes;
+    private int committedChunks;
+    private long committedBlocks;
+
     private long freeBytes;
 
     private long storeSizeBytes;
@@ -41,27 +62,24 @@ public class ByteBufferBlockStore {
 
     public static class ByteBufferBlockStoreFactory implements BlockStoreFactory<ByteBufferBlockStore> {
 
-        public ByteBufferBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
-            try {
-                ChannelBuffer buffer = ChannelBuffers.buffer((int) sizeBytes);
-                return new ByteBufferBlockStore(buffer, sizeBytes, blockSizeBytes);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        private final int chunkSizeBytes;
+
+        public ByteBufferBlockStoreFactory() {
+            this(DEFAULT_CHUNK_SIZE);
         }
-    }
 
-    /**
-     * Construct a new memory mapped block storage against a filename, with a certain size
-     * and block size.
-     * @param storageBuffer
-     * @param blockSizeBytes the size of a block in the store
-     * @throws java.io.IOException thrown on failure to open the store or map the file
-     */
-    private ByteBufferBlockStore(ChannelBuffer storageBuffer, long sizeBytes, int blockSizeBytes) throws IOException {
-        this.storageBuffer = storageBuffer;
-        this.blockSizeBytes = blockSizeBytes;
-        initialize((int)sizeBytes);
+        /**
+         * @param chunkSizeBytes the amount of memory to commit at a time
+         */
+        public ByteBufferBlockStoreFactory(int chunkSizeBytes) {
+            this.chunkSizeBytes = chunkSizeBytes;
+        }
+
+        public ByteBufferBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
+            ByteBufferBlockStore store = new ByteBufferBlockStore(blockSizeBytes);
+            store.initializeChunked(sizeBytes, chunkSizeBytes);
+            return store;
+        }
     }
 
     /**
@@ -71,21 +89,165 @@ public class ByteBufferBlockStore {
         this.blockSizeBytes = blockSizeBytes;
     }
 
+    /**
+     * Set the store up over {@link #storageBuffer}, which covers all of it.
+     */
     protected void initialize(int storeSizeBytes) {
         // set the size of the store in bytes
         this.storeSizeBytes = storageBuffer.capacity();
 
-        // the number of free bytes starts out as the entire store
-        freeBytes = storeSizeBytes;
-
         // clear the buffer
         storageBuffer.clear();
 
-        allocated = new OpenBitSet(storeSizeBytes / blockSizeBytes);
+        chunks = new ChannelBuffer[] { storageBuffer };
+        chunkSizeBytes = storageBuffer.capacity();
+        committedChunks = 1;
+        committedBlocks = this.storeSizeBytes / blockSizeBytes;
+
+        clear();
+    }
+
+    /**
+     * Set the store up to commit memory lazily, one chunk at a time, through {@link #allocateChunk(int)}.
+     *
+     * @param storeSizeBytes the maximum size of the store
+     * @param chunkSizeBytes the amount of memory to commit at a time; rounded down to whole blocks
+     */
+    protected void initializeChunked(long storeSizeBytes, int chunkSizeBytes) {
+        this.storeSizeBytes = storeSizeBytes;
+        this.chunkSizeBytes = (int) Math.max(blockSizeBytes, Math.min(chunkSizeBytes, storeSizeBytes) / blockSizeBytes * blockSizeBytes);
+
+        chunks = new ChannelBuffer[(int) ((storeSizeBytes + this.chunkSizeBytes - 1) / this.chunkSizeBytes)];
+        committedChunks = 0;
+        committedBlocks = 0;
 
         clear();
     }
 
+    /**
+     * Allocate the memory for one chunk of a lazily committed store. Stores on the heap use heap buffers;
+     * subclasses override this to put their chunks elsewhere.
+     *
+     * @param sizeBytes the size of the chunk
+     * @return the new chunk
+     */
+    protected ChannelBuffer allocateChunk(int sizeBytes) {
+        return ChannelBuffers.buffer(sizeBytes);
+    }
+
+    /**
+     * Give back the memory of a chunk allocated by {@link #allocateChunk(int)}; called on close, and when growing
+     * the store replaces a chunk with a larger one.
+     */
+    protected void releaseChunk(ChannelBuffer chunk) {
+        // noop; the garbage collector will take care of it
+    }
+
+    /**
+     * Commit the next chunk of the store, making its blocks available for allocation.
+     * @return false if the store is already fully committed
+     */
+    private boolean commitChunk() {
+        if (committedChunks == chunks.length) return false;
+
+        long remainingBytes = storeSizeBytes - (long) committedChunks * chunkSizeBytes;
+        int sizeBytes = (int) Math.min(chunkSizeBytes, remainingBytes / blockSizeBytes * blockSizeBytes);
+        if (sizeBytes == 0) return false;
+
+        ChannelBuffer chunk = allocateChunk(sizeBytes);
+        chunk.clear();
+        chunks[committedChunks++] = chunk;
+
+        addBlocks(sizeBytes / blockSizeBytes);
+        return true;
+    }
+
+    /**
+     * Make blocks past the committed ones available for allocation.
+     */
+    private void addBlocks(long numBlocks) {
+        long previousBlocks = committedBlocks;
+        committedBlocks += numBlocks;
+
+        // make room in the bit set, reserve the bits past the end of the new blocks, then free the new blocks
+        int words = OpenBitSet.bits2words(committedBlocks);
+        allocated.ensureCapacityWords(words);
+        allocated.setNumWords(Math.max(words, allocated.getNumWords()));
+        allocated.set(committedBlocks, (long) words << 6);
+        allocated.clear(previousBlocks, committedBlocks);
+    }
+
+    /**
+     * Raise the size of a store which commits its memory lazily. The new memory is committed as allocations need
+     * it, like the rest of the store; stores which were given all of their memory up front can't grow. Nothing
+     * may be reading from the store meanwhile, as a chunk it replaces is released straight away.
+     *
+     * @param storeSizeBytes the new size of the store
+     * @return false if the store can't grow
+     */
+    public boolean grow(long storeSizeBytes) {
+        if (storageBuffer != null) return false;
+        if (storeSizeBytes <= this.storeSizeBytes) return true;
+
+        // the last chunk of the store may have been committed short; widen it, so that chunks stay evenly spaced
+        if (committedChunks > 0 && chunks[committedChunks - 1].capacity() < chunkSizeBytes) {
+            ChannelBuffer last = chunks[committedChunks - 1];
+            long remainingBytes = storeSizeBytes - (long) (committedChunks - 1) * chunkSizeBytes;
+            int sizeBytes = (int) Math.min(chunkSizeBytes, remainingBytes / blockSizeBytes * blockSizeBytes);
+
+            ChannelBuffer chunk = allocateChunk(sizeBytes);
+            chunk.clear();
+            chunk.setBytes(0, last, 0, last.capacity());
+            chunks[committedChunks - 1] = chunk;
+            releaseChunk(last);
+
+            addBlocks((sizeBytes - last.capacity()) / blockSizeBytes);
+        }
+
+        int numChunks = (int) ((storeSizeBytes + chunkSizeBytes - 1) / chunkSizeBytes);
+        if (numChunks > chunks.length) {
+            ChannelBuffer[] grown = new ChannelBuffer[numChunks];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+
+        freeBytes += storeSizeBytes - this.storeSizeBytes;
+        this.storeSizeBytes = storeSizeBytes;
+        return true;
+    }
+
+    /**
+     * Commit all of the store's memory and touch every page of it, so that the operating system faults the
+     * memory in now rather than on its first use. Contents are left as they are.
+     *
+     * @return the number of bytes faulted in
+     */
+    public long preFault() {
+        while (commitChunk()) {
+            // keep going until the whole store is committed
+        }
+
+        long touched = 0;
+        for (int i = 0; i < committedChunks; i++) {
+            ChannelBuffer chunk = chunks[i];
+            for (int offset = 0; offset < chunk.capacity(); offset += PAGE_SIZE) {
+                chunk.setByte(offset, chunk.getByte(offset));
+            }
+            touched += chunk.capacity();
+        }
+        return touched;
+    }
+
+    /**
+     * Create the bit set tracking allocated blocks, with the bits beyond the committed blocks in its last word
+     * marked as in use so that they're never handed out.
+     */
+    private OpenBitSet newAllocationMap() {
+        OpenBitSet map = new OpenBitSet(committedBlocks);
+        map.set(committedBlocks, (long) map.getNumWords() << 6);
+        return map;
+    }
+
 
     /**
      * Rounds up a requested size to the nearest block width.
@@ -110,14 +272,23 @@ public class ByteBufferBlockStore {
 
         // null out the storage to allow the GC to get rid of it
         storageBuffer = null;
+        chunks = null;
     }
 
     protected void freeResources() throws IOException {
-        // noop
+        if (storageBuffer == null) {
+            for (int i = 0; i < committedChunks; i++) {
+                releaseChunk(chunks[i]);
+                chunks[i] = null;
+            }
+        }
     }
 
     private int markPos(int numBlocks) {
         int mark = allocated.mark(numBlocks);
+        while (mark == -1 && commitChunk()) {
+            mark = allocated.mark(numBlocks);
+        }
         if (mark == -1) throw new BadAllocationException("unable to allocate room; all blocks consumed");
         return mark;
     }
@@ -132,7 +303,7 @@ public class ByteBufferBlockStore {
      * Allocate a region in the block storage
      *
      * @param desiredSize size (in bytes) desired for the region
-     * @param expiry expiry time in ms since epoch
+     * @param expiry expiry time in seconds since epoch
      *@param timestamp allocation timestamp of the entry
      * @return the region descriptor
      */
@@ -145,8 +316,7 @@ public class ByteBufferBlockStore {
         freeBytes -= desiredBlockSize;
 
         // get the buffer to it
-        int position = pos * blockSizeBytes;
-        ChannelBuffer slice = storageBuffer.slice(position, desiredSize);
+        ChannelBuffer slice = get(pos, desiredSize);
         slice.writerIndex(0);
         slice.readerIndex(0);
 
@@ -154,7 +324,22 @@ public class ByteBufferBlockStore {
     }
 
     public ChannelBuffer get(int startBlock, int size) {
-        return storageBuffer.slice(startBlock * blockSizeBytes, size);
+        long position = (long) startBlock * blockSizeBytes;
+        int chunk = (int) (position / chunkSizeBytes);
+        int offset = (int) (position % chunkSizeBytes);
+
+        if (offset + size <= chunkSizeBytes) return chunks[chunk].slice(offset, size);
+
+        // the region straddles chunks
+        int count = 1 + (offset + size - 1) / chunkSizeBytes;
+        ChannelBuffer[] parts = new ChannelBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(size, chunkSizeBytes - offset);
+            parts[i] = chunks[chunk + i].slice(offset, length);
+            size -= length;
+            offset = 0;
+        }
+        return ChannelBuffers.wrappedBuffer(parts);
     }
 
     public void free(Region region) {
@@ -162,13 +347,13 @@ public class ByteBufferBlockStore {
         region.valid = false;
         region.slice = null;
         int pos = region.startBlock;
-        clear(pos, region.size / blockSizeBytes);
+        clear(pos, region.usedBlocks);
     }
 
     public void clear()
     {
         // say goodbye to the region list
-        allocated = new OpenBitSet(allocated.size());
+        allocated = newAllocationMap();
 
         // reset the # of free bytes back to the max size
         freeBytes = storeSizeBytes;
@@ -180,6 +365,13 @@ public class ByteBufferBlockStore {
         return storeSizeBytes;
     }
 
+    /**
+     * @return the amount of memory actually taken up by the store so far
+     */
+    public long getCommittedBytes() {
+        return committedBlocks * blockSizeBytes;
+    }
+
     public int getBlockSizeBytes() {
         return blockSizeBytes;
     }
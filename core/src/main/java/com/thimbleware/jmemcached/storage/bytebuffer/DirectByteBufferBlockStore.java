@@ -0,0 +1,77 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import com.thimbleware.jmemcached.util.DirectMemory;
+import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block storage in native memory, outside of the JVM heap.
+ *
+ * Keeps the cached data out of reach of the garbage collector, so that large caches can run with a small heap
+ * and short pauses. Memory is committed a chunk at a time as the store fills up, and released as soon as the
+ * store is closed rather than whenever the collector gets round to it.
+ */
+public final class DirectByteBufferBlockStore extends ByteBufferBlockStore {
+
+    private static final DirectByteBufferBlockStoreFactory DIRECT_BYTE_BUFFER_BLOCK_STORE_FACTORY = new DirectByteBufferBlockStoreFactory();
+
+    /**
+     * Construct a new block store in native memory.
+     * @param sizeBytes the size of the store
+     * @param blockSizeBytes the size of a block in the store
+     * @param chunkSizeBytes the amount of memory to commit at a time
+     */
+    private DirectByteBufferBlockStore(long sizeBytes, int blockSizeBytes, int chunkSizeBytes) {
+        super(blockSizeBytes);
+        initializeChunked(sizeBytes, chunkSizeBytes);
+    }
+
+    public static BlockStoreFactory getFactory() {
+        return DIRECT_BYTE_BUFFER_BLOCK_STORE_FACTORY;
+    }
+
+    @Override
+    protected ChannelBuffer allocateChunk(int sizeBytes) {
+        return new Chunk(DirectMemory.allocate(sizeBytes));
+    }
+
+    @Override
+    protected void releaseChunk(ChannelBuffer chunk) {
+        DirectMemory.release(((Chunk) chunk).memory);
+    }
+
+    /**
+     * A chunk of native memory. Wrapping a buffer slices it, and only the buffer the memory was allocated as can
+     * free it, so the chunk keeps that too.
+     */
+    private static final class Chunk extends ByteBufferBackedChannelBuffer {
+        private final ByteBuffer memory;
+
+        Chunk(ByteBuffer memory) {
+            super(memory);
+            this.memory = memory;
+        }
+    }
+
+    public static class DirectByteBufferBlockStoreFactory implements BlockStoreFactory<DirectByteBufferBlockStore> {
+
+        private final int chunkSizeBytes;
+
+        public DirectByteBufferBlockStoreFactory() {
+            this(DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * @param chunkSizeBytes the amount of memory to commit at a time
+         */
+        public DirectByteBufferBlockStoreFactory(int chunkSizeBytes) {
+            this.chunkSizeBytes = chunkSizeBytes;
+        }
+
+        public DirectByteBufferBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
+            return new DirectByteBufferBlockStore(sizeBytes, blockSizeBytes, chunkSizeBytes);
+        }
+    }
+}
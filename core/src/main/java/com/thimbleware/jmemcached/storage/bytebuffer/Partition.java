@@ -2,6 +2,7 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.TtlWeighting;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -13,6 +14,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public final class Partition {
     private static final int NUM_BUCKETS = 32768;
 
+    /**
+     * Offsets of the fields of a region record, after the record's total size: the size of the region, its
+     * used and start blocks, expiry and timestamp. The timestamp is the value of the partition's use clock when
+     * the entry was last used.
+     */
+    private static final int SIZE_OFFSET = 4;
+    private static final int EXPIRY_OFFSET = 16;
+    private static final int TIMESTAMP_OFFSET = 24;
+
     ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
 
     ChannelBuffer[] buckets = new ChannelBuffer[NUM_BUCKETS];
@@ -21,37 +31,120 @@ public final class Partition {
 
     int numberItems;
 
+    /**
+     * Counts the uses of the partition's entries, to order them by how recently they were used; unlike the
+     * system clock, it never gives two uses the same time. Guarded by the write lock.
+     */
+    private long useClock;
+
+    /**
+     * The bucket the next eviction starts sampling at; each eviction carries on from where the last one left off.
+     */
+    private int victimHand;
+
     Partition(ByteBufferBlockStore blockStore) {
         this.blockStore = blockStore;
     }
 
     public Region find(Key key) {
+        return find(key, false);
+    }
+
+    /**
+     * Find the region holding the value for a key.
+     *
+     * @param key the key to look for
+     * @param touch whether to record the access, so that the entry looks recently used to eviction; only with the
+     * write lock held
+     * @return the region, or null if the key isn't present
+     */
+    public Region find(Key key, boolean touch) {
+        int recordStart = findRecord(key);
+        if (recordStart < 0) return null;
+
+        ChannelBuffer regions = buckets[findBucketNum(key)];
+        int rsize = regions.getInt(recordStart + SIZE_OFFSET);
+        int rusedBlocks = regions.getInt(recordStart + SIZE_OFFSET + 4);
+        int rstartBlock = regions.getInt(recordStart + SIZE_OFFSET + 8);
+        long expiry = regions.getLong(recordStart + EXPIRY_OFFSET);
+        long timestamp = regions.getLong(recordStart + TIMESTAMP_OFFSET);
+
+        if (touch) regions.setLong(recordStart + TIMESTAMP_OFFSET, ++useClock);
+        return new Region(rsize, rusedBlocks, rstartBlock, blockStore.get(rstartBlock, rsize), expiry, timestamp);
+    }
+
+    /**
+     * @return the offset of the record for a key within its bucket, or -1 if the key isn't present
+     */
+    private int findRecord(Key key) {
         int bucket = findBucketNum(key);
 
-        if (buckets[bucket] == null) return null;
+        if (buckets[bucket] == null) return -1;
         ChannelBuffer regions = buckets[bucket].slice();
 
         regions.readerIndex(0);
         while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            int rsize = regions.readInt();
-            int rusedBlocks = regions.readInt();
-            int rstartBlock = regions.readInt();
-            long expiry = regions.readLong();
-            long timestamp = regions.readLong();
+            int recordStart = regions.readerIndex();
+            regions.skipBytes(32);
             int rkeySize = regions.readInt();
 
             if (rkeySize == key.bytes.capacity()) {
                 ChannelBuffer rkey = regions.readSlice(rkeySize);
 
                 key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return new Region(rsize, rusedBlocks, rstartBlock, blockStore.get(rstartBlock, rsize), expiry, timestamp);
+                if (rkey.equals(key.bytes)) return recordStart;
             } else {
                 regions.skipBytes(rkeySize);
             }
         }
 
-        return null;
+        return -1;
+    }
+
+    /**
+     * Write a new value for a key over its current one, if it fits in the blocks the region already has, and
+     * bring the key's record up to date. Unlike removing and adding the value, this neither frees nor allocates
+     * blocks, nor rebuilds the bucket; values which are updated without growing, counters above all, stay put.
+     *
+     * @param appended true if the value was appended to the one in the region, so that only the appended bytes
+     * need writing; see {@link LocalCacheElement#isAppendOf}
+     * @return false if the value doesn't fit, in which case nothing has changed
+     */
+    public boolean rewrite(Key key, Region region, LocalCacheElement e, boolean appended) {
+        int size = e.bufferSize();
+        if (size > region.usedBlocks * blockStore.getBlockSizeBytes()) return false;
+
+        int recordStart = findRecord(key);
+        if (recordStart < 0) return false;
+
+        ChannelBuffer slice = blockStore.get(region.startBlock, size);
+        if (appended) {
+            e.writeAppendedToBuffer(slice);
+        } else {
+            slice.writerIndex(0);
+            e.writeToBuffer(slice);
+        }
+
+        ChannelBuffer regions = buckets[findBucketNum(key)];
+        regions.setInt(recordStart + SIZE_OFFSET, size);
+        regions.setLong(recordStart + EXPIRY_OFFSET, e.getExpire());
+        regions.setLong(recordStart + TIMESTAMP_OFFSET, ++useClock);
+        return true;
+    }
+
+    /**
+     * Write the new expiration time and recache state of a touched value over its current one, and bring the
+     * key's record up to date, without writing anything else. See {@link LocalCacheElement#isTouchOf}.
+     */
+    public void touch(Key key, Region region, LocalCacheElement e) {
+        int recordStart = findRecord(key);
+        if (recordStart < 0) return;
+
+        e.writeTouchedToBuffer(region.slice);
+
+        ChannelBuffer regions = buckets[findBucketNum(key)];
+        regions.setLong(recordStart + EXPIRY_OFFSET, e.getExpire());
+        regions.setLong(recordStart + TIMESTAMP_OFFSET, ++useClock);
     }
 
     public boolean has(Key key) {
@@ -85,7 +178,12 @@ public final class Partition {
         return hash & (buckets.length - 1);
     }
 
+    /**
+     * Remove the record for a key and give its blocks back to the block store.
+     */
     public void remove(Key key, Region region) {
+        blockStore.free(region);
+
         int bucket = findBucketNum(key);
 
         ChannelBuffer newRegion = ChannelBuffers.dynamicBuffer(128);
@@ -102,7 +200,7 @@ public final class Partition {
             ChannelBuffer rkey = regions.readBytes(rkeySize);
 
             if (rkeySize != key.bytes.capacity() || !rkey.equals(key.bytes)) {
-                newRegion.writeBytes(regions.slice(pos, regions.readerIndex()));
+                newRegion.writeBytes(regions.slice(pos, regions.readerIndex() - pos));
             }
         }
 
@@ -112,7 +210,14 @@ public final class Partition {
     }
 
     public Region add(Key key, LocalCacheElement e) {
-        Region region = blockStore.alloc(e.bufferSize(), e.getExpire(), System.currentTimeMillis());
+        return add(key, e, 0);
+    }
+
+    /**
+     * @param reserve the number of spare bytes to allocate after the value, for it to be appended to in place
+     */
+    public Region add(Key key, LocalCacheElement e, int reserve) {
+        Region region = blockStore.alloc(e.bufferSize() + reserve, e.getExpire(), ++useClock);
         e.writeToBuffer(region.slice);
         int bucket = findBucketNum(key);
 
@@ -123,8 +228,7 @@ public final class Partition {
         outbuf.writeLong(region.expiry);
         outbuf.writeLong(region.timestamp);
         outbuf.writeInt(key.bytes.capacity());
-        key.bytes.readerIndex(0);
-        outbuf.writeBytes(key.bytes);
+        outbuf.writeBytes(key.bytes, 0, key.bytes.capacity());
 
         ChannelBuffer regions = buckets[bucket];
         if (regions == null) {
@@ -140,6 +244,67 @@ public final class Partition {
         return region;
     }
 
+    /**
+     * Evict one entry from the partition. A handful of records are sampled, starting at the bucket after the
+     * last one the previous eviction sampled, and the one which is cheapest to lose is removed: an expired entry
+     * if there is one, otherwise the one whose remaining time to live is smallest relative to how long ago it
+     * was last used. Of entries with the same time to live, the least recently used goes, so the choice depends
+     * only on the operations the partition has seen.
+     *
+     * @return the evicted key, or null if the partition is empty
+     */
+    public Key evict() {
+        long now = TtlWeighting.now();
+
+        ChannelBuffer[] sampleKeys = new ChannelBuffer[TtlWeighting.SAMPLE_SIZE];
+        long[] sampleExpiries = new long[TtlWeighting.SAMPLE_SIZE];
+        long[] sampleTimestamps = new long[TtlWeighting.SAMPLE_SIZE];
+        int samples = 0;
+
+        int i = 0;
+        for (; i < buckets.length && samples < sampleKeys.length; i++) {
+            ChannelBuffer bucket = buckets[(victimHand + i) & (buckets.length - 1)];
+            if (bucket == null) continue;
+
+            ChannelBuffer regions = bucket.slice();
+            regions.readerIndex(0);
+            while (regions.readableBytes() > 0 && samples < sampleKeys.length) {
+                regions.skipBytes(16);
+                long expiry = regions.readLong();
+                long timestamp = regions.readLong();
+                int rkeySize = regions.readInt();
+
+                sampleKeys[samples] = regions.readSlice(rkeySize);
+                sampleExpiries[samples] = expiry;
+                sampleTimestamps[samples] = timestamp;
+                samples++;
+            }
+        }
+        victimHand = (victimHand + i) & (buckets.length - 1);
+        if (samples == 0) return null;
+
+        int victim = -1;
+        long victimWeight = Long.MAX_VALUE;
+        for (int k = 0; k < samples; k++) {
+            // rank by recency among the sampled records, 0 being the least recently used
+            int rank = 0;
+            for (int j = 0; j < samples; j++) {
+                if (sampleTimestamps[j] < sampleTimestamps[k]) rank++;
+            }
+            long weight = TtlWeighting.weight(sampleExpiries[k], now, rank);
+            if (weight < victimWeight) {
+                victim = k;
+                victimWeight = weight;
+            }
+        }
+
+        Key key = new Key(sampleKeys[victim].copy());
+        Region region = find(key);
+        remove(key, region);
+
+        return key;
+    }
+
     public void clear() {
         for (ChannelBuffer bucket : buckets) {
             if (bucket != null)
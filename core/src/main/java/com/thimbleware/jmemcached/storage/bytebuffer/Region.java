@@ -4,6 +4,7 @@ import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -50,6 +51,13 @@ public final class Region {
         this.valid = true;
     }
 
+    /**
+     * @return the first block of the region in its store
+     */
+    public int getStartBlock() {
+        return startBlock;
+    }
+
     public Key keyFromRegion() {
         slice.readerIndex(0);
 
@@ -57,9 +65,25 @@ public final class Region {
         return new Key(slice.slice(slice.readerIndex(), length));
     }
 
+    /**
+     * @return the value in the region, copied out of it, as the blocks may be written over by the next update of
+     * the key while the value is still on its way to a client. The copy is on the heap, whatever memory the
+     * blocks are in, so that handing out values doesn't allocate native memory.
+     */
     public LocalCacheElement toValue() {
+        int length = slice.getInt(0);
+        ChannelBuffer copy = ChannelBuffers.buffer(slice.order(), length);
+        copy.writeBytes(slice, 0, length);
+        return LocalCacheElement.readFromBuffer(copy);
+    }
+
+    /**
+     * @return the value in the region, reading from the blocks themselves; only good for as long as the lock
+     * of the partition is held
+     */
+    public LocalCacheElement toView() {
         slice.readerIndex(0);
-        return LocalCacheElement.readFromBuffer(slice);
+        return LocalCacheElement.readView(slice);
     }
 
 }
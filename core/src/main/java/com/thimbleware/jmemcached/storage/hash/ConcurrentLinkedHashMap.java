@@ -17,14 +17,24 @@ package com.thimbleware.jmemcached.storage.hash;
  */
 
 import com.thimbleware.jmemcached.storage.CacheStorage;
-
+import com.thimbleware.jmemcached.storage.EvictionCandidateSource;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import com.thimbleware.jmemcached.storage.TtlWeighting;
+import com.thimbleware.jmemcached.util.StripedCounter;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -57,12 +67,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * approximation of an optimal algorithm, but suffers by being expensive to maintain.
  * The cost of reordering entries on the list during every access operation reduces
  * the concurrency and performance characteristics of this policy.
+ * <li> TTL aware: An LRU which samples a few of the least recently used entries and evicts
+ * the one which is cheapest to lose, preferring entries which have already expired and then
+ * those closest to their expiry time.
  * </ul>
  *
  * @author <a href="mailto:ben.manes@reardencommerce.com">Ben Manes</a>
  * @see http://code.google.com/p/concurrentlinkedhashmap/
  */
-public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends AbstractMap<K, V> implements Serializable, CacheStorage<K, V> {
+public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends AbstractMap<K, V> implements Serializable, CacheStorage<K, V>, EvictionCandidateSource<K>, StorageStatistics {
     private static final EvictionListener<?, ?> nullListener = new EvictionListener<Object, Object>() {
         public void onEviction(Object key, Object value) {
         }
@@ -76,7 +89,9 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
     final Node<K, V> sentinel;
     final Lock lock;
     final AtomicLong memoryCapacity;
+    final AtomicLong maximumMemoryCapacity;
     final AtomicLong memoryUsed;
+    transient StripedCounter evictions;
 
     /**
      * Creates a map with the specified eviction policy, maximum capacity, and at the default concurrency level.
@@ -152,7 +167,9 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         this.lock = new ReentrantLock();
         this.sentinel = new Node<K, V>(lock);
         this.memoryUsed = new AtomicLong(0);
+        this.evictions = new StripedCounter();
         this.memoryCapacity = new AtomicLong(maximumMemoryCapacity);
+        this.maximumMemoryCapacity = new AtomicLong(maximumMemoryCapacity);
     }
 
     /**
@@ -168,10 +185,35 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return memoryCapacity.get();
     }
 
+    /**
+     * @return the memory capacity last set for the map, which it may be running below while the heap is under
+     * pressure
+     */
+    public long getMaximumMemoryCapacity() {
+        return maximumMemoryCapacity.get();
+    }
+
     public long getMemoryUsed() {
         return memoryUsed.get();
     }
 
+    /**
+     * @return the number of entries evicted to keep the map within its capacities
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public Map<String, String> getStatistics() {
+        return Collections.singletonMap("evictions", String.valueOf(getEvictions()));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // a statistic of the map it was copied from; counting starts afresh
+        evictions = new StripedCounter();
+    }
+
     /**
      * Sets the maximum capacity of the map and eagerly evicts entries until it shrinks to the appropriate size.
      *
@@ -187,18 +229,34 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
     }
 
     /**
-     * Sets the maximum capacity of the map and eagerly evicts entries until it shrinks to the appropriate size.
+     * Sets the maximum memory capacity of the map and eagerly evicts entries until it shrinks to the appropriate size.
      *
-     * @param capacity The maximum capacity of the map.
+     * @param capacity The maximum memory capacity of the map, in bytes.
      */
-    public void setMemoryCapacity(int capacity) {
+    public void setMemoryCapacity(long capacity) {
         if (capacity < 0) {
             throw new IllegalArgumentException();
         }
+        this.maximumMemoryCapacity.set(capacity);
         this.memoryCapacity.set(capacity);
         while (evict()) {
         }
     }
+
+    /**
+     * Sets the memory capacity the map runs at for now, without changing its maximum, and evicts entries until
+     * it shrinks to the appropriate size. The capacity is never raised beyond the maximum.
+     *
+     * @param capacity The memory capacity of the map, in bytes.
+     */
+    void adjustMemoryCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.memoryCapacity.set(Math.min(capacity, getMaximumMemoryCapacity()));
+        while (evict()) {
+        }
+    }
     
     /**
      * Retrieves the maximum capacity of the map.
@@ -256,16 +314,17 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
      */
     private boolean evict() {
         while (isOverflow()) {
-            Node<K, V> node = sentinel.getNext();
+            Node<K, V> node = policy.selectVictim(this);
             if (node == sentinel) {
                 return false;
             } else if (policy.onEvict(this, node)) {
                 // Attempt to remove the node if it's still available
                 if (data.remove(node.getKey(), new Identity(node))) {
                     length.decrementAndGet();
-                    memoryUsed.addAndGet(-1 * node.getValue().size());
+                    memoryUsed.addAndGet(-1 * node.getValue().memorySize());
 
                     node.remove();
+                    evictions.increment();
                     listener.onEviction(node.getKey(), node.getValue());
                     return true;
                 }
@@ -274,6 +333,27 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public List<K> evictionCandidates(long bytesNeeded, int maxCandidates) {
+        List<K> candidates = new ArrayList<K>();
+        long bytesFreed = 0;
+        lock.lock();
+        try {
+            Node<K, V> node = sentinel.getNext();
+            while (node != sentinel && bytesFreed < bytesNeeded) {
+                if (candidates.size() == maxCandidates) return null;
+                candidates.add(node.getKey());
+                bytesFreed += node.getValue().memorySize();
+                node = node.getNext();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return candidates;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -296,12 +376,12 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             throw new IllegalArgumentException();
         }
         Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel, lock));
-        memoryUsed.addAndGet(value.size());
+        memoryUsed.addAndGet(value.memorySize());
         if (old == null) {
             return null;
         }
         else {
-            memoryUsed.addAndGet(-1 * old.getValue().size());
+            memoryUsed.addAndGet(-1 * old.getValue().memorySize());
             return old.getAndSetValue(value);
         }
     }
@@ -315,7 +395,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         }
         Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel, lock));
         if (old == null) {
-            memoryUsed.addAndGet(value.size());
+            memoryUsed.addAndGet(value.memorySize());
 
             return null;
         }
@@ -350,7 +430,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             return null;
         }
         length.decrementAndGet();
-        memoryUsed.addAndGet(-1 * node.getValue().size());
+        memoryUsed.addAndGet(-1 * node.getValue().memorySize());
         node.remove();
 
         return node.getValue();
@@ -363,7 +443,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         Node<K, V> node = data.get(key);
         if ((node != null) && node.value.equals(value) && data.remove(key, new Identity(node))) {
             length.decrementAndGet();
-            memoryUsed.addAndGet(-1 * node.getValue().size());
+            memoryUsed.addAndGet(-1 * node.getValue().memorySize());
             node.remove();
 
             return true;
@@ -381,8 +461,8 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         Node<K, V> node = data.get(key);
         if (node == null) return null;
         else {
-            memoryUsed.addAndGet(-1 * node.getValue().size());
-            memoryUsed.addAndGet(value.size());
+            memoryUsed.addAndGet(-1 * node.getValue().memorySize());
+            memoryUsed.addAndGet(value.memorySize());
 
             return node.getAndSetValue(value);
         }
@@ -400,13 +480,65 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         else {
             final boolean val = node.casValue(oldValue, newValue);
             if (val) {
-                memoryUsed.addAndGet(-1 * oldValue.size());
-                memoryUsed.addAndGet(newValue.size());
+                memoryUsed.addAndGet(-1 * oldValue.memorySize());
+                memoryUsed.addAndGet(newValue.memorySize());
             }
             return val;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public V compute(K key, RemappingFunction<K, V> function) {
+        return compute(key, function, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public V computeIfPresent(K key, RemappingFunction<K, V> function) {
+        return compute(key, function, true);
+    }
+
+    /**
+     * Update a value with a compare-and-set on its node, retrying if another writer got there first, or if the
+     * node was removed from the map, or replaced in it, while the value was being computed.
+     */
+    private V compute(K key, RemappingFunction<K, V> function, boolean onlyIfPresent) {
+        while (true) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                if (onlyIfPresent) return null;
+
+                V value = function.apply(key, null);
+                if (value == null || putIfAbsent(key, value) == null) return value;
+            } else {
+                V old = node.getValue();
+                V value = function.apply(key, old);
+                if (value == old) {
+                    policy.onAccess(this, node);
+                    return old;
+                }
+
+                if (value == null) {
+                    if (remove(key, old)) return null;
+                } else if (node.casValue(old, value)) {
+                    if (data.get(key) != node) {
+                        // the update went to a node no longer in the map; give it back the value whoever removed
+                        // it accounted for, and start again from the node there now, if any
+                        node.casValue(value, old);
+                        continue;
+                    }
+                    memoryUsed.addAndGet(value.memorySize() - old.memorySize());
+                    policy.onAccess(this, node);
+                    evict();
+                    return value;
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -495,6 +627,46 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
                 return true;
             }
+        },
+
+        /**
+         * Evicts entries based on how recently they are used, but weighs the remaining time to live of the least
+         * recently used entries against their recency. Entries which have already expired are evicted first.
+         */
+        TTL_AWARE() {
+            @Override
+            <K, V extends SizedItem> void onAccess(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                node.moveToTail();
+            }
+            @Override
+            <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                return true;
+            }
+            @Override
+            <K, V extends SizedItem> Node<K, V> selectVictim(ConcurrentLinkedHashMap<K, V> map) {
+                final long now = TtlWeighting.now();
+                Node<K, V> victim = map.sentinel;
+                long victimWeight = Long.MAX_VALUE;
+
+                map.lock.lock();
+                try {
+                    Node<K, V> node = map.sentinel.getNext();
+                    for (int rank = 0; rank < TtlWeighting.SAMPLE_SIZE && node != map.sentinel; rank++) {
+                        V value = node.getValue();
+                        long expire = value instanceof ExpiringItem ? ((ExpiringItem) value).getExpire() : 0;
+                        long weight = TtlWeighting.weight(expire, now, rank);
+                        if (weight < victimWeight) {
+                            victim = node;
+                            victimWeight = weight;
+                            if (weight < 0) break;
+                        }
+                        node = node.getNext();
+                    }
+                } finally {
+                    map.lock.unlock();
+                }
+                return victim;
+            }
         };
 
         /**
@@ -506,6 +678,13 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
          * Determines whether to evict the node at the head of the list.
          */
         abstract <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node);
+
+        /**
+         * Picks the node to offer for eviction next; the sentinel if the list is empty.
+         */
+        <K, V extends SizedItem> Node<K, V> selectVictim(ConcurrentLinkedHashMap<K, V> map) {
+            return map.sentinel.getNext();
+        }
     }
 
     /**
@@ -0,0 +1,10 @@
+package com.thimbleware.jmemcached.storage.hash;
+
+/**
+ */
+public interface ExpiringItem extends SizedItem {
+    /**
+     * @return the time (in seconds since the epoch) the item expires at, or 0 if it never expires
+     */
+    long getExpire();
+}
@@ -0,0 +1,209 @@
+package com.thimbleware.jmemcached.storage.hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shrinks the memory capacity of {@link ConcurrentLinkedHashMap}s when the JVM heap comes under pressure, and
+ * grows it back gradually once the pressure is gone.
+ *
+ * Pressure is detected two ways: the heap pools which support it are given a collection usage threshold, so the
+ * JVM notifies us when a pool is still above it after a garbage collection; and the time spent collecting is
+ * sampled periodically, so that back to back collections are noticed even when no threshold is crossed. Either
+ * one cuts each map's capacity to a fraction of what it currently holds, which evicts entries right away. While
+ * the heap stays below the thresholds the capacity is raised a step at a time, up to the map's maximum, which
+ * follows any limit set on the map while it runs.
+ *
+ * The thresholds and notifications belong to the whole JVM, so a process should run one monitor, given all the
+ * maps sharing its heap, and stop it when it shuts down.
+ */
+public final class MemoryPressureMonitor implements NotificationListener {
+
+    final Logger log = LoggerFactory.getLogger(MemoryPressureMonitor.class);
+
+    /**
+     * The share of a heap pool which may still be in use after a collection before the cache is shrunk.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.8;
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    /**
+     * The share of its current contents the cache is cut down to under pressure.
+     */
+    static final double SHRINK_FACTOR = 0.8;
+
+    /**
+     * The share of the maximum capacity the cache grows by in each interval without pressure.
+     */
+    static final double GROWTH_STEP = 0.05;
+
+    /**
+     * The share of wall clock time spent in garbage collection that counts as pressure.
+     */
+    static final double GC_TIME_LIMIT = 0.25;
+
+    private final List<ConcurrentLinkedHashMap<?, ?>> maps;
+    private final double threshold;
+    private final long intervalMillis;
+
+    private final AtomicLong pressureEvents = new AtomicLong();
+    private volatile long lastPressure;
+    private long lastCheck;
+    private long lastCollectionTime;
+
+    private Timer timer;
+
+    /**
+     * @param maps the maps to adjust, which share the heap
+     * @param threshold the share of each heap pool which may stay in use after a collection
+     * @param intervalMillis how often to sample garbage collection time and to grow the capacity
+     */
+    public MemoryPressureMonitor(List<? extends ConcurrentLinkedHashMap<?, ?>> maps, double threshold, long intervalMillis) {
+        this.maps = new ArrayList<ConcurrentLinkedHashMap<?, ?>>(maps);
+        this.threshold = threshold;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public MemoryPressureMonitor(List<? extends ConcurrentLinkedHashMap<?, ?>> maps) {
+        this(maps, DEFAULT_THRESHOLD, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public MemoryPressureMonitor(ConcurrentLinkedHashMap<?, ?> map) {
+        this(Collections.singletonList(map));
+    }
+
+    public synchronized void start() {
+        if (timer != null) return;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * threshold));
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+
+        lastCheck = System.currentTimeMillis();
+        lastCollectionTime = collectionTime();
+
+        timer = new Timer("jmemcached-memory-pressure", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                check();
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) return;
+
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (Exception e) {
+            log.debug("unable to remove memory notification listener", e);
+        }
+        timer.cancel();
+        timer = null;
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) return;
+
+        // evicting may take a while; don't hold up the thread delivering notifications
+        synchronized (this) {
+            if (timer != null) timer.schedule(new TimerTask() {
+                public void run() {
+                    relievePressure();
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * Cut the capacity of each map to a fraction of what it holds now, evicting entries to get there.
+     */
+    public synchronized void relievePressure() {
+        lastPressure = System.currentTimeMillis();
+        pressureEvents.incrementAndGet();
+
+        for (ConcurrentLinkedHashMap<?, ?> map : maps) {
+            long current = Math.min(map.getMemoryCapacity(), map.getMemoryUsed());
+            long target = Math.max(map.getMaximumMemoryCapacity() / 10, (long) (current * SHRINK_FACTOR));
+            if (target < map.getMemoryCapacity()) {
+                log.warn("heap under pressure; reducing cache memory capacity to " + target + " bytes");
+                map.adjustMemoryCapacity(target);
+            }
+        }
+    }
+
+    /**
+     * Raise the capacity of each map by one step, unless it's at its maximum already.
+     */
+    public synchronized void recoverCapacity() {
+        for (ConcurrentLinkedHashMap<?, ?> map : maps) {
+            long capacity = map.getMemoryCapacity();
+            long maximum = map.getMaximumMemoryCapacity();
+            if (capacity >= maximum) continue;
+
+            long target = Math.min(maximum, capacity + (long) (maximum * GROWTH_STEP));
+            log.info("raising cache memory capacity to " + target + " bytes");
+            map.adjustMemoryCapacity(target);
+        }
+    }
+
+    synchronized void check() {
+        long now = System.currentTimeMillis();
+        long collectionTime = collectionTime();
+        long elapsed = Math.max(1, now - lastCheck);
+        boolean collecting = collectionTime - lastCollectionTime > elapsed * GC_TIME_LIMIT;
+        lastCheck = now;
+        lastCollectionTime = collectionTime;
+
+        if (collecting) {
+            relievePressure();
+        } else if (now - lastPressure >= intervalMillis && !aboveThreshold()) {
+            recoverCapacity();
+        }
+    }
+
+    private boolean aboveThreshold() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getCollectionUsageThreshold() > 0 && pool.isCollectionUsageThresholdExceeded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long collectionTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of times the cache has been shrunk because of heap pressure
+     */
+    public long getPressureEvents() {
+        return pressureEvents.get();
+    }
+}
@@ -4,4 +4,9 @@ package com.thimbleware.jmemcached.storage.hash;
  */
 public interface SizedItem {
     int size();
+
+    /**
+     * @return the memory the item is accounted for; at least its size, more if it keeps room to grow
+     */
+    int memorySize();
 }
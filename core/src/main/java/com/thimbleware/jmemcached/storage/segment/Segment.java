@@ -0,0 +1,73 @@
+package com.thimbleware.jmemcached.storage.segment;
+
+import com.thimbleware.jmemcached.util.DirectMemory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size, append-only region of memory holding the records of items with similar times to live.
+ *
+ * Each record is laid out as [record size int][key hash int][accessed byte] followed by the item as written by
+ * {@link com.thimbleware.jmemcached.LocalCacheElement#writeToBuffer}. Records are never freed individually;
+ * deleting or overwriting an item only reduces the live byte count, and the space is recovered when the whole
+ * segment is expired or evicted.
+ */
+final class Segment {
+
+    static final int HEADER_SIZE = 9;
+    static final int HASH_OFFSET = 4;
+    static final int ACCESSED_OFFSET = 8;
+
+    final int id;
+    final ChannelBuffer buffer;
+    private final ByteBuffer memory;
+
+    int ttlBucket;
+    int writeOffset;
+    int liveBytes;
+    int liveItems;
+
+    /**
+     * The latest expiry time (in seconds) of any item written to the segment, or 0 if one of them never expires.
+     */
+    long maxExpire;
+
+    Segment(int id, int size) {
+        this.id = id;
+        this.memory = DirectMemory.allocate(size);
+        this.buffer = ChannelBuffers.wrappedBuffer(memory);
+    }
+
+    /**
+     * Give the segment's memory back; it can't be used afterwards.
+     */
+    void free() {
+        DirectMemory.release(memory);
+    }
+
+    int remaining() {
+        return buffer.capacity() - writeOffset;
+    }
+
+    void reset(int ttlBucket) {
+        this.ttlBucket = ttlBucket;
+        this.writeOffset = 0;
+        this.liveBytes = 0;
+        this.liveItems = 0;
+        this.maxExpire = -1;
+    }
+
+    void recordExpire(long expire) {
+        if (maxExpire == 0 || expire == 0) maxExpire = 0;
+        else if (expire > maxExpire) maxExpire = expire;
+    }
+
+    /**
+     * @return true if every item ever written to the segment has expired
+     */
+    boolean isExpired(long now) {
+        return maxExpire > 0 && maxExpire < now;
+    }
+}
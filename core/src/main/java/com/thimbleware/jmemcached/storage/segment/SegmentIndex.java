@@ -0,0 +1,148 @@
+package com.thimbleware.jmemcached.storage.segment;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash index from key hashes to record locations within segments.
+ *
+ * Each slot costs twelve bytes: the (never zero) hash of the key and the location of its record, packed as
+ * the segment id in the upper 32 bits and the offset within the segment in the lower 32 bits. Keys are not
+ * kept in the index; callers walk the probe sequence for a hash and compare against the record itself.
+ * Collisions are resolved by linear probing, and removal shifts following entries back so that no
+ * tombstones are needed.
+ *
+ * Not thread safe; {@link SegmentedCacheStorage} guards it with its lock.
+ */
+final class SegmentIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] hashes;
+    private long[] locations;
+    private int mask;
+    private int size;
+
+    SegmentIndex(int expectedItems) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedItems * 2 && capacity < (1 << 30)) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        locations = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Spread the bits of a key's hash code, never returning 0 as that marks a free slot.
+     */
+    static int hash(int h) {
+        // single-word Wang/Jenkins hash, as used by the block storage
+        h += (h <<  15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h <<   3);
+        h ^= (h >>>  6);
+        h += (h <<   2) + (h << 14);
+        h ^= (h >>> 16);
+        return h == 0 ? 1 : h;
+    }
+
+    static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    int home(int hash) {
+        return hash & mask;
+    }
+
+    int next(int slot) {
+        return (slot + 1) & mask;
+    }
+
+    boolean isFree(int slot) {
+        return hashes[slot] == 0;
+    }
+
+    int hashAt(int slot) {
+        return hashes[slot];
+    }
+
+    long locationAt(int slot) {
+        return locations[slot];
+    }
+
+    void setLocation(int slot, long location) {
+        locations[slot] = location;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int slots() {
+        return hashes.length;
+    }
+
+    /**
+     * Find the slot of the entry for a given record.
+     * @return the slot, or -1 if the record isn't live
+     */
+    int find(int hash, long location) {
+        for (int slot = home(hash); !isFree(slot); slot = next(slot)) {
+            if (hashes[slot] == hash && locations[slot] == location) return slot;
+        }
+        return -1;
+    }
+
+    void insert(int hash, long location) {
+        if (size + 1 > (hashes.length >> 1) + (hashes.length >> 2)) grow();
+
+        int slot = home(hash);
+        while (!isFree(slot)) slot = next(slot);
+        hashes[slot] = hash;
+        locations[slot] = location;
+        size++;
+    }
+
+    void removeAt(int slot) {
+        int hole = slot;
+        for (int i = next(slot); !isFree(i); i = next(i)) {
+            int home = home(hashes[i]);
+            // the entry can fill the hole unless its home lies cyclically within (hole, i]
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                hashes[hole] = hashes[i];
+                locations[hole] = locations[i];
+                hole = i;
+            }
+        }
+        hashes[hole] = 0;
+        locations[hole] = 0;
+        size--;
+    }
+
+    void clear() {
+        Arrays.fill(hashes, 0);
+        Arrays.fill(locations, 0L);
+        size = 0;
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        long[] oldLocations = locations;
+        allocate(oldHashes.length << 1);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) insert(oldHashes[i], oldLocations[i]);
+        }
+    }
+}
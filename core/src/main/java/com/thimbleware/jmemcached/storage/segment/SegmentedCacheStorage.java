@@ -0,0 +1,715 @@
+package com.thimbleware.jmemcached.storage.segment;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.NotStoredException;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import com.thimbleware.jmemcached.storage.TtlWeighting;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log structured cache storage. Items are appended to large, fixed size segments outside of the JVM heap, and a
+ * compact hash index ({@link SegmentIndex}) maps keys to their records.
+ *
+ * Segments are grouped by time to live: each TTL bucket, covering remaining lifetimes between two powers of two
+ * seconds, appends to its own open segment and keeps its full ("sealed") segments in write order. As items in a
+ * segment expire at about the same time, expiry reclaims the oldest segment of a bucket as a whole once the last
+ * of its items is dead, and a segment whose items have all been deleted or overwritten is reclaimed immediately.
+ *
+ * When no segment is free the least useful of the buckets' oldest segments is evicted: the one with the fewest
+ * live bytes, weighted by how long they have left to live. Eviction merges rather than drops outright; items in
+ * the victim which have been read since they were written are copied into their bucket's open segment while
+ * it has room (or compacted within the victim, when it is about to become that open segment), and only the
+ * rest are discarded.
+ *
+ * There is no per-item allocation or free list, so memory doesn't fragment and each item costs only its record
+ * header plus one index slot.
+ *
+ * The capacity can be changed while the storage is in use. Raising it allows more segments to be allocated;
+ * lowering it frees segments which aren't in use at once, and the rest one at a time, each time a new segment is
+ * needed, by evicting it.
+ */
+public final class SegmentedCacheStorage implements CacheStorage<Key, LocalCacheElement>, StorageStatistics {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Bucket 0 holds items which never expire; bucket n holds items with fewer than 2^n seconds left to live.
+     */
+    static final int TTL_BUCKETS = 24;
+
+    /**
+     * Offset of the expiry time within an item, after its size.
+     */
+    private static final int EXPIRE_OFFSET = 4;
+
+    /**
+     * Offset of the key length within an item, after its size and expiry time.
+     */
+    private static final int KEY_OFFSET = 12;
+
+    private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+
+    private final int segmentSize;
+    private volatile int maximumSegments;
+    private volatile int maximumItems;
+
+    private Segment[] segments;
+    private int allocatedSegments;
+    private final LinkedList<Integer> retiredIds = new LinkedList<Integer>();
+    private final LinkedList<Segment> freeSegments = new LinkedList<Segment>();
+    private final Segment[] openSegments = new Segment[TTL_BUCKETS];
+    private final List<LinkedList<Segment>> sealedSegments;
+
+    private final SegmentIndex index;
+
+    private volatile int numberItems;
+    private volatile long usedBytes;
+
+    private long segmentEvictions;
+    private long segmentExpirations;
+    private long evictedItems;
+    private long mergedItems;
+
+    /**
+     * @param segmentSize the size of each segment in bytes; items larger than this can't be stored
+     * @param maximumSizeBytes the total amount of memory to use for segments
+     * @param maximumItems the maximum number of items to store, or 0 for no limit
+     */
+    public SegmentedCacheStorage(int segmentSize, long maximumSizeBytes, int maximumItems) {
+        this.segmentSize = segmentSize;
+        this.maximumSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maximumSizeBytes / segmentSize));
+        this.maximumItems = maximumItems;
+
+        this.segments = new Segment[maximumSegments];
+        this.sealedSegments = new ArrayList<LinkedList<Segment>>(TTL_BUCKETS);
+        for (int i = 0; i < TTL_BUCKETS; i++) {
+            sealedSegments.add(new LinkedList<Segment>());
+        }
+        this.index = new SegmentIndex(maximumItems > 0 ? Math.min(maximumItems, 1 << 20) : 1024);
+    }
+
+    static int ttlBucket(long expire, long now) {
+        if (expire == 0) return 0;
+        long remaining = expire - now;
+        if (remaining <= 0) return 1;
+        return Math.min(TTL_BUCKETS - 1, 1 + (64 - Long.numberOfLeadingZeros(remaining)));
+    }
+
+    /**
+     * Find the index slot of a key. Must be called with the lock held.
+     * @return the slot, or -1 if the key isn't present
+     */
+    private int find(Key key, int hash) {
+        for (int slot = index.home(hash); !index.isFree(slot); slot = index.next(slot)) {
+            if (index.hashAt(slot) == hash && keyMatches(index.locationAt(slot), key)) return slot;
+        }
+        return -1;
+    }
+
+    private boolean keyMatches(long location, Key key) {
+        ChannelBuffer buffer = segments[SegmentIndex.segmentOf(location)].buffer;
+        int item = SegmentIndex.offsetOf(location) + Segment.HEADER_SIZE;
+
+        int keyLength = buffer.getInt(item + KEY_OFFSET);
+        if (keyLength != key.bytes.capacity()) return false;
+
+        key.bytes.readerIndex(0);
+        return buffer.slice(item + KEY_OFFSET + 4, keyLength).equals(key.bytes);
+    }
+
+    private LocalCacheElement read(long location) {
+        ChannelBuffer buffer = segments[SegmentIndex.segmentOf(location)].buffer;
+        int offset = SegmentIndex.offsetOf(location);
+        int recordSize = buffer.getInt(offset);
+
+        // copy out of the segment, as it will be reused once it's evicted
+        return LocalCacheElement.readFromBuffer(buffer.copy(offset + Segment.HEADER_SIZE, recordSize - Segment.HEADER_SIZE));
+    }
+
+    /**
+     * Remove the entry in an index slot, and reclaim its segment straight away if nothing else in it is live.
+     * Must be called with the write lock held.
+     */
+    private void removeAt(int slot) {
+        long location = index.locationAt(slot);
+        Segment segment = segments[SegmentIndex.segmentOf(location)];
+        int recordSize = segment.buffer.getInt(SegmentIndex.offsetOf(location));
+
+        index.removeAt(slot);
+        segment.liveBytes -= recordSize;
+        segment.liveItems--;
+        numberItems--;
+        usedBytes -= recordSize;
+
+        if (segment.liveItems == 0 && openSegments[segment.ttlBucket] != segment) {
+            sealedSegments.get(segment.ttlBucket).remove(segment);
+            freeSegments.addLast(segment);
+        }
+    }
+
+    /**
+     * Reject an item which is larger than a segment, before anything is removed to make way for it.
+     */
+    private void checkSize(LocalCacheElement item) {
+        if (Segment.HEADER_SIZE + item.bufferSize() > segmentSize) {
+            throw new NotStoredException("item larger than a segment of " + segmentSize + " bytes");
+        }
+    }
+
+    /**
+     * Append an item to the open segment of its TTL bucket, which it must fit in. Must be called with the write
+     * lock held.
+     */
+    private void store(Key key, LocalCacheElement item) {
+        int recordSize = Segment.HEADER_SIZE + item.bufferSize();
+
+        while (maximumItems > 0 && numberItems >= maximumItems) {
+            if (!evictSegment()) break;
+        }
+
+        long now = TtlWeighting.now();
+        int bucket = ttlBucket(item.getExpire(), now);
+        Segment segment = openSegments[bucket];
+        if (segment == null || segment.remaining() < recordSize) {
+            if (segment != null) sealedSegments.get(bucket).addLast(segment);
+            openSegments[bucket] = null;
+
+            segment = allocateSegment(bucket, recordSize);
+            if (segment == null) throw new NotStoredException("no segment could be allocated");
+            openSegments[bucket] = segment;
+        }
+
+        int offset = segment.writeOffset;
+        int hash = SegmentIndex.hash(key.hashCode());
+        segment.buffer.setInt(offset, recordSize);
+        segment.buffer.setInt(offset + Segment.HASH_OFFSET, hash);
+        segment.buffer.setByte(offset + Segment.ACCESSED_OFFSET, 0);
+
+        ChannelBuffer out = segment.buffer.slice(offset + Segment.HEADER_SIZE, recordSize - Segment.HEADER_SIZE);
+        out.writerIndex(0);
+        item.writeToBuffer(out);
+        key.bytes.readerIndex(0);
+
+        segment.writeOffset += recordSize;
+        segment.liveBytes += recordSize;
+        segment.liveItems++;
+        segment.recordExpire(item.getExpire());
+
+        index.insert(hash, SegmentIndex.location(segment.id, offset));
+        numberItems++;
+        usedBytes += recordSize;
+    }
+
+    /**
+     * Find a segment for a bucket to append to: a free one if possible, otherwise one freed by expiry or eviction.
+     * Must be called with the write lock held.
+     *
+     * @param bucket the TTL bucket the segment is for
+     * @param reserve the number of bytes which must be free in the segment
+     */
+    private Segment allocateSegment(int bucket, int reserve) {
+        trim();
+
+        Segment segment = freeSegments.poll();
+        if (segment == null && segmentCount() < maximumSegments) {
+            segment = newSegment();
+        }
+        if (segment == null && expireSegments()) {
+            segment = freeSegments.poll();
+        }
+        if (segment == null) {
+            Segment victim = detachVictim();
+            if (victim == null) return null;
+            segmentEvictions++;
+
+            if (victim.ttlBucket == bucket) {
+                // compact the hot items to the front of the victim and carry on appending after them
+                int limit = Math.min(segmentSize / 2, segmentSize - reserve);
+                release(victim, victim, limit);
+                return victim;
+            }
+            release(victim, openSegments[victim.ttlBucket], segmentSize);
+            segment = freeSegments.poll();
+        }
+        segment.reset(bucket);
+        return segment;
+    }
+
+    private int segmentCount() {
+        return allocatedSegments - retiredIds.size();
+    }
+
+    private Segment newSegment() {
+        int id;
+        if (!retiredIds.isEmpty()) {
+            id = retiredIds.removeFirst();
+        } else {
+            id = allocatedSegments++;
+            if (id == segments.length) {
+                Segment[] grown = new Segment[Math.max(maximumSegments, id + 1)];
+                System.arraycopy(segments, 0, grown, 0, id);
+                segments = grown;
+            }
+        }
+        Segment segment = new Segment(id, segmentSize);
+        segments[id] = segment;
+        return segment;
+    }
+
+    /**
+     * Free the memory of a segment which is no longer needed after the capacity has been lowered.
+     */
+    private void retire(Segment segment) {
+        freeSegments.remove(segment);
+        segment.free();
+        segments[segment.id] = null;
+        retiredIds.addLast(segment.id);
+    }
+
+    /**
+     * Work towards a lowered capacity: free segments go at once, but only one segment in use is evicted per call,
+     * so that the storage shrinks gradually. Must be called with the write lock held.
+     */
+    private void trim() {
+        retireFreeSegments();
+        if (segmentCount() > maximumSegments && !expireSegments()) {
+            Segment victim = detachVictim();
+            if (victim != null) {
+                release(victim, openSegments[victim.ttlBucket], segmentSize);
+                segmentEvictions++;
+                retire(victim);
+            }
+        }
+        retireFreeSegments();
+    }
+
+    private void retireFreeSegments() {
+        while (segmentCount() > maximumSegments && !freeSegments.isEmpty()) {
+            retire(freeSegments.getLast());
+        }
+    }
+
+    /**
+     * Reclaim the oldest segment of each bucket for as long as everything in it has expired.
+     * @return true if at least one segment was reclaimed
+     */
+    private boolean expireSegments() {
+        long now = TtlWeighting.now();
+        boolean reclaimed = false;
+        for (LinkedList<Segment> sealed : sealedSegments) {
+            while (!sealed.isEmpty() && sealed.getFirst().isExpired(now)) {
+                release(sealed.removeFirst(), null, 0);
+                segmentExpirations++;
+                reclaimed = true;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Free up at least one segment, by expiry if possible and by eviction otherwise.
+     * @return false if there was nothing to free
+     */
+    private boolean evictSegment() {
+        if (expireSegments()) return true;
+
+        Segment victim = detachVictim();
+        if (victim == null) return false;
+
+        release(victim, openSegments[victim.ttlBucket], segmentSize);
+        segmentEvictions++;
+        return true;
+    }
+
+    /**
+     * Choose the least useful of the buckets' oldest segments, weighing the bytes still live in it by how long they
+     * have left to live, and take it out of its bucket.
+     * @return the segment, or null if there are no segments in use
+     */
+    private Segment detachVictim() {
+        long now = TtlWeighting.now();
+        Segment victim = null;
+        long victimWeight = Long.MAX_VALUE;
+        for (int bucket = 0; bucket < TTL_BUCKETS; bucket++) {
+            Segment candidate = sealedSegments.get(bucket).peek();
+            if (candidate == null) continue;
+
+            long weight = candidate.liveBytes * TtlWeighting.weight(candidate.maxExpire, now, 0);
+            if (weight < victimWeight) {
+                victim = candidate;
+                victimWeight = weight;
+            }
+        }
+
+        if (victim != null) {
+            sealedSegments.get(victim.ttlBucket).remove(victim);
+        } else {
+            // no sealed segments; every segment is being written to, so fall back to the fullest of those
+            for (int bucket = 0; bucket < TTL_BUCKETS; bucket++) {
+                Segment candidate = openSegments[bucket];
+                if (candidate != null && (victim == null || candidate.writeOffset > victim.writeOffset)) victim = candidate;
+            }
+            if (victim != null) openSegments[victim.ttlBucket] = null;
+        }
+        return victim;
+    }
+
+    /**
+     * Drop the live items in a segment from the index. Items which have been read since they were written are
+     * merged into the target segment instead, for as long as it has room below the limit; the target may be the
+     * segment itself, in which case they are compacted to its front. Unless it is its own target, the segment
+     * is returned to the free list.
+     *
+     * @param segment the segment to empty
+     * @param target the segment to keep recently read items in, or null to drop everything
+     * @param limit the offset in the target that kept items may not extend past
+     */
+    private void release(Segment segment, Segment target, int limit) {
+        long now = TtlWeighting.now();
+        ChannelBuffer buffer = segment.buffer;
+        int end = segment.writeOffset;
+
+        if (target == segment) {
+            segment.writeOffset = 0;
+            segment.liveBytes = 0;
+            segment.liveItems = 0;
+            segment.maxExpire = -1;
+        }
+
+        for (int offset = 0; offset < end; ) {
+            int recordSize = buffer.getInt(offset);
+            int hash = buffer.getInt(offset + Segment.HASH_OFFSET);
+            int slot = index.find(hash, SegmentIndex.location(segment.id, offset));
+
+            if (slot >= 0) {
+                long expire = buffer.getLong(offset + Segment.HEADER_SIZE + EXPIRE_OFFSET);
+                boolean keep = target != null && target.writeOffset + recordSize <= limit
+                        && buffer.getByte(offset + Segment.ACCESSED_OFFSET) != 0
+                        && (expire == 0 || expire >= now);
+
+                if (keep) {
+                    int targetOffset = target.writeOffset;
+                    if (target == segment) {
+                        // moving towards the front of the same segment, so never past what is still to be read
+                        byte[] record = new byte[recordSize];
+                        buffer.getBytes(offset, record);
+                        buffer.setBytes(targetOffset, record);
+                    } else {
+                        target.buffer.setBytes(targetOffset, buffer, offset, recordSize);
+                    }
+                    // it has to be read again to survive the next eviction too
+                    target.buffer.setByte(targetOffset + Segment.ACCESSED_OFFSET, 0);
+                    target.writeOffset += recordSize;
+                    target.liveBytes += recordSize;
+                    target.liveItems++;
+                    target.recordExpire(expire);
+                    index.setLocation(slot, SegmentIndex.location(target.id, targetOffset));
+                    mergedItems++;
+                } else {
+                    index.removeAt(slot);
+                    numberItems--;
+                    usedBytes -= recordSize;
+                    if (target != null) evictedItems++;
+                }
+            }
+            offset += recordSize;
+        }
+
+        if (target != segment) {
+            segment.reset(segment.ttlBucket);
+            freeSegments.addLast(segment);
+        }
+    }
+
+    public final LocalCacheElement get(Object okey) {
+        if (!(okey instanceof Key)) return null;
+        Key key = (Key) okey;
+
+        storageLock.readLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0) return null;
+
+            long location = index.locationAt(slot);
+            // readers race on this under the shared lock, but they all write the same value
+            segments[SegmentIndex.segmentOf(location)].buffer.setByte(SegmentIndex.offsetOf(location) + Segment.ACCESSED_OFFSET, 1);
+            return read(location);
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+
+    public final LocalCacheElement put(Key key, LocalCacheElement item) {
+        checkSize(item);
+        storageLock.writeLock().lock();
+        try {
+            LocalCacheElement old = null;
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot >= 0) {
+                old = read(index.locationAt(slot));
+                removeAt(slot);
+            }
+            store(key, item);
+            return old;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final LocalCacheElement putIfAbsent(Key key, LocalCacheElement item) {
+        checkSize(item);
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot >= 0) return read(index.locationAt(slot));
+
+            store(key, item);
+            return null;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
+        checkSize(replace);
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0 || !read(index.locationAt(slot)).equals(original)) return false;
+
+            removeAt(slot);
+            store(key, replace);
+            return true;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final LocalCacheElement replace(Key key, LocalCacheElement replace) {
+        checkSize(replace);
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0) return null;
+
+            LocalCacheElement old = read(index.locationAt(slot));
+            removeAt(slot);
+            store(key, replace);
+            return old;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final LocalCacheElement compute(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return compute(key, function, false);
+    }
+
+    public final LocalCacheElement computeIfPresent(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return compute(key, function, true);
+    }
+
+    private LocalCacheElement compute(Key key, RemappingFunction<Key, LocalCacheElement> function, boolean onlyIfPresent) {
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0 && onlyIfPresent) return null;
+
+            LocalCacheElement old = slot < 0 ? null : read(index.locationAt(slot));
+            LocalCacheElement value = function.apply(key, old);
+            if (value == old) return old;
+
+            if (value != null) checkSize(value);
+            if (slot >= 0) removeAt(slot);
+            if (value != null) store(key, value);
+            return value;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final LocalCacheElement remove(Object okey) {
+        if (!(okey instanceof Key)) return null;
+        Key key = (Key) okey;
+
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0) return null;
+
+            LocalCacheElement old = read(index.locationAt(slot));
+            removeAt(slot);
+            return old;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final boolean remove(Object okey, Object value) {
+        if (!(okey instanceof Key) || (!(value instanceof LocalCacheElement))) return false;
+        Key key = (Key) okey;
+
+        storageLock.writeLock().lock();
+        try {
+            int slot = find(key, SegmentIndex.hash(key.hashCode()));
+            if (slot < 0 || !read(index.locationAt(slot)).equals(value)) return false;
+
+            removeAt(slot);
+            return true;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final void putAll(Map<? extends Key, ? extends LocalCacheElement> map) {
+        for (Entry<? extends Key, ? extends LocalCacheElement> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public final boolean containsKey(Object okey) {
+        if (!(okey instanceof Key)) return false;
+        Key key = (Key) okey;
+
+        storageLock.readLock().lock();
+        try {
+            return find(key, SegmentIndex.hash(key.hashCode())) >= 0;
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
+
+    public final boolean containsValue(Object o) {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public final int size() {
+        return numberItems;
+    }
+
+    public final boolean isEmpty() {
+        return numberItems == 0;
+    }
+
+    public final long getMemoryCapacity() {
+        return (long) maximumSegments * segmentSize;
+    }
+
+    public final long getMemoryUsed() {
+        return usedBytes;
+    }
+
+    public final int capacity() {
+        return maximumItems;
+    }
+
+    public final void setMemoryCapacity(long capacity) {
+        storageLock.writeLock().lock();
+        try {
+            maximumSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / segmentSize));
+            retireFreeSegments();
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final void setCapacity(int capacity) {
+        maximumItems = capacity;
+    }
+
+    public final void clear() {
+        storageLock.writeLock().lock();
+        try {
+            index.clear();
+            for (int bucket = 0; bucket < TTL_BUCKETS; bucket++) {
+                openSegments[bucket] = null;
+                sealedSegments.get(bucket).clear();
+            }
+            freeSegments.clear();
+            for (int i = 0; i < allocatedSegments; i++) {
+                if (segments[i] == null) continue;
+                segments[i].reset(0);
+                freeSegments.addLast(segments[i]);
+            }
+            numberItems = 0;
+            usedBytes = 0;
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public final void close() throws IOException {
+        clear();
+
+        storageLock.writeLock().lock();
+        try {
+            freeSegments.clear();
+            for (int i = 0; i < allocatedSegments; i++) {
+                if (segments[i] != null) segments[i].free();
+            }
+            segments = new Segment[maximumSegments];
+            allocatedSegments = 0;
+            retiredIds.clear();
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
+    public Set<Key> keySet() {
+        Set<Key> keys = new HashSet<Key>();
+
+        storageLock.readLock().lock();
+        try {
+            for (int slot = 0; slot < index.slots(); slot++) {
+                if (index.isFree(slot)) continue;
+
+                long location = index.locationAt(slot);
+                ChannelBuffer buffer = segments[SegmentIndex.segmentOf(location)].buffer;
+                int item = SegmentIndex.offsetOf(location) + Segment.HEADER_SIZE;
+                int keyLength = buffer.getInt(item + KEY_OFFSET);
+                keys.add(new Key(buffer.copy(item + KEY_OFFSET + 4, keyLength)));
+            }
+        } finally {
+            storageLock.readLock().unlock();
+        }
+        return keys;
+    }
+
+    public Collection<LocalCacheElement> values() {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        throw new UnsupportedOperationException("operation not supported");
+    }
+
+    public Map<String, String> getStatistics() {
+        Map<String, String> stats = new HashMap<String, String>();
+        storageLock.readLock().lock();
+        try {
+            stats.put("segments_used", String.valueOf(segmentCount() - freeSegments.size()));
+            stats.put("segments_total", String.valueOf(maximumSegments));
+            stats.put("segment_evictions", String.valueOf(segmentEvictions));
+            stats.put("segment_expirations", String.valueOf(segmentExpirations));
+            stats.put("evictions", String.valueOf(evictedItems));
+            stats.put("merged_items", String.valueOf(mergedItems));
+        } finally {
+            storageLock.readLock().unlock();
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,333 @@
+package com.thimbleware.jmemcached.storage.shard;
+
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import com.thimbleware.jmemcached.storage.hash.SizedItem;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache storage which splits the keyspace into shards, each a storage of its own with a thread owning it.
+ *
+ * Keys are spread over the shards by hash. The daemon runs the commands on a key on the owner thread of its
+ * shard (see {@link com.thimbleware.jmemcached.protocol.ShardedCommandExecutor}), so that each storage is only
+ * ever used by one thread at a time and the locks inside it are never contended. A get of keys from several
+ * shards is fanned out to their owners and gathered.
+ *
+ * The operations on a key themselves go straight to its shard on whichever thread calls them: the shard
+ * storages stay thread-safe, and an owner thread never waits for another one, so shards can't deadlock.
+ */
+public final class ShardedCacheStorage<K, V extends SizedItem> implements CacheStorage<K, V>, StorageStatistics {
+
+    private final List<CacheStorage<K, V>> shards;
+    private final ExecutorService[] owners;
+    private final AtomicReferenceArray<Thread> ownerThreads;
+
+    /**
+     * @param shards the storages to spread the keys over, each holding its share of the memory and items
+     */
+    public ShardedCacheStorage(List<CacheStorage<K, V>> shards) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("no shards");
+        this.shards = new ArrayList<CacheStorage<K, V>>(shards);
+        this.owners = new ExecutorService[shards.size()];
+        this.ownerThreads = new AtomicReferenceArray<Thread>(shards.size());
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = Executors.newSingleThreadExecutor(new OwnerThreadFactory(i));
+        }
+    }
+
+    /**
+     * Remembers the thread owning a shard, so that work for it found on that thread can be done in place.
+     */
+    private final class OwnerThreadFactory implements ThreadFactory {
+        private final int shard;
+        private final ThreadFactory threadFactory;
+
+        OwnerThreadFactory(int shard) {
+            this.shard = shard;
+            this.threadFactory = new NamedThreadFactory("jmemcached-shard-" + shard, true);
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = threadFactory.newThread(runnable);
+            ownerThreads.set(shard, thread);
+            return thread;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @param key a key
+     * @return the index of the shard holding it
+     */
+    public int shard(Object key) {
+        int h = key.hashCode();
+        // the shard storages hash on the low bits themselves; pick shards with differently mixed ones
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /**
+     * @param shard the index of a shard
+     * @return the executor running on the shard's owner thread
+     */
+    public ExecutorService owner(int shard) {
+        return owners[shard];
+    }
+
+    private CacheStorage<K, V> storage(Object key) {
+        return shards.get(shard(key));
+    }
+
+    private boolean isOwnerThread() {
+        Thread current = Thread.currentThread();
+        for (int i = 0; i < ownerThreads.length(); i++) {
+            if (ownerThreads.get(i) == current) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Look up several keys at once. The keys of each shard are looked up by its owner, all shards at the same
+     * time, unless there's only one shard involved or the caller owns a shard itself.
+     *
+     * @param keys the keys to look up
+     * @return the values found, by key
+     */
+    public Map<K, V> getAll(K... keys) {
+        Map<K, V> found = new HashMap<K, V>(keys.length * 2);
+
+        Map<Integer, List<K>> byShard = new HashMap<Integer, List<K>>();
+        for (K key : keys) {
+            Integer shard = shard(key);
+            List<K> shardKeys = byShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<K>(keys.length);
+                byShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+
+        if (byShard.size() == 1 || isOwnerThread()) {
+            for (K key : keys) {
+                V value = storage(key).get(key);
+                if (value != null) found.put(key, value);
+            }
+            return found;
+        }
+
+        List<Future<Map<K, V>>> gets = new ArrayList<Future<Map<K, V>>>(byShard.size());
+        for (Map.Entry<Integer, List<K>> entry : byShard.entrySet()) {
+            final CacheStorage<K, V> storage = shards.get(entry.getKey());
+            final List<K> shardKeys = entry.getValue();
+            gets.add(owners[entry.getKey()].submit(new Callable<Map<K, V>>() {
+                public Map<K, V> call() {
+                    Map<K, V> shardFound = new HashMap<K, V>(shardKeys.size() * 2);
+                    for (K key : shardKeys) {
+                        V value = storage.get(key);
+                        if (value != null) shardFound.put(key, value);
+                    }
+                    return shardFound;
+                }
+            }));
+        }
+        try {
+            for (Future<Map<K, V>> get : gets) {
+                found.putAll(get.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while gathering from shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException("failed to get from a shard", e.getCause());
+        }
+        return found;
+    }
+
+    public Map<String, String> getStatistics() {
+        // add up the counts of the shards
+        Map<String, String> stats = new HashMap<String, String>();
+        for (CacheStorage<K, V> shard : shards) {
+            if (!(shard instanceof StorageStatistics)) continue;
+            for (Map.Entry<String, String> stat : ((StorageStatistics) shard).getStatistics().entrySet()) {
+                String total = stats.get(stat.getKey());
+                try {
+                    if (total != null) {
+                        stats.put(stat.getKey(), String.valueOf(Long.parseLong(total) + Long.parseLong(stat.getValue())));
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // not a count; keep the first shard's
+                    continue;
+                }
+                stats.put(stat.getKey(), stat.getValue());
+            }
+        }
+        stats.put("shards", String.valueOf(shards.size()));
+        return stats;
+    }
+
+    public V get(Object key) {
+        return storage(key).get(key);
+    }
+
+    public V put(K key, V value) {
+        return storage(key).put(key, value);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return storage(key).putIfAbsent(key, value);
+    }
+
+    public V replace(K key, V value) {
+        return storage(key).replace(key, value);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        return storage(key).replace(key, oldValue, newValue);
+    }
+
+    public V compute(K key, RemappingFunction<K, V> function) {
+        return storage(key).compute(key, function);
+    }
+
+    public V computeIfPresent(K key, RemappingFunction<K, V> function) {
+        return storage(key).computeIfPresent(key, function);
+    }
+
+    public V remove(Object key) {
+        return storage(key).remove(key);
+    }
+
+    public boolean remove(Object key, Object value) {
+        return storage(key).remove(key, value);
+    }
+
+    public boolean containsKey(Object key) {
+        return storage(key).containsKey(key);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public long getMemoryCapacity() {
+        long capacity = 0;
+        for (CacheStorage<K, V> shard : shards) {
+            capacity += shard.getMemoryCapacity();
+        }
+        return capacity;
+    }
+
+    public long getMemoryUsed() {
+        long used = 0;
+        for (CacheStorage<K, V> shard : shards) {
+            used += shard.getMemoryUsed();
+        }
+        return used;
+    }
+
+    public int capacity() {
+        int capacity = 0;
+        for (CacheStorage<K, V> shard : shards) {
+            capacity += shard.capacity();
+        }
+        return capacity;
+    }
+
+    public void setMemoryCapacity(long capacity) {
+        for (CacheStorage<K, V> shard : shards) {
+            shard.setMemoryCapacity(capacity / shards.size());
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        for (CacheStorage<K, V> shard : shards) {
+            shard.setCapacity(capacity / shards.size());
+        }
+    }
+
+    public void close() throws IOException {
+        for (ExecutorService owner : owners) {
+            owner.shutdown();
+        }
+        for (CacheStorage<K, V> shard : shards) {
+            shard.close();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (CacheStorage<K, V> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (CacheStorage<K, V> shard : shards) {
+            if (!shard.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    public boolean containsValue(Object value) {
+        for (CacheStorage<K, V> shard : shards) {
+            if (shard.containsValue(value)) return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (CacheStorage<K, V> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>();
+        for (CacheStorage<K, V> shard : shards) {
+            keys.addAll(shard.keySet());
+        }
+        return keys;
+    }
+
+    public Collection<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (CacheStorage<K, V> shard : shards) {
+            values.addAll(shard.values());
+        }
+        return values;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> entries = new HashSet<Entry<K, V>>();
+        for (CacheStorage<K, V> shard : shards) {
+            entries.addAll(shard.entrySet());
+        }
+        return entries;
+    }
+}
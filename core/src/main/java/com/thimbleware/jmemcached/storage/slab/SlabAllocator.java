@@ -0,0 +1,254 @@
+package com.thimbleware.jmemcached.storage.slab;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out buffers for cached values from large, pooled byte arrays ("slabs"), in the manner of memcached's
+ * slab allocator.
+ *
+ * Requests are rounded up to one of a series of size classes, each 25% larger than the one before. Every slab
+ * is dedicated to one class and carved into chunks of that size. Freed chunks go back to their class to be
+ * reused, so that once the slabs have been allocated storing a value creates almost no garbage, and the old
+ * generation stays stable.
+ *
+ * A freed chunk may still be in use: a response holding the old value may not have been written to its client
+ * yet. Freed chunks are therefore quarantined for a while before they are handed out again.
+ *
+ * Values too large for a slab, or which arrive once the slab budget is used up, are copied to ordinary heap
+ * buffers instead.
+ */
+public final class SlabAllocator implements ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final long DEFAULT_QUARANTINE_MILLIS = 5000;
+
+    static final int MIN_CHUNK_SIZE = 64;
+    static final double GROWTH_FACTOR = 1.25;
+
+    private final int slabSize;
+    private final long maximumBytes;
+    private final long quarantineMillis;
+
+    private final SlabClass[] classes;
+    private final ConcurrentHashMap<byte[], SlabClass> owners = new ConcurrentHashMap<byte[], SlabClass>();
+
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+
+    /**
+     * @param slabSize the size of each slab, which is also the largest value that will be pooled
+     * @param maximumBytes the most memory to allocate to slabs
+     * @param quarantineMillis how long a freed chunk is kept out of use
+     */
+    public SlabAllocator(int slabSize, long maximumBytes, long quarantineMillis) {
+        this.slabSize = slabSize;
+        this.maximumBytes = maximumBytes;
+        this.quarantineMillis = quarantineMillis;
+
+        List<SlabClass> sizes = new ArrayList<SlabClass>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < slabSize) {
+            sizes.add(new SlabClass(chunkSize));
+            // keep chunks 8 byte aligned
+            chunkSize = Math.max(chunkSize + 8, ((int) (chunkSize * GROWTH_FACTOR) + 7) & ~7);
+        }
+        sizes.add(new SlabClass(slabSize));
+        this.classes = sizes.toArray(new SlabClass[sizes.size()]);
+    }
+
+    public SlabAllocator(long maximumBytes) {
+        this(DEFAULT_SLAB_SIZE, maximumBytes, DEFAULT_QUARANTINE_MILLIS);
+    }
+
+    /**
+     * Copy a value into a pooled chunk.
+     *
+     * @param data the value to copy
+     * @return a buffer holding a copy of the value, backed by a slab if possible
+     */
+    public ChannelBuffer copy(ChannelBuffer data) {
+        int size = data.readableBytes();
+        ChannelBuffer chunk = allocate(size);
+        if (chunk == null) {
+            unpooled.incrementAndGet();
+            return ChannelBuffers.copiedBuffer(data);
+        }
+
+        data.getBytes(data.readerIndex(), chunk.array(), chunk.arrayOffset(), size);
+        return chunk;
+    }
+
+    /**
+     * @param size the number of bytes needed
+     * @return a buffer of exactly that size carved from a slab, or null if none is available
+     */
+    public ChannelBuffer allocate(int size) {
+        if (size == 0 || size > slabSize) return null;
+        return classFor(size).allocate(size);
+    }
+
+    /**
+     * Give back a buffer returned by {@link #copy} or {@link #allocate}. Buffers which didn't come from a slab
+     * are ignored, and left to the garbage collector. The buffer must not be freed twice.
+     *
+     * @return true if the buffer's chunk will be reused
+     */
+    public boolean free(ChannelBuffer buffer) {
+        if (buffer == null || !buffer.hasArray()) return false;
+
+        SlabClass owner = owners.get(buffer.array());
+        if (owner == null) return false;
+
+        owner.free(buffer.array(), buffer.arrayOffset());
+        return true;
+    }
+
+    public void onEviction(Key key, LocalCacheElement value) {
+        free(value.getData());
+    }
+
+    /**
+     * @return the memory allocated to slabs so far
+     */
+    public long getSlabBytes() {
+        return slabBytes.get();
+    }
+
+    /**
+     * @return the number of values which couldn't be pooled, and were copied to the heap instead
+     */
+    public long getUnpooled() {
+        return unpooled.get();
+    }
+
+    private SlabClass classFor(int size) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].chunkSize < size) low = mid + 1;
+            else high = mid;
+        }
+        return classes[low];
+    }
+
+    private byte[] newSlab(SlabClass owner) {
+        while (true) {
+            long current = slabBytes.get();
+            if (current + slabSize > maximumBytes) return null;
+            if (slabBytes.compareAndSet(current, current + slabSize)) break;
+        }
+
+        byte[] slab = new byte[slabSize];
+        owners.put(slab, owner);
+        return slab;
+    }
+
+    /**
+     * The chunks of one size. Free and quarantined chunks are kept in plain arrays, so that freeing and reusing
+     * a chunk doesn't allocate anything.
+     */
+    private final class SlabClass {
+        final int chunkSize;
+
+        private byte[] current;
+        private int nextOffset;
+
+        private byte[][] freeSlabs = new byte[16][];
+        private int[] freeOffsets = new int[16];
+        private int freeCount;
+
+        // a ring buffer, oldest first
+        private byte[][] quarantinedSlabs = new byte[16][];
+        private int[] quarantinedOffsets = new int[16];
+        private long[] quarantinedAt = new long[16];
+        private int quarantineHead;
+        private int quarantineCount;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized ChannelBuffer allocate(int size) {
+            releaseQuarantined(System.currentTimeMillis());
+
+            if (freeCount > 0) {
+                freeCount--;
+                byte[] slab = freeSlabs[freeCount];
+                freeSlabs[freeCount] = null;
+                return ChannelBuffers.wrappedBuffer(slab, freeOffsets[freeCount], size);
+            }
+
+            if (current == null || nextOffset + chunkSize > current.length) {
+                byte[] slab = newSlab(this);
+                if (slab == null) return null;
+                current = slab;
+                nextOffset = 0;
+            }
+
+            int offset = nextOffset;
+            nextOffset += chunkSize;
+            return ChannelBuffers.wrappedBuffer(current, offset, size);
+        }
+
+        synchronized void free(byte[] slab, int offset) {
+            if (quarantineCount == quarantinedSlabs.length) growQuarantine();
+
+            int tail = (quarantineHead + quarantineCount) % quarantinedSlabs.length;
+            quarantinedSlabs[tail] = slab;
+            quarantinedOffsets[tail] = offset;
+            quarantinedAt[tail] = System.currentTimeMillis();
+            quarantineCount++;
+        }
+
+        private void releaseQuarantined(long now) {
+            while (quarantineCount > 0 && now - quarantinedAt[quarantineHead] >= quarantineMillis) {
+                if (freeCount == freeSlabs.length) {
+                    freeSlabs = copyOf(freeSlabs, freeCount * 2);
+                    int[] offsets = new int[freeCount * 2];
+                    System.arraycopy(freeOffsets, 0, offsets, 0, freeCount);
+                    freeOffsets = offsets;
+                }
+                freeSlabs[freeCount] = quarantinedSlabs[quarantineHead];
+                freeOffsets[freeCount] = quarantinedOffsets[quarantineHead];
+                freeCount++;
+
+                quarantinedSlabs[quarantineHead] = null;
+                quarantineHead = (quarantineHead + 1) % quarantinedSlabs.length;
+                quarantineCount--;
+            }
+        }
+
+        private void growQuarantine() {
+            int length = quarantinedSlabs.length;
+            byte[][] slabs = new byte[length * 2][];
+            int[] offsets = new int[length * 2];
+            long[] times = new long[length * 2];
+            for (int i = 0; i < quarantineCount; i++) {
+                int from = (quarantineHead + i) % length;
+                slabs[i] = quarantinedSlabs[from];
+                offsets[i] = quarantinedOffsets[from];
+                times[i] = quarantinedAt[from];
+            }
+            quarantinedSlabs = slabs;
+            quarantinedOffsets = offsets;
+            quarantinedAt = times;
+            quarantineHead = 0;
+        }
+
+        private byte[][] copyOf(byte[][] array, int length) {
+            byte[][] copy = new byte[length][];
+            System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.thimbleware.jmemcached.storage.slab;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.Remapping;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.StorageStatistics;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache storage decorator which copies values into chunks of a {@link SlabAllocator} before storing them, and
+ * frees the chunks again once the values are overwritten or removed.
+ *
+ * Values otherwise stay in whatever buffer the protocol decoder produced, which for the text protocol may be a
+ * slice of a much larger network buffer. Evictions happen inside the decorated storage; register the allocator
+ * as its eviction listener so that evicted chunks are freed too.
+ *
+ * Meant for the heap storage ({@link com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap}), which
+ * keeps the value instances it is given; the block storage engines copy values into their own memory anyway.
+ */
+public final class SlabCacheStorage implements CacheStorage<Key, LocalCacheElement>, StorageStatistics {
+
+    private final CacheStorage<Key, LocalCacheElement> storage;
+    private final SlabAllocator allocator;
+
+    public SlabCacheStorage(CacheStorage<Key, LocalCacheElement> storage, SlabAllocator allocator) {
+        this.storage = storage;
+        this.allocator = allocator;
+    }
+
+    private LocalCacheElement pooled(LocalCacheElement value) {
+        // counters are rendered when read, there's nothing to pool; and values which were given room to grow
+        // would lose it
+        if (value.isCounter() || value.hasSpareCapacity()) return value;
+
+        ChannelBuffer data = value.getData();
+        if (data != null && data.readableBytes() > 0) value.setData(allocator.copy(data));
+        return value;
+    }
+
+    private LocalCacheElement free(LocalCacheElement value) {
+        if (value != null) allocator.free(value.getData());
+        return value;
+    }
+
+    public Map<String, String> getStatistics() {
+        Map<String, String> stats = new HashMap<String, String>();
+        if (storage instanceof StorageStatistics) {
+            stats.putAll(((StorageStatistics) storage).getStatistics());
+        }
+        stats.put("slab_bytes", String.valueOf(allocator.getSlabBytes()));
+        stats.put("slab_unpooled_items", String.valueOf(allocator.getUnpooled()));
+        return stats;
+    }
+
+    public LocalCacheElement get(Object key) {
+        return storage.get(key);
+    }
+
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        return free(storage.put(key, pooled(value)));
+    }
+
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        LocalCacheElement existing = storage.get(key);
+        if (existing != null) return existing;
+
+        LocalCacheElement pooledValue = pooled(value);
+        existing = storage.putIfAbsent(key, pooledValue);
+        if (existing != null) allocator.free(pooledValue.getData());
+        return existing;
+    }
+
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        if (!storage.containsKey(key)) return null;
+
+        LocalCacheElement pooledValue = pooled(value);
+        LocalCacheElement old = storage.replace(key, pooledValue);
+        if (old == null) allocator.free(pooledValue.getData());
+        return free(old);
+    }
+
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        LocalCacheElement pooledValue = pooled(newValue);
+        if (storage.replace(key, oldValue, pooledValue)) {
+            // the old value is the instance which was stored, as the heap storage compares by identity here
+            free(oldValue);
+            return true;
+        } else {
+            allocator.free(pooledValue.getData());
+            return false;
+        }
+    }
+
+    public LocalCacheElement remove(Object key) {
+        return free(storage.remove(key));
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (storage.remove(key, value)) {
+            // the value given is the one which was stored, or a copy of it sharing its data, as elements with the
+            // same cas unique are only equal if they come from the same store
+            free((LocalCacheElement) value);
+            return true;
+        }
+        return false;
+    }
+
+    public LocalCacheElement compute(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return Remapping.compute(this, key, function, false);
+    }
+
+    public LocalCacheElement computeIfPresent(Key key, RemappingFunction<Key, LocalCacheElement> function) {
+        return Remapping.compute(this, key, function, true);
+    }
+
+    public void putAll(Map<? extends Key, ? extends LocalCacheElement> map) {
+        for (Entry<? extends Key, ? extends LocalCacheElement> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void clear() {
+        for (Key key : storage.keySet()) {
+            remove(key);
+        }
+    }
+
+    public long getMemoryCapacity() {
+        return storage.getMemoryCapacity();
+    }
+
+    public long getMemoryUsed() {
+        return storage.getMemoryUsed();
+    }
+
+    public int capacity() {
+        return storage.capacity();
+    }
+
+    public void setMemoryCapacity(long capacity) {
+        storage.setMemoryCapacity(capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        storage.setCapacity(capacity);
+    }
+
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    public int size() {
+        return storage.size();
+    }
+
+    public boolean isEmpty() {
+        return storage.isEmpty();
+    }
+
+    public boolean containsKey(Object key) {
+        return storage.containsKey(key);
+    }
+
+    public boolean containsValue(Object value) {
+        return storage.containsValue(value);
+    }
+
+    public Set<Key> keySet() {
+        return storage.keySet();
+    }
+
+    public Collection<LocalCacheElement> values() {
+        return storage.values();
+    }
+
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        return storage.entrySet();
+    }
+}
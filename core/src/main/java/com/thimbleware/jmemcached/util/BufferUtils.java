@@ -58,16 +58,25 @@ public class BufferUtils {
 
     public static int atoi(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atoi(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal at the given position of a buffer, without copying it out.
+     */
+    public static int atoi(ChannelBuffer s, int index, int length)
+            throws NumberFormatException
     {
         int result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = 0, len = length;
         int limit = -Integer.MAX_VALUE;
         int multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(index);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -82,7 +91,7 @@ public class BufferUtils {
             multmin = limit / 10;
             while (i < len) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
+                digit = Character.digit(s.getByte(index + i++),10);
                 if (digit < 0) {
                     throw new NumberFormatException();
                 }
@@ -103,16 +112,25 @@ public class BufferUtils {
 
     public static long atol(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atol(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal at the given position of a buffer, without copying it out.
+     */
+    public static long atol(ChannelBuffer s, int index, int length)
+            throws NumberFormatException
     {
         long result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = 0, len = length;
         long limit = -Long.MAX_VALUE;
         long multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(index);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -127,7 +145,7 @@ public class BufferUtils {
             multmin = limit / 10;
             while (i < len) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
+                digit = Character.digit(s.getByte(index + i++),10);
                 if (digit < 0) {
                     throw new NumberFormatException();
                 }
@@ -146,6 +164,50 @@ public class BufferUtils {
         return negative ? result : -result;
     }
 
+    /**
+     * The largest unsigned 64-bit value divided by ten, above which another digit would overflow.
+     */
+    private static final long UNSIGNED_LONG_LIMIT = 1844674407370955161L;
+
+    /**
+     * Parse an unsigned 64-bit decimal, as memcached's counters are; values above Long.MAX_VALUE come back negative.
+     */
+    public static long atoul(ChannelBuffer s)
+            throws NumberFormatException
+    {
+        return atoul(s, 0, s.capacity());
+    }
+
+    public static long atoul(ChannelBuffer s, int index, int length)
+            throws NumberFormatException
+    {
+        long result = 0;
+        int len = length;
+
+        if (len == 0) throw new NumberFormatException();
+        for (int i = 0; i < len; i++) {
+            int digit = Character.digit(s.getByte(index + i), 10);
+            if (digit < 0) {
+                throw new NumberFormatException();
+            }
+            // the largest value ends in 5; past 2^63 the result reads as negative
+            if (result < 0 || result > UNSIGNED_LONG_LIMIT || (result == UNSIGNED_LONG_LIMIT && digit > 5)) {
+                throw new NumberFormatException();
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Copy part of a buffer into a heap buffer of exactly its length, whatever kind of buffer it comes from.
+     */
+    public static ChannelBuffer copy(ChannelBuffer buffer, int index, int length) {
+        ChannelBuffer copy = ChannelBuffers.buffer(buffer.order(), length);
+        copy.writeBytes(buffer, index, length);
+        return copy;
+    }
+
     /** Blatant copy of Integer.toString, but returning a byte array instead of a String, as
      *  string charset decoding/encoding was killing us on performance.
      * @param i integer to convert
@@ -168,6 +230,23 @@ public class BufferUtils {
         return buf;
     }
 
+    /**
+     * Render an unsigned 64-bit value; negative longs stand for values above Long.MAX_VALUE.
+     */
+    public static ChannelBuffer ultoa(long i) {
+        if (i >= 0)
+            return ltoa(i);
+
+        // halve before dividing, so that the quotient is positive
+        long quotient = (i >>> 1) / 5;
+        int remainder = (int) (i - quotient * 10);
+        int size = stringSize(quotient) + 1;
+        ChannelBuffer buf = ChannelBuffers.buffer(size);
+        getChars(quotient, size - 1, buf);
+        buf.setByte(size - 1, digits[remainder]);
+        return buf;
+    }
+
     /**
      * Places characters representing the integer i into the
      * character array buf. The characters are placed into
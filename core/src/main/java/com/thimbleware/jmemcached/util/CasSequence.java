@@ -0,0 +1,69 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates cas uniques without every store contending on one counter.
+ *
+ * Each thread claims a range of uniques from the shared counter at a time and hands them out from there, so the
+ * shared counter is only touched once per range. Uniques are never handed out twice, but those from different
+ * threads interleave, so a later one isn't necessarily larger. Where the unique being replaced is known,
+ * {@link #next(long)} gives one larger than it: every unique handed out so far is below the start of the next
+ * range to be claimed, so it suffices to claim a new range when the current one is behind.
+ */
+public final class CasSequence {
+
+    public static final int DEFAULT_RANGE = 1024;
+
+    private final AtomicLong counter;
+    private final int range;
+
+    private final ThreadLocal<Range> ranges = new ThreadLocal<Range>() {
+        @Override
+        protected Range initialValue() {
+            return new Range();
+        }
+    };
+
+    /**
+     * @param first the first unique to hand out
+     * @param range the number of uniques a thread claims at a time
+     */
+    public CasSequence(long first, int range) {
+        this.counter = new AtomicLong(first);
+        this.range = range;
+    }
+
+    public CasSequence() {
+        this(1, DEFAULT_RANGE);
+    }
+
+    /**
+     * @return a unique not handed out before
+     */
+    public long next() {
+        Range r = ranges.get();
+        if (r.next == r.limit) claim(r);
+        return r.next++;
+    }
+
+    /**
+     * @param previous a unique handed out before, which the new one replaces
+     * @return a unique not handed out before, and larger than the previous one
+     */
+    public long next(long previous) {
+        Range r = ranges.get();
+        if (r.next == r.limit || r.next <= previous) claim(r);
+        return r.next++;
+    }
+
+    private void claim(Range r) {
+        r.next = counter.getAndAdd(range);
+        r.limit = r.next + range;
+    }
+
+    private static final class Range {
+        long next;
+        long limit;
+    }
+}
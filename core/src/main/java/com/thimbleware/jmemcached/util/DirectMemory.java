@@ -0,0 +1,73 @@
+package com.thimbleware.jmemcached.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation and explicit release of native memory.
+ *
+ * Direct buffers are normally only freed once the garbage collector notices that they're unreachable, which
+ * for a cache holding gigabytes of them may be long after they've been discarded. Releasing them explicitly
+ * gives the memory back as soon as the storage is closed. There's no public API for this, so it's done through
+ * the JDK's buffer cleaner by reflection; if that isn't available the memory is left to the garbage collector.
+ */
+public final class DirectMemory {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectMemory.class);
+
+    private DirectMemory() {
+    }
+
+    /**
+     * @param sizeBytes the size of the buffer
+     * @return a buffer of native memory, outside of the JVM heap
+     */
+    public static ByteBuffer allocate(int sizeBytes) {
+        return ByteBuffer.allocateDirect(sizeBytes);
+    }
+
+    /**
+     * Free the native memory behind a buffer returned by {@link #allocate(int)}. Neither the buffer nor any
+     * slice of it may be used afterwards.
+     *
+     * @param buffer the buffer to free; must not be a slice or duplicate
+     * @return true if the memory was freed, false if it was left to the garbage collector
+     */
+    public static boolean release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return false;
+
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (NoSuchMethodException e) {
+            // older VMs; the buffer's own cleaner is used below
+        } catch (Exception e) {
+            logger.debug("unable to release direct buffer; leaving it to the garbage collector", e);
+            return false;
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) return false;
+
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            logger.debug("unable to release direct buffer; leaving it to the garbage collector", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads named after their pool and numbered, so that they can be told apart in thread dumps and
+ * profilers.
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final boolean daemon;
+    private final AtomicInteger number = new AtomicInteger();
+
+    /**
+     * @param prefix the name of the pool; threads are named prefix-1, prefix-2 and so on
+     * @param daemon whether the threads should not keep the JVM alive
+     */
+    public NamedThreadFactory(String prefix, boolean daemon) {
+        this.prefix = prefix;
+        this.daemon = daemon;
+    }
+
+    public NamedThreadFactory(String prefix) {
+        this(prefix, false);
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + number.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
@@ -0,0 +1,91 @@
+package com.thimbleware.jmemcached.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * The process id and CPU usage of the JVM, as far as the platform's management beans tell.
+ *
+ * The CPU time of the whole process is only available from the JDK's own extension of the operating system
+ * bean, which is looked up by reflection. Java has no equivalent of getrusage splitting it into user and system
+ * time; the user time is taken as that of the live threads, and the rest of the process's time as system time.
+ */
+public final class ProcessStatistics {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessStatistics.class);
+
+    private static final Method PROCESS_CPU_TIME = processCpuTimeMethod();
+
+    private ProcessStatistics() {
+    }
+
+    /**
+     * @return the id of the process, or the name the JVM goes by if it doesn't include the id
+     */
+    public static String pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+
+    /**
+     * @return the CPU time used by the process in nanoseconds, or the time used by its live threads if that isn't
+     * available
+     */
+    public static long cpuTime() {
+        if (PROCESS_CPU_TIME != null) {
+            try {
+                long time = (Long) PROCESS_CPU_TIME.invoke(ManagementFactory.getOperatingSystemMXBean());
+                if (time >= 0) return time;
+            } catch (Exception e) {
+                logger.debug("unable to read process cpu time", e);
+            }
+        }
+        return threadTimes(false);
+    }
+
+    /**
+     * @return the time the live threads have spent in user mode in nanoseconds, no more than {@link #cpuTime}
+     */
+    public static long userTime() {
+        return Math.min(threadTimes(true), cpuTime());
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     * @return the duration as getrusage values are shown by memcached: seconds and microseconds
+     */
+    public static String rusage(long nanos) {
+        long micros = nanos / 1000;
+        String fraction = String.valueOf(micros % 1000000);
+        return micros / 1000000 + "." + "000000".substring(fraction.length()) + fraction;
+    }
+
+    private static long threadTimes(boolean user) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) return 0;
+
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            // threads which have died in the meantime report -1
+            total += Math.max(0, user ? threads.getThreadUserTime(id) : threads.getThreadCpuTime(id));
+        }
+        return total;
+    }
+
+    private static Method processCpuTimeMethod() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            Method method = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getProcessCpuTime");
+            return method.getDeclaringClass().isInstance(os) ? method : null;
+        } catch (Exception e) {
+            logger.debug("process cpu time is not available", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A 64-bit counter which many threads can update at once without contending on one value.
+ *
+ * The count is spread over a number of cells, each on a cache line of its own; a thread always adds to the cell
+ * its id hashes to, and reading the counter sums the cells. Updates are cheap and never lost, but a sum taken
+ * while the counter is being updated is only a snapshot, which is all statistics need.
+ */
+public final class StripedCounter {
+
+    /**
+     * The number of longs to a cache line; only the first of each is used.
+     */
+    private static final int PADDING = 8;
+
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * @param stripes the number of cells to spread the count over, rounded up to a power of two
+     */
+    public StripedCounter(int stripes) {
+        int size = 1;
+        while (size < stripes && size < MAX_STRIPES) size <<= 1;
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Creates a counter with as many cells as there are processors.
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of the cells
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    private int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & mask) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
@@ -4,6 +4,7 @@ import com.thimbleware.jmemcached.*;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
 import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
 import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
 import com.thimbleware.jmemcached.util.Bytes;
@@ -37,7 +38,7 @@ public abstract class AbstractCacheTest {
 
 
     public static enum CacheType {
-        LOCAL_HASH, BLOCK, MAPPED
+        LOCAL_HASH, BLOCK, DIRECT, MAPPED
     }
 
     public static enum ProtocolMode {
@@ -51,6 +52,8 @@ public abstract class AbstractCacheTest {
                 {CacheType.LOCAL_HASH, 1, ProtocolMode.BINARY },
                 {CacheType.BLOCK, 4, ProtocolMode.TEXT},
                 {CacheType.BLOCK, 4, ProtocolMode.BINARY},
+                {CacheType.DIRECT, 4, ProtocolMode.TEXT},
+                {CacheType.DIRECT, 4, ProtocolMode.BINARY},
                 {CacheType.MAPPED, 4, ProtocolMode.TEXT},
                 {CacheType.MAPPED, 4, ProtocolMode.BINARY }
         });
@@ -89,6 +92,9 @@ public abstract class AbstractCacheTest {
             case BLOCK:
                 cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, new ByteBufferBlockStore.ByteBufferBlockStoreFactory());
                 break;
+            case DIRECT:
+                cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, DirectByteBufferBlockStore.getFactory());
+                break;
             case MAPPED:
                 cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, MemoryMappedBlockStore.getFactory());
 
@@ -0,0 +1,81 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.admission.AdmissionFilteredCacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class AdmissionFilterTest {
+
+    private static final int MAX_BYTES = 4096;
+    private static final int LARGE_ITEM = 1024;
+
+    private Cache<LocalCacheElement> cache;
+
+    @Before
+    public void setup() {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, MAX_BYTES);
+        cache = new CacheImpl(new AdmissionFilteredCacheStorage<Key, LocalCacheElement>(storage, LARGE_ITEM, 1000));
+    }
+
+    @After
+    public void teardown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void testOneHitLargeItemRejected() {
+        fillWithHotItems();
+
+        cache.set(element("large", new byte[1100]));
+
+        assertNull("one-hit large item not admitted", cache.get(key("large"))[0]);
+        for (int i = 0; i < 30; i++) {
+            assertNotNull("hot item " + i + " still present", cache.get(key("hot" + i))[0]);
+        }
+        assertEquals("rejection reported", "1", cache.stat("").get("rejected_items").iterator().next());
+    }
+
+    @Test
+    public void testPopularLargeItemAdmitted() {
+        fillWithHotItems();
+
+        // the client keeps missing on the item before it finally stores it
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.get(key("large"))[0]);
+        }
+        cache.set(element("large", new byte[1100]));
+
+        assertNotNull("popular large item admitted", cache.get(key("large"))[0]);
+        assertEquals("no rejections", "0", cache.stat("").get("rejected_items").iterator().next());
+    }
+
+    @Test
+    public void testSmallItemsAlwaysAdmitted() {
+        for (int i = 0; i < 100; i++) {
+            cache.set(element("small" + i, new byte[64]));
+            assertNotNull(cache.get(key("small" + i))[0]);
+        }
+        assertEquals("no rejections", "0", cache.stat("").get("rejected_items").iterator().next());
+    }
+
+    private void fillWithHotItems() {
+        for (int i = 0; i < 30; i++) {
+            cache.set(element("hot" + i, new byte[100]));
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 30; i++) {
+                assertNotNull(cache.get(key("hot" + i))[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.slab.SlabAllocator;
+import com.thimbleware.jmemcached.storage.slab.SlabCacheStorage;
+import org.junit.Test;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class AppendTest {
+
+    private static final int APPENDS = 2000;
+
+    @Test
+    public void testHeapStorage() throws Exception {
+        testAppends(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024));
+
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024);
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            cache.set(element("list", "0123456789"));
+            for (int i = 0; i < APPENDS; i++) {
+                cache.append(element("list", "0123456789"));
+            }
+            LocalCacheElement list = cache.get(key("list"))[0];
+            assertEquals(10 * (APPENDS + 1), list.size());
+            assertTrue("spare room is accounted for", list.memorySize() > list.size());
+            assertTrue("spare room is bounded", list.memorySize() <= 2 * list.size());
+            assertTrue(storage.getMemoryUsed() >= list.memorySize());
+
+            // appending to a value which has room to grow doesn't copy it
+            LocalCacheElement appended = list.append(element("list", "x"));
+            assertEquals(list.memorySize(), appended.memorySize());
+            assertEquals("0123456789", list.getData().slice(list.size() - 10, 10).toString("US-ASCII"));
+            assertEquals('x', appended.getData().getByte(appended.size() - 1));
+
+            // a value's room is only claimed once; appending to it again copies
+            LocalCacheElement other = list.append(element("list", "y"));
+            assertEquals('y', other.getData().getByte(other.size() - 1));
+            assertEquals('x', appended.getData().getByte(appended.size() - 1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSlabStorage() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024, 0);
+        testAppends(new SlabCacheStorage(ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024, allocator), allocator));
+    }
+
+    @Test
+    public void testBlockStorage() throws Exception {
+        testAppends(new BlockStorageCacheStorage(4, 4096, 8, 1024 * 1024, 1000, DirectByteBufferBlockStore.getFactory()));
+
+        BlockStorageCacheStorage storage = new BlockStorageCacheStorage(4, 4096, 8, 1024 * 1024, 1000, DirectByteBufferBlockStore.getFactory());
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            cache.set(element("list", "0123456789"));
+            for (int i = 0; i < APPENDS; i++) {
+                cache.append(element("list", "0123456789"));
+            }
+            assertEquals(10 * (APPENDS + 1), cache.get(key("list"))[0].size());
+            assertTrue("spare room is bounded", storage.getMemoryUsed() <= 2 * 10 * (APPENDS + 1) + 1024);
+        } finally {
+            cache.close();
+        }
+    }
+
+    private void testAppends(CacheStorage<Key, LocalCacheElement> storage) throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            StringBuilder expected = new StringBuilder("m");
+            cache.set(element("value", "m"));
+            for (int i = 0; i < 300; i++) {
+                String suffix = Integer.toString(i);
+                assertEquals(Cache.StoreResponse.STORED, cache.append(element("value", suffix)));
+                expected.append(suffix);
+                if (i % 3 == 0) {
+                    assertEquals(Cache.StoreResponse.STORED, cache.prepend(element("value", suffix)));
+                    expected.insert(0, suffix);
+                }
+                assertEquals(expected.toString(), value(cache, "value"));
+            }
+
+            // cas changes with every append, and a replaced value starts afresh
+            long cas = cache.get(key("value"))[0].getCasUnique();
+            cache.append(element("value", "z"));
+            assertTrue(cache.get(key("value"))[0].getCasUnique() != cas);
+            cache.set(element("value", "new"));
+            cache.append(element("value", "er"));
+            assertEquals("newer", value(cache, "value"));
+            assertEquals(Cache.StoreResponse.NOT_FOUND, cache.append(element("missing", "x")));
+        } finally {
+            cache.close();
+        }
+    }
+}
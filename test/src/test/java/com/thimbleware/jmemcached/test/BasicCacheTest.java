@@ -4,6 +4,7 @@ import static com.thimbleware.jmemcached.LocalCacheElement.Now;
 import com.thimbleware.jmemcached.*;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -240,4 +241,39 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals(ChannelBuffers.wrappedBuffer("11".getBytes()), data);
     }
 
+    @Test
+    public void testTouch() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+        Key missingKey = new Key(ChannelBuffers.wrappedBuffer("87654321".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("touched".getBytes()));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+        long casUnique = cache.get(testKey)[0].getCasUnique();
+
+        // touch, leaving the value as it was
+        LocalCacheElement[] touched = cache.touch(Now() + 3600, testKey, missingKey);
+        assertEquals("touched the element", Now() + 3600, touched[0].getExpire(), 1);
+        assertNull("nothing to touch", touched[1]);
+
+        LocalCacheElement found = cache.get(testKey)[0];
+        assertEquals("expiry changed", Now() + 3600, found.getExpire(), 1);
+        assertEquals("value unchanged", ChannelBuffers.wrappedBuffer("touched".getBytes()), found.getData());
+        assertEquals("cas unchanged", casUnique, found.getCasUnique());
+
+        // and a counter is still a counter
+        element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("1".getBytes()));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+        assertEquals((Integer)2, cache.get_add(testKey, 1));
+        cache.touch(Now() + 60, testKey);
+        assertEquals((Integer)3, cache.get_add(testKey, 1));
+        assertEquals("expiry changed", Now() + 60, cache.get(testKey)[0].getExpire(), 1);
+
+        // an element touched into the past is gone
+        cache.touch(Now() - 1, testKey);
+        assertNull(cache.get(testKey)[0]);
+        assertEquals("1", cache.stat(null).get("touch_misses").iterator().next());
+    }
+
 }
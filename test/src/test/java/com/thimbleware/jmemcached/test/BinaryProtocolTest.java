@@ -0,0 +1,214 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class BinaryProtocolTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private int port;
+
+    @Before
+    public void setUp() {
+        port = AvailablePortFinder.getNextAvailable();
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setBinary(true);
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    private static byte[] request(int opcode, byte[] extras, String key, String value, int opaque) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int keyLength = key == null ? 0 : key.length();
+        int valueLength = value == null ? 0 : value.length();
+        out.writeByte(0x80);
+        out.writeByte(opcode);
+        out.writeShort(keyLength);
+        out.writeByte(extras.length);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(extras.length + keyLength + valueLength);
+        out.writeInt(opaque);
+        out.writeLong(0);
+        out.write(extras);
+        if (key != null) out.writeBytes(key);
+        if (value != null) out.writeBytes(value);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the status, after checking the opcode and opaque and reading the body
+     */
+    private static int response(DataInputStream in, int opcode, int opaque, byte[] body) throws IOException {
+        assertEquals(0x81, in.readUnsignedByte());
+        assertEquals(opcode, in.readUnsignedByte());
+        in.readShort();
+        in.readByte();
+        in.readByte();
+        int status = in.readUnsignedShort();
+        int bodyLength = in.readInt();
+        assertEquals(opaque, in.readInt());
+        in.readLong();
+        assertEquals(body == null ? 0 : body.length, bodyLength);
+        if (body != null) in.readFully(body);
+        return status;
+    }
+
+    @Test
+    public void testSetAndGet() throws Exception {
+        Socket socket = new Socket("localhost", port);
+        Socket other = new Socket("localhost", port);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // a request arriving a byte at a time, while another connection sends whole ones
+            byte[] set = request(0x01, new byte[8], "key", "hello", 1);
+            OutputStream otherOut = other.getOutputStream();
+            DataInputStream otherIn = new DataInputStream(other.getInputStream());
+            for (int i = 0; i < set.length; i++) {
+                out.write(set[i]);
+                out.flush();
+                if (i == 10) {
+                    otherOut.write(request(0x01, new byte[8], "other", "value", 7));
+                    otherOut.flush();
+                    assertEquals(0, response(otherIn, 0x01, 7, null));
+                }
+            }
+            assertEquals(0, response(in, 0x01, 1, null));
+
+            out.write(request(0x00, new byte[0], "key", null, 2));
+            out.flush();
+            byte[] body = new byte[9];
+            assertEquals(0, response(in, 0x00, 2, body));
+            assertEquals("hello", new String(body, 4, 5, "US-ASCII"));
+
+            // an unknown opcode is answered, and the request after it still understood
+            out.write(request(0x50, new byte[0], "key", "value", 3));
+            out.flush();
+            assertEquals(0x81, response(in, 0x0A, 0, null));
+            out.write(request(0x00, new byte[0], "other", null, 4));
+            out.flush();
+            assertEquals(0, response(in, 0x00, 4, body));
+            assertEquals("value", new String(body, 4, 5, "US-ASCII"));
+        } finally {
+            socket.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testQuietCommands() throws Exception {
+        Socket socket = new Socket("localhost", port);
+        Socket other = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream otherOut = other.getOutputStream();
+            DataInputStream otherIn = new DataInputStream(other.getInputStream());
+
+            // both connections use the same opaque values for their quiet commands
+            for (int i = 0; i < 3; i++) {
+                out.write(request(0x11, new byte[8], "key" + i, "value" + i, i));
+                otherOut.write(request(0x11, new byte[8], "other" + i, "value" + i, i));
+            }
+            out.flush();
+            otherOut.flush();
+
+            // each connection's quiet responses come ahead of the no-op, and only on that connection
+            otherOut.write(request(0x0A, new byte[0], null, null, 10));
+            otherOut.flush();
+            for (int i = 0; i < 3; i++) {
+                assertEquals(0, response(otherIn, 0x11, i, null));
+            }
+            assertEquals(0, response(otherIn, 0x0A, 10, null));
+
+            // the quiet gets of missing keys aren't answered
+            out.write(request(0x0D, new byte[0], "other1", null, 20));
+            out.write(request(0x0D, new byte[0], "missing", null, 22));
+            out.write(request(0x09, new byte[0], "missing", null, 23));
+            out.write(request(0x09, new byte[0], "key2", null, 24));
+            out.write(request(0x0A, new byte[0], null, null, 21));
+            out.flush();
+            for (int i = 0; i < 3; i++) {
+                assertEquals(0, response(in, 0x11, i, null));
+            }
+            byte[] body = new byte[4 + "other1".length() + "value1".length()];
+            assertEquals(0, response(in, 0x0D, 20, body));
+            assertEquals("other1value1", new String(body, 4, body.length - 4, "US-ASCII"));
+            body = new byte[4 + "value2".length()];
+            assertEquals(0, response(in, 0x09, 24, body));
+            assertEquals("value2", new String(body, 4, body.length - 4, "US-ASCII"));
+            assertEquals(0, response(in, 0x0A, 21, null));
+            assertEquals(0, in.available());
+        } finally {
+            socket.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testTouch() throws Exception {
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] expiry = {0, 0, 0x0E, 0x10};
+
+            out.write(request(0x01, new byte[8], "key", "hello", 1));
+            out.write(request(0x1C, expiry, "key", null, 2));
+            out.write(request(0x1C, expiry, "missing", null, 3));
+            out.write(request(0x1D, expiry, "key", null, 4));
+            // quiet get and touches, answered only with the no-op that follows them
+            out.write(request(0x24, expiry, "key", null, 5));
+            out.write(request(0x24, expiry, "key", null, 6));
+            out.write(request(0x24, expiry, "missing", null, 8));
+            out.write(request(0x1E, expiry, "missing", null, 9));
+            out.write(request(0x0A, new byte[0], null, null, 7));
+            out.flush();
+
+            assertEquals(0, response(in, 0x01, 1, null));
+            assertEquals(0, response(in, 0x1C, 2, null));
+            assertEquals(1, response(in, 0x1C, 3, null));
+            byte[] body = new byte[9];
+            assertEquals(0, response(in, 0x1D, 4, body));
+            assertEquals("hello", new String(body, 4, 5, "US-ASCII"));
+            body = new byte[12];
+            for (int opaque = 5; opaque <= 6; opaque++) {
+                assertEquals(0, response(in, 0x24, opaque, body));
+                assertEquals("keyhello", new String(body, 4, 8, "US-ASCII"));
+            }
+            assertEquals(0, response(in, 0x0A, 7, null));
+            assertEquals(0, in.available());
+
+            assertEquals(LocalCacheElement.Now() + 3600, daemon.getCache().get(new Key(ChannelBuffers.wrappedBuffer("key".getBytes())))[0].getExpire(), 1);
+        } finally {
+            socket.close();
+        }
+    }
+}
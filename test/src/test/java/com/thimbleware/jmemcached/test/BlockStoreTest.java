@@ -0,0 +1,139 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.Region;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ */
+public class BlockStoreTest {
+
+    private static final int STORE_SIZE = 4096;
+    private static final int CHUNK_SIZE = 1024;
+    private static final int BLOCK_SIZE = 8;
+
+    @Test
+    public void testHeapStoreCommitsLazily() throws IOException {
+        testCommitsLazily(new ByteBufferBlockStore.ByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testDirectStoreCommitsLazily() throws IOException {
+        testCommitsLazily(new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testRegionFillingStore() throws IOException {
+        ByteBufferBlockStore store = new ByteBufferBlockStore.ByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE, BLOCK_SIZE);
+        Region region = store.alloc(STORE_SIZE, 0, 0);
+        assertEquals(0, store.getFreeBytes());
+
+        // the region ends at the last block, and freeing it leaves room for another one as large
+        store.free(region);
+        store.alloc(STORE_SIZE, 0, 0);
+        store.close();
+    }
+
+    @Test
+    public void testPreFaultCommitsEverythingAndKeepsData() throws Exception {
+        ByteBufferBlockStore store = new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE, BLOCK_SIZE);
+        Region region = store.alloc(100, 0, 0);
+        region.slice.writeInt(42);
+
+        assertEquals(STORE_SIZE, store.preFault());
+        assertEquals(STORE_SIZE, store.getCommittedBytes());
+        assertEquals(42, store.get(region.getStartBlock(), region.size).readInt());
+        store.close();
+
+        BlockStorageCacheStorage storage = new BlockStorageCacheStorage(4, STORE_SIZE, BLOCK_SIZE, STORE_SIZE * 4, 0, new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(CHUNK_SIZE));
+        storage.preFault(2);
+        assertEquals(0, storage.getMemoryUsed());
+        storage.close();
+    }
+
+    @Test
+    public void testDirectStoreReleasesMemoryOnClose() throws Exception {
+        ByteBufferBlockStore store = new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE, BLOCK_SIZE);
+        store.preFault();
+
+        long used = directMemoryUsed();
+        store.close();
+        assertTrue("chunks released on close", used - directMemoryUsed() >= STORE_SIZE);
+    }
+
+    @Test
+    public void testDirectStoreReleasesChunkReplacedOnGrow() throws Exception {
+        // the last chunk is committed short, at half the size of the others
+        ByteBufferBlockStore store = new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(CHUNK_SIZE).manufacture(STORE_SIZE - CHUNK_SIZE / 2, BLOCK_SIZE);
+        store.preFault();
+        store.alloc(STORE_SIZE - CHUNK_SIZE, 0, 0);
+        Region region = store.alloc(CHUNK_SIZE / 4, 0, 0);
+        region.slice.setInt(0, 42);
+
+        long used = directMemoryUsed();
+        assertTrue(store.grow(STORE_SIZE));
+        assertEquals("the short chunk is replaced and released", CHUNK_SIZE / 2, directMemoryUsed() - used);
+        assertEquals(42, store.get(region.getStartBlock(), region.size).getInt(0));
+        store.close();
+    }
+
+    /**
+     * @return the native memory held by direct buffers, if the VM reports it
+     */
+    private static long directMemoryUsed() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pool = new ObjectName("java.nio:type=BufferPool,name=direct");
+        assumeTrue(server.isRegistered(pool));
+        return (Long) server.getAttribute(pool, "MemoryUsed");
+    }
+
+    private void testCommitsLazily(ByteBufferBlockStore store) throws IOException {
+        assertEquals("nothing committed up front", 0, store.getCommittedBytes());
+        assertEquals(STORE_SIZE, store.getFreeBytes());
+
+        // regions of 100 bytes (13 blocks) don't line up with the chunks, so some straddle two of them
+        List<Region> regions = new ArrayList<Region>();
+        for (int i = 0; i < 30; i++) {
+            Region region = store.alloc(100, 0, 0);
+            for (int j = 0; j < 25; j++) {
+                region.slice.writeInt(i * 1000 + j);
+            }
+            regions.add(region);
+
+            long used = STORE_SIZE - store.getFreeBytes();
+            assertTrue("committed memory grows with use", store.getCommittedBytes() >= used);
+            assertTrue("committed memory grows a chunk at a time", store.getCommittedBytes() < used + CHUNK_SIZE);
+        }
+
+        for (int i = 0; i < regions.size(); i++) {
+            Region region = regions.get(i);
+            ChannelBuffer data = store.get(region.getStartBlock(), region.size);
+            for (int j = 0; j < 25; j++) {
+                assertEquals("data of region " + i, i * 1000 + j, data.readInt());
+            }
+        }
+
+        try {
+            store.alloc(STORE_SIZE, 0, 0);
+            fail("allocation larger than the remaining store succeeded");
+        } catch (ByteBufferBlockStore.BadAllocationException e) {
+            // expected
+        }
+        assertEquals(STORE_SIZE, store.getCommittedBytes());
+
+        store.close();
+    }
+}
@@ -41,18 +41,24 @@ public class CacheFIFOTest extends AbstractCacheTest {
         // verify that the size of the cache is correct
         assertEquals("maximum items stored", MAX_SIZE, daemon.getCache().getCurrentItems());
 
-        // verify that only the last MAX_SIZE items are actually physically in there
+        // verify that only the last MAX_SIZE items are actually physically in there. The block storages evict from
+        // the partition taking the new item, sampling its records (see Partition.evict), so they aren't first in,
+        // first out across the whole cache: of them, check that they hold MAX_SIZE intact items, the last among them
+        boolean fifo = getCacheType() == CacheType.LOCAL_HASH;
+        int present = 0;
         for (int i = 0; i < fillSize; i++) {
             CacheElement result = daemon.getCache().get(new Key(ChannelBuffers.wrappedBuffer(("" + i).getBytes())))[0];
-            if (i < MAX_SIZE) {
+            if (result != null) present++;
+            if (fifo && i < MAX_SIZE) {
                 assertTrue(i + "th result absence", result == null);
-            } else {
+            } else if (fifo || result != null || i == fillSize - 1) {
                 assertNotNull(i + "th result should be present", result);
                 assertNotNull(i + "th result's should be present", result.getKey());
                 assertTrue("key of present item should match" , Arrays.equals(("" + i).getBytes(), result.getKey().bytes.copy().array()));
                 assertEquals(ChannelBuffers.wrappedBuffer((i + "x").getBytes()), result.getData());
             }
         }
+        assertEquals("items found", MAX_SIZE, present);
         assertEquals("correct number of cache misses", fillSize - MAX_SIZE, daemon.getCache().getGetMisses());
         assertEquals("correct number of cache hits", MAX_SIZE, daemon.getCache().getGetHits());
     }
@@ -0,0 +1,70 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.util.CasSequence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class CasSequenceTest {
+
+    private static final int THREADS = 8;
+    private static final int UNIQUES = 10000;
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final CasSequence sequence = new CasSequence(1, 100);
+        final List<long[]> generated = new ArrayList<long[]>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final long[] uniques = new long[UNIQUES];
+            generated.add(uniques);
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < UNIQUES; i++) {
+                        uniques[i] = sequence.next();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Long> seen = new HashSet<Long>();
+        for (long[] uniques : generated) {
+            for (long unique : uniques) {
+                assertTrue(unique > 0);
+                assertTrue("handed out twice: " + unique, seen.add(unique));
+            }
+        }
+    }
+
+    @Test
+    public void testLargerThanReplaced() throws Exception {
+        final CasSequence sequence = new CasSequence(1, 100);
+        final long[] other = new long[1];
+
+        // another thread's range lies beyond this one's
+        sequence.next();
+        Thread thread = new Thread() {
+            public void run() {
+                other[0] = sequence.next();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        long next = sequence.next(other[0]);
+        assertTrue(next > other[0]);
+        assertTrue("stays in the new range", sequence.next(next) == next + 1);
+    }
+}
@@ -0,0 +1,123 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.RemappingFunction;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.segment.SegmentedCacheStorage;
+import com.thimbleware.jmemcached.storage.slab.SlabAllocator;
+import com.thimbleware.jmemcached.storage.slab.SlabCacheStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ComputeTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 2000;
+
+    @Test
+    public void testHeapStorage() throws Exception {
+        testConcurrentUpdates(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024));
+    }
+
+    @Test
+    public void testSlabStorage() throws Exception {
+        SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024, 0);
+        testConcurrentUpdates(new SlabCacheStorage(ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024, allocator), allocator));
+    }
+
+    @Test
+    public void testBlockStorage() throws Exception {
+        testConcurrentUpdates(new BlockStorageCacheStorage(4, 4096, 8, 1024 * 1024, 1000, DirectByteBufferBlockStore.getFactory()));
+    }
+
+    @Test
+    public void testSegmentedStorage() throws Exception {
+        testConcurrentUpdates(new SegmentedCacheStorage(64 * 1024, 1024 * 1024, 1000));
+    }
+
+    /**
+     * Racing increments and appends on the same keys must neither be lost nor reported as failed.
+     */
+    private void testConcurrentUpdates(CacheStorage<Key, LocalCacheElement> storage) throws Exception {
+        final Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            cache.set(element("counter", "0"));
+            cache.set(element("list", ""));
+
+            final AtomicInteger failures = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < THREADS; t++) {
+                Thread thread = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < INCREMENTS; i++) {
+                            if (cache.get_add(key("counter"), 1) == null) failures.incrementAndGet();
+                            if (i % 10 == 0 && cache.append(element("list", "x")) != Cache.StoreResponse.STORED) failures.incrementAndGet();
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(0, failures.get());
+            assertEquals(Integer.valueOf(THREADS * INCREMENTS), cache.get_add(key("counter"), 0));
+            assertEquals(THREADS * INCREMENTS / 10, cache.get(key("list"))[0].size());
+
+            assertNull(cache.get_add(key("missing"), 1));
+            assertEquals(Cache.StoreResponse.NOT_FOUND, cache.append(element("missing", "x")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testComputeRacingRemove() throws Exception {
+        final ConcurrentLinkedHashMap<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024);
+        storage.put(key("key"), element("key", "one"));
+
+        // the key is removed while its new value is being computed, as by another thread
+        LocalCacheElement value = storage.computeIfPresent(key("key"), new RemappingFunction<Key, LocalCacheElement>() {
+            public LocalCacheElement apply(Key key, LocalCacheElement value) {
+                if (value == null) return null;
+                storage.remove(key);
+                return element("key", "two");
+            }
+        });
+
+        assertNull("the update isn't reported as stored", value);
+        assertFalse(storage.containsKey(key("key")));
+        assertEquals(0, storage.size());
+        assertEquals(0, storage.getMemoryUsed());
+    }
+
+    @Test
+    public void testCas() throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024));
+        try {
+            cache.set(element("key", "one"));
+            long cas = cache.get(key("key"))[0].getCasUnique();
+
+            assertEquals(Cache.StoreResponse.STORED, cache.cas(cas, element("key", "two")));
+            assertEquals(Cache.StoreResponse.EXISTS, cache.cas(cas, element("key", "three")));
+            assertEquals(ChannelBuffers.wrappedBuffer("two".getBytes()), cache.get(key("key"))[0].getData());
+            assertEquals(Cache.StoreResponse.NOT_FOUND, cache.cas(cas, element("missing", "one")));
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.util.BufferUtils;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class CounterTest {
+
+    private static final long MAX_UNSIGNED = -1L;
+
+    @Test
+    public void testUnsignedConversions() {
+        assertEquals("18446744073709551615", BufferUtils.ultoa(MAX_UNSIGNED).toString("US-ASCII"));
+        assertEquals("9223372036854775808", BufferUtils.ultoa(Long.MIN_VALUE).toString("US-ASCII"));
+        assertEquals("42", BufferUtils.ultoa(42).toString("US-ASCII"));
+
+        assertEquals(MAX_UNSIGNED, BufferUtils.atoul(buffer("18446744073709551615")));
+        assertEquals(Long.MIN_VALUE, BufferUtils.atoul(buffer("9223372036854775808")));
+        assertEquals(0, BufferUtils.atoul(buffer("0")));
+        for (String invalid : new String[] { "18446744073709551616", "99999999999999999999", "-1", "1a", "" }) {
+            try {
+                BufferUtils.atoul(buffer(invalid));
+                fail(invalid);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testHeapStorage() throws Exception {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024);
+        testCounters(storage);
+
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            cache.set(element("counter", "1"));
+            cache.incr_decr(key("counter"), 1, true);
+            LocalCacheElement counter = cache.get(key("counter"))[0];
+            long used = storage.getMemoryUsed();
+
+            // each update stores a new counter, taking as much memory as the last
+            for (int i = 0; i < 1000; i++) {
+                cache.incr_decr(key("counter"), 1000000000, true);
+            }
+            assertEquals("1000000000002", cache.get(key("counter"))[0].getData().toString("US-ASCII"));
+            assertEquals(used, storage.getMemoryUsed());
+
+            // while a counter got before keeps the value and cas unique it had
+            assertEquals("2", counter.getData().toString("US-ASCII"));
+            assertTrue(counter.getCasUnique() != cache.get(key("counter"))[0].getCasUnique());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testBlockStorage() throws Exception {
+        testCounters(new BlockStorageCacheStorage(4, 4096, 8, 1024 * 1024, 1000, DirectByteBufferBlockStore.getFactory()));
+    }
+
+    @Test
+    public void testBlockStorageReadsNotTorn() throws Exception {
+        final Cache<LocalCacheElement> cache = new CacheImpl(new BlockStorageCacheStorage(4, 4096, 8, 1024 * 1024, 1000, DirectByteBufferBlockStore.getFactory()));
+        try {
+            cache.set(element("counter", "9"));
+
+            // a value got before an incr keeps its bytes, though the incr writes over the blocks it came from
+            LocalCacheElement nine = cache.get(key("counter"))[0];
+            cache.incr_decr(key("counter"), 1, true);
+            assertEquals("9", nine.getData().toString("US-ASCII"));
+
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<String> torn = new AtomicReference<String>();
+            Thread reader = new Thread() {
+                public void run() {
+                    long last = 0;
+                    while (!done.get() && torn.get() == null) {
+                        LocalCacheElement e = cache.get(key("counter"))[0];
+                        Thread.yield();
+                        String value = e.getData().toString("US-ASCII");
+                        // the counter only goes up, so a value seen going down was overwritten while being read
+                        if (Long.parseLong(value) < last) torn.set(value + " after " + last);
+                        last = Long.parseLong(value);
+                    }
+                }
+            };
+            reader.start();
+            for (int i = 0; i < 100000; i++) {
+                cache.incr_decr(key("counter"), 1, true);
+            }
+            done.set(true);
+            reader.join();
+            assertNull(torn.get(), torn.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private void testCounters(CacheStorage<Key, LocalCacheElement> storage) throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            cache.set(element("counter", "18446744073709551614"));
+            assertEquals(Long.valueOf(MAX_UNSIGNED), cache.incr_decr(key("counter"), 1, true));
+            assertEquals("wraps around", Long.valueOf(4), cache.incr_decr(key("counter"), 5, true));
+            assertEquals("4", value(cache, "counter"));
+
+            assertEquals("stops at zero", Long.valueOf(0), cache.incr_decr(key("counter"), 10, false));
+            assertEquals(Long.valueOf(MAX_UNSIGNED), cache.incr_decr(key("counter"), MAX_UNSIGNED, true));
+            assertEquals("18446744073709551615", value(cache, "counter"));
+            assertEquals(Long.valueOf(0), cache.incr_decr(key("counter"), MAX_UNSIGNED, false));
+
+            // the cas unique changes with the value, and the value can be replaced as usual
+            long cas = cache.get(key("counter"))[0].getCasUnique();
+            cache.incr_decr(key("counter"), 7, true);
+            assertTrue(cache.get(key("counter"))[0].getCasUnique() != cas);
+            assertEquals(Cache.StoreResponse.EXISTS, cache.cas(cas, element("counter", "100")));
+            assertEquals(Cache.StoreResponse.STORED, cache.cas(cache.get(key("counter"))[0].getCasUnique(), element("counter", "100")));
+            assertEquals(Long.valueOf(99), cache.incr_decr(key("counter"), 1, false));
+            assertEquals(Cache.StoreResponse.STORED, cache.append(element("counter", "0")));
+            assertEquals("990", value(cache, "counter"));
+
+            // a new expiration time is stored with the new value
+            long expire = LocalCacheElement.Now() + 100;
+            assertEquals(Long.valueOf(991), cache.incr_decr(key("counter"), 1, true, expire));
+            assertEquals(expire, cache.get(key("counter"))[0].getExpire());
+            assertEquals(Long.valueOf(992), cache.incr_decr(key("counter"), 1, true, expire + 1));
+            assertEquals(expire + 1, cache.get(key("counter"))[0].getExpire());
+            assertEquals(Long.valueOf(993), cache.incr_decr(key("counter"), 1, true));
+            assertEquals(expire + 1, cache.get(key("counter"))[0].getExpire());
+
+            assertNull(cache.incr_decr(key("missing"), 1, true));
+
+            cache.set(element("text", "hello"));
+            try {
+                cache.incr_decr(key("text"), 1, true);
+                fail();
+            } catch (NumberFormatException e) {
+                assertEquals("hello", value(cache, "text"));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testTextProtocol() throws Exception {
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            send(out, "set counter 0 0 1\r\n9\r\n");
+            assertEquals("STORED", in.readLine());
+            send(out, "incr counter 18446744073709551606\r\n");
+            assertEquals("18446744073709551615", in.readLine());
+            send(out, "incr counter 2\r\n");
+            assertEquals("1", in.readLine());
+            send(out, "decr counter 5\r\n");
+            assertEquals("0", in.readLine());
+            send(out, "incr counter 12345\r\n");
+            assertEquals("12345", in.readLine());
+            send(out, "get counter\r\n");
+            assertEquals("VALUE counter 0 5", in.readLine());
+            assertEquals("12345", in.readLine());
+            assertEquals("END", in.readLine());
+
+            send(out, "set text 0 0 5\r\nhello\r\n");
+            assertEquals("STORED", in.readLine());
+            send(out, "incr text 1\r\n");
+            assertEquals("CLIENT_ERROR", in.readLine());
+            send(out, "incr counter 18446744073709551616\r\n");
+            assertEquals("CLIENT_ERROR", in.readLine());
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+
+    private static void send(OutputStream out, String command) throws IOException {
+        // in one write, so that the command arrives in one piece
+        out.write(command.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static org.jboss.netty.buffer.ChannelBuffer buffer(String value) {
+        return ChannelBuffers.wrappedBuffer(value.getBytes());
+    }
+}
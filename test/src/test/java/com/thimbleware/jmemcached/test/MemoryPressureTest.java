@@ -0,0 +1,110 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.MemoryPressureMonitor;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class MemoryPressureTest {
+
+    private static final long MAX_BYTES = 100 * 1024;
+
+    @Test
+    public void testPressureShrinksAndRecovers() {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 10000, MAX_BYTES);
+        for (int i = 0; i < 50; i++) {
+            Key key = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+            LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(new byte[1000]));
+            map.put(key, element);
+        }
+        long used = map.getMemoryUsed();
+        assertTrue(used < MAX_BYTES);
+
+        MemoryPressureMonitor monitor = new MemoryPressureMonitor(map);
+        monitor.relievePressure();
+
+        // the cache is cut down relative to what it holds, not to its configured maximum
+        assertTrue("capacity shrunk below current use", map.getMemoryCapacity() < used);
+        assertTrue("entries were evicted", map.getMemoryUsed() <= map.getMemoryCapacity());
+        assertTrue(map.size() < 50);
+        assertEquals(1, monitor.getPressureEvents());
+
+        long shrunk = map.getMemoryCapacity();
+        monitor.recoverCapacity();
+        assertTrue("capacity grows back", map.getMemoryCapacity() > shrunk);
+        assertTrue("capacity grows gradually", map.getMemoryCapacity() < MAX_BYTES);
+
+        for (int i = 0; i < 100; i++) {
+            monitor.recoverCapacity();
+        }
+        assertEquals("never beyond the configured maximum", MAX_BYTES, map.getMemoryCapacity());
+    }
+
+    @Test
+    public void testOneMonitorForAllShards() {
+        List<ConcurrentLinkedHashMap<Key, LocalCacheElement>> maps = new ArrayList<ConcurrentLinkedHashMap<Key, LocalCacheElement>>();
+        for (int shard = 0; shard < 2; shard++) {
+            ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 10000, MAX_BYTES);
+            for (int i = 0; i < 50; i++) {
+                Key key = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+                LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+                element.setData(ChannelBuffers.wrappedBuffer(new byte[1000]));
+                map.put(key, element);
+            }
+            maps.add(map);
+        }
+
+        MemoryPressureMonitor monitor = new MemoryPressureMonitor(maps);
+        monitor.relievePressure();
+        assertEquals(1, monitor.getPressureEvents());
+        for (ConcurrentLinkedHashMap<Key, LocalCacheElement> map : maps) {
+            assertTrue("every shard shrunk", map.getMemoryCapacity() < MAX_BYTES);
+            assertTrue(map.size() < 50);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            monitor.recoverCapacity();
+        }
+        for (ConcurrentLinkedHashMap<Key, LocalCacheElement> map : maps) {
+            assertEquals("every shard recovered", MAX_BYTES, map.getMemoryCapacity());
+        }
+    }
+
+    @Test
+    public void testRecoveryFollowsLimitsSetLater() throws Exception {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 10000, MAX_BYTES);
+        CacheImpl cache = new CacheImpl(map);
+        MemoryPressureMonitor monitor = new MemoryPressureMonitor(map);
+        try {
+            // an operator's shrink isn't undone by recovering from pressure
+            cache.setLimits(MAX_BYTES / 2, 0);
+            monitor.relievePressure();
+            for (int i = 0; i < 100; i++) {
+                monitor.recoverCapacity();
+            }
+            assertEquals(MAX_BYTES / 2, map.getMemoryCapacity());
+
+            // nor is a grow capped at the maximum the monitor started with
+            cache.setLimits(MAX_BYTES * 2, 0);
+            monitor.relievePressure();
+            assertTrue(map.getMemoryCapacity() < MAX_BYTES * 2);
+            for (int i = 0; i < 100; i++) {
+                monitor.recoverCapacity();
+            }
+            assertEquals(MAX_BYTES * 2, map.getMemoryCapacity());
+        } finally {
+            cache.close();
+        }
+    }
+}
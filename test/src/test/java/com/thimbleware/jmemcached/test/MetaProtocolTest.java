@@ -0,0 +1,95 @@
+package com.thimbleware.jmemcached.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static junit.framework.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ */
+@RunWith(Parameterized.class)
+public class MetaProtocolTest extends AbstractCacheTest {
+
+    public MetaProtocolTest(CacheType cacheType, int blockSize, ProtocolMode protocolMode) {
+        super(cacheType, blockSize, protocolMode);
+    }
+
+    @Test
+    public void testMetaCommands() throws Exception {
+        assumeTrue(getProtocolMode() == ProtocolMode.TEXT);
+
+        Socket socket = new Socket("localhost", getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            out.write(("ms key 5 F3 c k\r\nhello\r\n" +
+                    "mg key v f s t k O123\r\n" +
+                    "mg missing v q\r\n" +
+                    "mg missing v\r\n" +
+                    "mn\r\n").getBytes("US-ASCII"));
+            out.flush();
+
+            String stored = in.readLine();
+            assertTrue(stored, stored.matches("HD c[0-9]+ kkey"));
+            String cas = stored.substring(4, stored.indexOf(' ', 3));
+            assertEquals("VA 5 f3 s5 t-1 kkey O123", in.readLine());
+            assertEquals("hello", in.readLine());
+            assertEquals("EN", in.readLine());
+            assertEquals("MN", in.readLine());
+
+            // an invalidated element is kept, and only the first client to get it recaches it
+            out.write(("md key I T30\r\n" +
+                    "mg key c\r\n" +
+                    "mg key t\r\n" +
+                    "ms key 3 C" + cas + " q\r\nnew\r\n" +
+                    "mg key v\r\n").getBytes("US-ASCII"));
+            out.flush();
+
+            assertEquals("HD", in.readLine());
+            assertEquals("HD c" + cas + " W X", in.readLine());
+            String stale = in.readLine();
+            assertTrue(stale, stale.matches("HD t(29|30) X Z"));
+            assertEquals("VA 3", in.readLine());
+            assertEquals("new", in.readLine());
+
+            // a missing element is created for the first client to recache
+            out.write(("mg other N30 v\r\n" +
+                    "mg other v\r\n" +
+                    "ma counter N0 J10 v\r\n" +
+                    "ma counter v\r\n" +
+                    "ma counter MD D5 q\r\n" +
+                    "mg counter v\r\n" +
+                    "ma missing\r\n" +
+                    "md missing q\r\n" +
+                    "mg a2V5 b k v\r\n" +
+                    "mn\r\n").getBytes("US-ASCII"));
+            out.flush();
+
+            assertEquals("VA 0 W", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("VA 0 Z", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("VA 2", in.readLine());
+            assertEquals("10", in.readLine());
+            assertEquals("VA 2", in.readLine());
+            assertEquals("11", in.readLine());
+            assertEquals("VA 1", in.readLine());
+            assertEquals("6", in.readLine());
+            assertEquals("NF", in.readLine());
+            assertEquals("NF", in.readLine());
+            assertEquals("VA 3 b ka2V5", in.readLine());
+            assertEquals("new", in.readLine());
+            assertEquals("MN", in.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ProtocolDetectionTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private int port;
+
+    @Before
+    public void setUp() {
+        port = AvailablePortFinder.getNextAvailable();
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setDetectProtocol(true);
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void testTextAndBinaryClients() throws Exception {
+        Socket text = new Socket("localhost", port);
+        Socket binary = new Socket("localhost", port);
+        try {
+            OutputStream textOut = text.getOutputStream();
+            BufferedReader textIn = new BufferedReader(new InputStreamReader(text.getInputStream(), "US-ASCII"));
+            textOut.write("set key 0 0 5\r\nhello\r\n".getBytes("US-ASCII"));
+            textOut.flush();
+            assertEquals("STORED", textIn.readLine());
+
+            // a binary get of the key the text client set
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream request = new DataOutputStream(bytes);
+            request.writeByte(0x80);
+            request.writeByte(0x00);
+            request.writeShort(3);
+            request.writeByte(0);
+            request.writeByte(0);
+            request.writeShort(0);
+            request.writeInt(3);
+            request.writeInt(42);
+            request.writeLong(0);
+            request.writeBytes("key");
+            OutputStream binaryOut = binary.getOutputStream();
+            binaryOut.write(bytes.toByteArray());
+            binaryOut.flush();
+
+            DataInputStream binaryIn = new DataInputStream(binary.getInputStream());
+            assertEquals(0x81, binaryIn.readUnsignedByte());
+            assertEquals(0x00, binaryIn.readUnsignedByte());
+            binaryIn.readShort();
+            binaryIn.readShort();
+            assertEquals(0, binaryIn.readUnsignedShort());
+            assertEquals(9, binaryIn.readInt());
+            assertEquals(42, binaryIn.readInt());
+            binaryIn.readLong();
+            byte[] body = new byte[9];
+            binaryIn.readFully(body);
+            assertEquals("hello", new String(body, 4, 5, "US-ASCII"));
+
+            // the text connection keeps speaking text
+            textOut.write("get key\r\n".getBytes("US-ASCII"));
+            textOut.flush();
+            assertEquals("VALUE key 0 5", textIn.readLine());
+            assertEquals("hello", textIn.readLine());
+            assertEquals("END", textIn.readLine());
+        } finally {
+            text.close();
+            binary.close();
+        }
+    }
+}
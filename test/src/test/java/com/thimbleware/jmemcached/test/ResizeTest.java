@@ -0,0 +1,216 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.DirectByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.segment.SegmentedCacheStorage;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ResizeTest {
+
+    private static final int VALUE_SIZE = 1000;
+
+    @Test
+    public void testHeapResize() throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 200 * 1024));
+        try {
+            fill(cache, 100);
+            assertEquals(100, cache.getCurrentItems());
+
+            cache.setLimits(50 * 1024, 0);
+            assertEquals(50 * 1024, cache.getLimitMaxBytes());
+            assertTrue(cache.getCurrentBytes() <= 50 * 1024);
+
+            cache.setLimits(0, 10);
+            assertEquals(10, cache.getCurrentItems());
+
+            cache.setLimits(400 * 1024, 1000);
+            fill(cache, 300);
+            assertEquals(300, cache.getCurrentItems());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testBlockStorageResize() throws Exception {
+        // one small chunk per partition, so that growing has to widen the chunk and add more
+        CacheStorage<Key, LocalCacheElement> storage = new BlockStorageCacheStorage(2, 4096, 8, 64 * 1024, 0, new DirectByteBufferBlockStore.DirectByteBufferBlockStoreFactory(48 * 1024));
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            fill(cache, 200);
+            assertTrue("the store holds no more than it has room for", cache.getCurrentItems() < 64);
+
+            cache.setLimits(512 * 1024, 0);
+            assertEquals(512 * 1024, cache.getLimitMaxBytes());
+            fill(cache, 400);
+            assertEquals("grown store holds everything", 400, cache.getCurrentItems());
+            assertData(cache, 400);
+
+            // shrinking is gradual; entries go as new ones are stored
+            cache.setLimits(128 * 1024, 0);
+            assertEquals(128 * 1024, cache.getLimitMaxBytes());
+            fill(cache, 20);
+            assertTrue(cache.getCurrentBytes() <= 128 * 1024);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSegmentedResize() throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(new SegmentedCacheStorage(16 * 1024, 64 * 1024, 0));
+        try {
+            fill(cache, 200);
+            assertTrue(cache.getCurrentItems() < 64);
+
+            cache.setLimits(512 * 1024, 0);
+            fill(cache, 400);
+            assertEquals(400, cache.getCurrentItems());
+            assertData(cache, 400);
+
+            cache.setLimits(128 * 1024, 0);
+            assertEquals(128 * 1024, cache.getLimitMaxBytes());
+            fill(cache, 400);
+            assertTrue(cache.getCurrentBytes() <= 128 * 1024);
+            assertTrue(cache.getCurrentItems() < 128);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testMemLimitCommands() throws Exception {
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = startDaemon(port, false);
+        Socket socket = new Socket("localhost", port);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            out.writeBytes("cache_memlimit 2 500\r\n");
+            assertEquals("OK", in.readLine());
+            assertEquals(2 * 1024 * 1024, daemon.getCache().getLimitMaxBytes());
+
+            out.writeBytes("cache_memlimit 3 noreply\r\nversion\r\n");
+            assertTrue(in.readLine().startsWith("VERSION"));
+            assertEquals(3 * 1024 * 1024, daemon.getCache().getLimitMaxBytes());
+
+            out.writeBytes("cache_memlimit\r\n");
+            assertEquals("CLIENT_ERROR", in.readLine());
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+
+    /**
+     * The binary protocol has no cache_memlimit; jmemcached answers it under the unassigned opcode 0xF0.
+     */
+    @Test
+    public void testBinaryMemLimitExtension() throws Exception {
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = startDaemon(port, true);
+        Socket socket = new Socket("localhost", port);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            writeMemLimit(out, 42, 5 * 1024 * 1024, 0);
+            assertMemLimitResponse(in, 42);
+            assertEquals(5 * 1024 * 1024, daemon.getCache().getLimitMaxBytes());
+
+            // a zero memory limit leaves it as it is
+            writeMemLimit(out, 43, 0, 500);
+            assertMemLimitResponse(in, 43);
+            assertEquals(5 * 1024 * 1024, daemon.getCache().getLimitMaxBytes());
+
+            // anything but 12 bytes of extras is malformed, and the connection is closed
+            out.writeByte(0x80);
+            out.writeByte(0xF0);
+            out.writeShort(0);
+            out.writeByte(8);
+            out.writeByte(0);
+            out.writeShort(0);
+            out.writeInt(8);
+            out.writeInt(44);
+            out.writeLong(0);
+            out.writeLong(1024 * 1024);
+            out.flush();
+            assertEquals(-1, in.read());
+            assertEquals(5 * 1024 * 1024, daemon.getCache().getLimitMaxBytes());
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+
+    private static void writeMemLimit(DataOutputStream out, int opaque, long maxBytes, int maxItems) throws IOException {
+        out.writeByte(0x80);
+        out.writeByte(0xF0);
+        out.writeShort(0);
+        out.writeByte(12);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(12);
+        out.writeInt(opaque);
+        out.writeLong(0);
+        out.writeLong(maxBytes);
+        out.writeInt(maxItems);
+        out.flush();
+    }
+
+    private static void assertMemLimitResponse(DataInputStream in, int opaque) throws IOException {
+        byte[] header = new byte[24];
+        in.readFully(header);
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(header));
+        assertEquals((byte) 0x81, fields.readByte());
+        assertEquals((byte) 0xF0, fields.readByte());
+        fields.skipBytes(4);
+        assertEquals("status", 0, fields.readShort());
+        assertEquals("body length", 0, fields.readInt());
+        assertEquals(opaque, fields.readInt());
+    }
+
+    private static MemCacheDaemon<LocalCacheElement> startDaemon(int port, boolean binary) {
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setBinary(binary);
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+        return daemon;
+    }
+
+    private static void fill(Cache<LocalCacheElement> cache, int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[VALUE_SIZE];
+            value[0] = (byte) i;
+            cache.set(element("key" + i, value));
+        }
+    }
+
+    private static void assertData(Cache<LocalCacheElement> cache, int count) {
+        for (int i = 0; i < count; i++) {
+            LocalCacheElement element = cache.get(key("key" + i))[0];
+            assertNotNull("item " + i, element);
+            assertEquals((byte) i, element.getData().getByte(0));
+        }
+    }
+}
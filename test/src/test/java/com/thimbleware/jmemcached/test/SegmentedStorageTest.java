@@ -0,0 +1,113 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.segment.SegmentedCacheStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class SegmentedStorageTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int SEGMENTS = 8;
+
+    private SegmentedCacheStorage storage;
+    private Cache<LocalCacheElement> cache;
+
+    @Before
+    public void setup() {
+        storage = new SegmentedCacheStorage(SEGMENT_SIZE, SEGMENT_SIZE * SEGMENTS, 0);
+        cache = new CacheImpl(storage);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void testStoreOverwriteDelete() {
+        for (int i = 0; i < 200; i++) {
+            cache.set(element("key" + i, "value" + i, 0));
+        }
+        for (int i = 0; i < 200; i += 2) {
+            cache.set(element("key" + i, "changed" + i, 0));
+        }
+        for (int i = 0; i < 200; i += 5) {
+            assertEquals(Cache.DeleteResponse.DELETED, cache.delete(key("key" + i), 0));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            LocalCacheElement result = cache.get(key("key" + i))[0];
+            if (i % 5 == 0) {
+                assertNull(result);
+            } else {
+                assertNotNull("key" + i + " present", result);
+                String expected = (i % 2 == 0 ? "changed" : "value") + i;
+                assertEquals(ChannelBuffers.wrappedBuffer(expected.getBytes()), result.getData());
+            }
+        }
+        assertEquals(160, cache.getCurrentItems());
+        assertEquals(160, storage.keySet().size());
+    }
+
+    @Test
+    public void testEvictionKeepsRecentlyReadItems() {
+        byte[] value = new byte[200];
+        cache.set(element("hot", value, 0));
+
+        // write several times the capacity, reading the hot item as we go
+        for (int i = 0; i < SEGMENTS * 60; i++) {
+            cache.set(element("cold" + i, value, 0));
+            assertNotNull("hot item survives eviction", cache.get(key("hot"))[0]);
+        }
+
+        assertNull("oldest cold item evicted", cache.get(key("cold0"))[0]);
+        assertNotNull("newest cold item kept", cache.get(key("cold" + (SEGMENTS * 60 - 1)))[0]);
+        assertTrue(cache.getCurrentBytes() <= SEGMENT_SIZE * SEGMENTS);
+        assertTrue(Integer.parseInt(cache.stat("").get("merged_items").iterator().next()) > 0);
+    }
+
+    @Test
+    public void testExpiredSegmentsReclaimedFirst() {
+        long now = LocalCacheElement.Now();
+        byte[] value = new byte[200];
+
+        // fill half the storage with items that have already expired
+        for (int i = 0; i < SEGMENTS * 8; i++) {
+            cache.set(element("expired" + i, value, now - 5));
+        }
+        for (int i = 0; i < SEGMENTS * 8; i++) {
+            cache.set(element("forever" + i, value, 0));
+        }
+
+        // all of the immortal items must still be there
+        for (int i = 0; i < SEGMENTS * 8; i++) {
+            assertNotNull("forever" + i + " present", cache.get(key("forever" + i))[0]);
+        }
+        assertTrue(Integer.parseInt(cache.stat("").get("segment_expirations").iterator().next()) > 0);
+        assertEquals("0", cache.stat("").get("evictions").iterator().next());
+    }
+
+    @Test
+    public void testOversizedItemNotStored() {
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.add(element("big", new byte[SEGMENT_SIZE * 2], 0)));
+        assertNull(cache.get(key("big"))[0]);
+        assertEquals(0, cache.getCurrentItems());
+
+        // the item it would have replaced stays
+        assertEquals(Cache.StoreResponse.STORED, cache.set(element("big", "small", 0)));
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.set(element("big", new byte[SEGMENT_SIZE * 2], 0)));
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.append(element("big", new byte[SEGMENT_SIZE * 2], 0)));
+        assertEquals(ChannelBuffers.wrappedBuffer("small".getBytes()), cache.get(key("big"))[0].getData());
+        assertEquals(1, cache.getCurrentItems());
+    }
+}
@@ -0,0 +1,119 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.protocol.ShardedCommandExecutor;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.shard.ShardedCacheStorage;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ShardedStorageTest {
+
+    private static ShardedCacheStorage<Key, LocalCacheElement> sharded(int shards) {
+        List<CacheStorage<Key, LocalCacheElement>> storages = new ArrayList<CacheStorage<Key, LocalCacheElement>>();
+        for (int i = 0; i < shards; i++) {
+            storages.add(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024));
+        }
+        return new ShardedCacheStorage<Key, LocalCacheElement>(storages);
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        ShardedCacheStorage<Key, LocalCacheElement> storage = sharded(4);
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            Set<Integer> used = new HashSet<Integer>();
+            Key[] keys = new Key[100];
+            for (int i = 0; i < 100; i++) {
+                keys[i] = key("key" + i);
+                used.add(storage.shard(keys[i]));
+                assertEquals(Cache.StoreResponse.STORED, cache.set(element("key" + i, String.valueOf(i))));
+            }
+            assertEquals("keys are spread over all shards", 4, used.size());
+            assertEquals(100, cache.getCurrentItems());
+            assertEquals(4000, storage.capacity());
+            assertEquals(4 * 1024 * 1024, cache.getLimitMaxBytes());
+
+            // a multi-get is gathered from all shards, in the order of the keys
+            LocalCacheElement[] found = cache.get(keys);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(String.valueOf(i), new String(found[i].getData().array()));
+            }
+            assertNull(cache.get(key("key0"), key("missing"))[1]);
+
+            assertEquals("4", cache.stat(null).get("shards").iterator().next());
+
+            cache.flush_all();
+            assertEquals(0, cache.getCurrentItems());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testShardedDaemon() throws Exception {
+        ShardedCacheStorage<Key, LocalCacheElement> storage = sharded(4);
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(storage));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.setCommandExecutor(new ShardedCommandExecutor(storage));
+        daemon.start();
+
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            // pipelined commands on keys of different shards are still answered in order
+            StringBuilder commands = new StringBuilder();
+            StringBuilder multiGet = new StringBuilder("get");
+            for (int i = 0; i < 100; i++) {
+                commands.append("set key").append(i).append(" 0 0 ").append(String.valueOf(i).length()).append("\r\n").append(i).append("\r\n");
+                commands.append("get key").append(i).append("\r\n");
+                multiGet.append(" key").append(i);
+            }
+            commands.append(multiGet).append("\r\n");
+            out.write(commands.toString().getBytes("US-ASCII"));
+            out.flush();
+            for (int i = 0; i < 100; i++) {
+                assertEquals("STORED", in.readLine());
+                assertEquals("VALUE key" + i + " 0 " + String.valueOf(i).length(), in.readLine());
+                assertEquals(String.valueOf(i), in.readLine());
+                assertEquals("END", in.readLine());
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals("VALUE key" + i + " 0 " + String.valueOf(i).length(), in.readLine());
+                assertEquals(String.valueOf(i), in.readLine());
+            }
+            assertEquals("END", in.readLine());
+
+            Set<String> names = new HashSet<String>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                names.add(thread.getName());
+            }
+            for (int i = 0; i < 4; i++) {
+                assertTrue(names.contains("jmemcached-shard-" + i + "-1"));
+            }
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.slab.SlabAllocator;
+import com.thimbleware.jmemcached.storage.slab.SlabCacheStorage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class SlabStorageTest {
+
+    private static final int SLAB_SIZE = 4096;
+
+    @Test
+    public void testValuesCopiedIntoSlabs() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(SLAB_SIZE, SLAB_SIZE * 16, 0);
+        Cache<LocalCacheElement> cache = createCache(allocator, 100);
+        try {
+            // the value arrives as a slice of a larger buffer, as it would from the text protocol decoder
+            ChannelBuffer network = ChannelBuffers.wrappedBuffer("xxxxhello worldxxxx".getBytes());
+            cache.set(element("key", network.slice(4, 11)));
+            network.setByte(4, 'j');
+
+            LocalCacheElement result = cache.get(key("key"))[0];
+            assertEquals(ChannelBuffers.wrappedBuffer("hello world".getBytes()), result.getData());
+            assertEquals(SLAB_SIZE, allocator.getSlabBytes());
+            assertEquals(0, allocator.getUnpooled());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testChunksReusedAfterOverwriteAndEviction() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(SLAB_SIZE, SLAB_SIZE * 16, 0);
+        Cache<LocalCacheElement> cache = createCache(allocator, 10);
+        try {
+            // many times more values than fit in one slab, but no more than 10 alive at once
+            for (int i = 0; i < 2000; i++) {
+                cache.set(element("key" + (i % 20), new byte[100]));
+            }
+            assertEquals(10, cache.getCurrentItems());
+            assertEquals("a single slab was enough", SLAB_SIZE, allocator.getSlabBytes());
+            assertEquals(0, allocator.getUnpooled());
+
+            cache.flush_all();
+            for (int i = 0; i < 10; i++) {
+                cache.set(element("other" + i, new byte[100]));
+            }
+            assertEquals(SLAB_SIZE, allocator.getSlabBytes());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testQuarantinedChunksNotReused() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(SLAB_SIZE, SLAB_SIZE * 16, 60000);
+        Cache<LocalCacheElement> cache = createCache(allocator, 100);
+        try {
+            cache.set(element("key", "first"));
+            LocalCacheElement first = cache.get(key("key"))[0];
+
+            // the old value may still be on its way to a client, so its chunk must not be overwritten
+            for (int i = 0; i < 10; i++) {
+                cache.set(element("key", "second"));
+            }
+            assertEquals(ChannelBuffers.wrappedBuffer("first".getBytes()), first.getData());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testChunksReusedAfterDeleteAndExpiry() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(SLAB_SIZE, SLAB_SIZE * 16, 0);
+        Cache<LocalCacheElement> cache = createCache(allocator, 100);
+        try {
+            // removals of the very element found, by a meta delete and by reclaiming an expired element on a get
+            for (int i = 0; i < 1000; i++) {
+                cache.set(element("key", new byte[100]));
+                assertEquals(Cache.DeleteResponse.DELETED, cache.metaDelete(key("key"), 0, false, -1));
+
+                LocalCacheElement expired = new LocalCacheElement(key("expired"), 0, LocalCacheElement.Now() - 1, 0L);
+                expired.setData(ChannelBuffers.wrappedBuffer(new byte[100]));
+                cache.set(expired);
+                assertNull(cache.get(key("expired"))[0]);
+            }
+            assertEquals(0, cache.getCurrentItems());
+            assertEquals("a single slab was enough", SLAB_SIZE, allocator.getSlabBytes());
+            assertEquals(0, allocator.getUnpooled());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testLargeValuesNotPooled() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(SLAB_SIZE, SLAB_SIZE * 16, 0);
+        Cache<LocalCacheElement> cache = createCache(allocator, 100);
+        try {
+            cache.set(element("big", new byte[SLAB_SIZE + 1]));
+
+            assertEquals(SLAB_SIZE + 1, cache.get(key("big"))[0].size());
+            assertEquals(0, allocator.getSlabBytes());
+            assertEquals(1, allocator.getUnpooled());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static Cache<LocalCacheElement> createCache(SlabAllocator allocator, int maxItems) {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, maxItems, 1024 * 1024, allocator);
+        return new CacheImpl(new SlabCacheStorage(storage, allocator));
+    }
+}
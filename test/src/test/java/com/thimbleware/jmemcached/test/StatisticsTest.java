@@ -0,0 +1,139 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.util.StripedCounter;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class StatisticsTest {
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter(4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.get());
+
+        counter.add(Integer.MAX_VALUE);
+        counter.add(Integer.MAX_VALUE);
+        assertEquals("doesn't overflow at 32 bits", 800000 + 2L * Integer.MAX_VALUE, counter.get());
+    }
+
+    @Test
+    public void testCommandStatistics() throws Exception {
+        Cache<LocalCacheElement> cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 2, 1024 * 1024));
+        try {
+            cache.set(element("a", "1", 0));
+            cache.incr_decr(key("a"), 1, true);
+            cache.incr_decr(key("b"), 1, true);
+            cache.incr_decr(key("b"), 1, false);
+            assertEquals(Cache.StoreResponse.EXISTS, cache.cas(0L, element("a", "2", 0)));
+            assertEquals(Cache.StoreResponse.STORED, cache.cas(cache.get(key("a"))[0].getCasUnique(), element("a", "2", 0)));
+            assertEquals(Cache.StoreResponse.NOT_FOUND, cache.cas(0L, element("b", "2", 0)));
+            cache.delete(key("a"), 0);
+            cache.delete(key("a"), 0);
+
+            // expired items are removed when they're found
+            cache.set(element("old", "value", LocalCacheElement.Now() - 10));
+            assertNull(cache.get(key("old"))[0]);
+            assertEquals(0, cache.getCurrentItems());
+
+            // the map holds two items at most
+            cache.set(element("x", "1", 0));
+            cache.set(element("y", "1", 0));
+            cache.set(element("z", "1", 0));
+            cache.flush_all();
+
+            Map<String, Set<String>> stats = cache.stat(null);
+            assertStat(stats, "incr_hits", 1);
+            assertStat(stats, "incr_misses", 1);
+            assertStat(stats, "decr_hits", 0);
+            assertStat(stats, "decr_misses", 1);
+            assertStat(stats, "cas_hits", 1);
+            assertStat(stats, "cas_badval", 1);
+            assertStat(stats, "cas_misses", 1);
+            assertStat(stats, "delete_hits", 1);
+            assertStat(stats, "delete_misses", 1);
+            assertStat(stats, "expirations", 1);
+            assertStat(stats, "reclaimed_bytes", 5);
+            assertStat(stats, "evictions", 1);
+            assertStat(stats, "cmd_flush", 1);
+            assertStat(stats, "cmd_sets", 5);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testDaemonStatistics() throws Exception {
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            String set = "set key 0 0 5\r\nhello\r\n";
+            out.write(set.getBytes("US-ASCII"));
+            out.flush();
+            assertEquals("STORED", in.readLine());
+
+            out.write("stats\r\n".getBytes("US-ASCII"));
+            out.flush();
+            Map<String, String> stats = new HashMap<String, String>();
+            String line;
+            while (!(line = in.readLine()).equals("END")) {
+                String[] stat = line.split(" ");
+                stats.put(stat[1], stat[2]);
+            }
+
+            assertEquals(String.valueOf(set.length() + "stats\r\n".length()), stats.get("bytes_read"));
+            assertEquals(String.valueOf("STORED\r\n".length()), stats.get("bytes_written"));
+            assertEquals("1", stats.get("curr_connections"));
+            assertEquals("1", stats.get("total_connections"));
+            assertTrue(stats.get("pid").matches("[0-9]+"));
+            assertTrue(stats.get("rusage_user").matches("[0-9]+\\.[0-9]{6}"));
+            assertTrue(stats.get("rusage_system").matches("[0-9]+\\.[0-9]{6}"));
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+
+    private static void assertStat(Map<String, Set<String>> stats, String name, long value) {
+        assertEquals(name, String.valueOf(value), stats.get(name).iterator().next());
+    }
+}
@@ -0,0 +1,53 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * The keys and elements the tests put in caches and storages.
+ */
+public final class TestElements {
+
+    private TestElements() {
+    }
+
+    public static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes()));
+    }
+
+    public static LocalCacheElement element(String key, String value) {
+        return element(key, value, 0);
+    }
+
+    public static LocalCacheElement element(String key, String value, long expire) {
+        return element(key, value.getBytes(), expire);
+    }
+
+    public static LocalCacheElement element(String key, byte[] value) {
+        return element(key, value, 0);
+    }
+
+    public static LocalCacheElement element(String key, byte[] value, long expire) {
+        return element(key, ChannelBuffers.wrappedBuffer(value), expire);
+    }
+
+    public static LocalCacheElement element(String key, ChannelBuffer value) {
+        return element(key, value, 0);
+    }
+
+    public static LocalCacheElement element(String key, ChannelBuffer value, long expire) {
+        LocalCacheElement element = new LocalCacheElement(key(key), 0, expire, 0L);
+        element.setData(value);
+        return element;
+    }
+
+    /**
+     * @return the value of the key in the cache, which must hold it
+     */
+    public static String value(Cache<LocalCacheElement> cache, String key) {
+        return cache.get(key(key))[0].getData().toString("US-ASCII");
+    }
+}
@@ -0,0 +1,153 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.Op;
+import com.thimbleware.jmemcached.protocol.SessionStatus;
+import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
+import com.thimbleware.jmemcached.protocol.text.MemcachedCommandDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class TextDecoderTest {
+
+    private static final Charset USASCII = Charset.forName("US-ASCII");
+
+    private static DecoderEmbedder<CommandMessage> decoder() {
+        return new DecoderEmbedder<CommandMessage>(new MemcachedCommandDecoder(new SessionStatus().ready()));
+    }
+
+    private static ChannelBuffer buffer(String s) {
+        return ChannelBuffers.copiedBuffer(s, USASCII);
+    }
+
+    private static String key(CommandMessage command, int index) {
+        return ((Key) command.keys.get(index)).bytes.toString(USASCII);
+    }
+
+    @Test
+    public void testOps() {
+        for (Op op : Op.values()) {
+            assertEquals(op, Op.FindOp(buffer(op.toString().toLowerCase())));
+        }
+        assertNull(Op.FindOp(buffer("gate")));
+        assertNull(Op.FindOp(buffer("sets")));
+        assertNull(Op.FindOp(buffer("")));
+    }
+
+    @Test
+    public void testLines() {
+        DecoderEmbedder<CommandMessage> decoder = decoder();
+        decoder.offer(buffer("get  a   bb\r\nset key 1 0 5 noreply\r\nhello\r\nincr key 10 noreply\r\ndelete key 0\r\n"));
+
+        CommandMessage get = decoder.poll();
+        assertEquals(Op.GET, get.op);
+        assertEquals(2, get.keys.size());
+        assertEquals("bb", key(get, 1));
+
+        CommandMessage set = decoder.poll();
+        assertEquals(Op.SET, set.op);
+        assertTrue(set.noreply);
+        assertEquals(1, set.element.getFlags());
+        assertEquals("key", set.element.getKey().bytes.toString(USASCII));
+        assertEquals("hello", set.element.getData().toString(USASCII));
+
+        CommandMessage incr = decoder.poll();
+        assertEquals(Op.INCR, incr.op);
+        assertEquals(10, incr.incrAmount);
+        assertTrue(incr.noreply);
+
+        CommandMessage delete = decoder.poll();
+        assertEquals(Op.DELETE, delete.op);
+        assertFalse(delete.noreply);
+        assertNull(decoder.poll());
+    }
+
+    @Test
+    public void testTouch() {
+        DecoderEmbedder<CommandMessage> decoder = decoder();
+        decoder.offer(buffer("touch key 0 noreply\r\ngats 1234567890 a b\r\n"));
+
+        CommandMessage touch = decoder.poll();
+        assertEquals(Op.TOUCH, touch.op);
+        assertEquals("key", key(touch, 0));
+        assertEquals(0, touch.touchExpiry);
+        assertTrue(touch.noreply);
+
+        CommandMessage gats = decoder.poll();
+        assertEquals(Op.GATS, gats.op);
+        assertEquals(1234567890, gats.touchExpiry);
+        assertEquals(2, gats.keys.size());
+        assertEquals("b", key(gats, 1));
+        assertNull(decoder.poll());
+    }
+
+    @Test
+    public void testMeta() {
+        DecoderEmbedder<CommandMessage> decoder = decoder();
+        decoder.offer(buffer("mg key s v O12 k q R30 h\r\nms a2V5 2 b C99 MA T0\r\nhi\r\nma key MD D5 N0 J7\r\n"));
+
+        CommandMessage mg = decoder.poll();
+        assertEquals(Op.MG, mg.op);
+        assertEquals("key", key(mg, 0));
+        assertEquals("sOk", mg.meta.returned);
+        assertTrue(mg.meta.value);
+        assertTrue(mg.meta.quiet);
+        assertEquals("12", mg.meta.opaque.toString(USASCII));
+        assertEquals(30, mg.meta.recache);
+        assertEquals(-1, mg.meta.ttl);
+
+        CommandMessage ms = decoder.poll();
+        assertEquals(Op.MS, ms.op);
+        assertEquals("key", ms.element.getKey().bytes.toString(USASCII));
+        assertEquals("hi", ms.element.getData().toString(USASCII));
+        assertEquals(99, ms.meta.compareCas);
+        assertEquals('A', ms.meta.mode);
+        assertEquals(0, ms.meta.ttl);
+
+        CommandMessage ma = decoder.poll();
+        assertEquals(Op.MA, ma.op);
+        assertEquals('D', ma.meta.mode);
+        assertEquals(5, ma.meta.delta);
+        assertEquals(7, ma.meta.initial);
+        assertEquals("7", ma.element.getData().toString(USASCII));
+        assertNull(decoder.poll());
+
+        try {
+            decoder.offer(buffer("mg key Y\r\n"));
+            fail("an unknown flag should be rejected");
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof MalformedCommandException);
+        }
+        assertNull(decoder.poll());
+    }
+
+    @Test
+    public void testFragments() {
+        DecoderEmbedder<CommandMessage> decoder = decoder();
+        String commands = "gets key1 key2\r\nappend key 0 0 3\r\nabc\r\n";
+        for (int i = 0; i < commands.length(); i++) {
+            decoder.offer(buffer(commands.substring(i, i + 1)));
+        }
+
+        CommandMessage gets = decoder.poll();
+        assertEquals(Op.GETS, gets.op);
+        assertEquals("key1", key(gets, 0));
+        assertEquals("key2", key(gets, 1));
+
+        CommandMessage append = decoder.poll();
+        assertEquals(Op.APPEND, append.op);
+        assertEquals("key", append.element.getKey().bytes.toString(USASCII));
+        assertEquals("abc", append.element.getData().toString(USASCII));
+        assertNull(decoder.poll());
+    }
+}
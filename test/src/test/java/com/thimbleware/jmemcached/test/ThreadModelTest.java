@@ -0,0 +1,226 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ThreadModelTest {
+
+    @Test
+    public void testConfiguredThreads() throws Exception {
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.setWorkerThreads(2);
+        daemon.setWorkerThreadFactory(new NamedThreadFactory("test-worker"));
+        daemon.setSendBufferSize(16 * 1024);
+        daemon.setReceiveBufferSize(16 * 1024);
+        daemon.setBacklog(16);
+        daemon.setWriteBufferWaterMarks(8 * 1024, 16 * 1024);
+        daemon.setCommandExecutor(new OrderedMemoryAwareThreadPoolExecutor(4, 0, 0, 30, TimeUnit.SECONDS, new NamedThreadFactory("test-command")));
+
+        // as Main does, so that the worker threads keep their names
+        ThreadNameDeterminer determiner = ThreadRenamingRunnable.getThreadNameDeterminer();
+        ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
+        daemon.start();
+
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            // pipelined commands are answered in order
+            StringBuilder commands = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                commands.append("set key").append(i).append(" 0 0 ").append(String.valueOf(i).length()).append("\r\n").append(i).append("\r\n");
+                commands.append("get key").append(i).append("\r\n");
+            }
+            out.write(commands.toString().getBytes("US-ASCII"));
+            out.flush();
+            for (int i = 0; i < 100; i++) {
+                assertEquals("STORED", in.readLine());
+                assertEquals("VALUE key" + i + " 0 " + String.valueOf(i).length(), in.readLine());
+                assertEquals(String.valueOf(i), in.readLine());
+                assertEquals("END", in.readLine());
+            }
+
+            Set<String> names = new HashSet<String>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                names.add(thread.getName());
+            }
+            assertTrue(names.contains("test-worker-1"));
+            assertTrue(names.contains("test-command-1"));
+        } finally {
+            socket.close();
+            daemon.stop();
+            ThreadRenamingRunnable.setThreadNameDeterminer(determiner);
+        }
+    }
+
+    @Test
+    public void testOffloadThreads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Cache<LocalCacheElement> cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024));
+        // a cache whose gets of "slow" block, as if the storage were stuck on a page fault
+        Cache<LocalCacheElement> slowCache = (Cache<LocalCacheElement>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Cache.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("get") && ((Key[]) args[0])[0].bytes.toString(Charset.forName("US-ASCII")).equals("slow")) {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                try {
+                    return method.invoke(cache, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(slowCache);
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        // both connections share the one I/O thread
+        daemon.setWorkerThreads(1);
+        daemon.setOffloadThreads(2);
+        daemon.start();
+
+        Socket blocked = new Socket("localhost", port);
+        Socket other = new Socket("localhost", port);
+        try {
+            OutputStream blockedOut = blocked.getOutputStream();
+            BufferedReader blockedIn = new BufferedReader(new InputStreamReader(blocked.getInputStream(), "US-ASCII"));
+            blockedOut.write("get slow\r\nget slow\r\n".getBytes("US-ASCII"));
+            blockedOut.flush();
+
+            // the other connection is served meanwhile, even when its commands arrive a byte at a time
+            other.setTcpNoDelay(true);
+            other.setSoTimeout(5000);
+            OutputStream out = other.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream(), "US-ASCII"));
+            for (byte b : "set key 0 0 5\r\nhello\r\n".getBytes("US-ASCII")) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1);
+            }
+            assertEquals("STORED", in.readLine());
+            out.write("get key\r\n".getBytes("US-ASCII"));
+            out.flush();
+            assertEquals("VALUE key 0 5", in.readLine());
+            assertEquals("hello", in.readLine());
+            assertEquals("END", in.readLine());
+            assertFalse(blockedIn.ready());
+
+            release.countDown();
+            assertEquals("END", blockedIn.readLine());
+            assertEquals("END", blockedIn.readLine());
+        } finally {
+            blocked.close();
+            other.close();
+            daemon.stop();
+        }
+    }
+
+    @Test
+    public void testBatchedWrites() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        // counts what goes in and out of the socket, at the head of each pipeline
+        final ChannelHandler counter = new SimpleChannelHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                reads.incrementAndGet();
+                super.messageReceived(ctx, e);
+            }
+
+            @Override
+            public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                writes.incrementAndGet();
+                super.writeRequested(ctx, e);
+            }
+        };
+
+        int port = AvailablePortFinder.getNextAvailable();
+        MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>() {
+            @Override
+            protected ChannelPipelineFactory createMemcachedPipelineFactory(Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
+                final ChannelPipelineFactory factory = super.createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+                return new ChannelPipelineFactory() {
+                    public ChannelPipeline getPipeline() throws Exception {
+                        ChannelPipeline pipeline = factory.getPipeline();
+                        pipeline.addFirst("counter", counter);
+                        return pipeline;
+                    }
+                };
+            }
+        };
+        daemon.setCache(new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, 1000, 1024 * 1024)));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setVerbose(false);
+        daemon.start();
+
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            StringBuilder commands = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                commands.append("set key").append(i).append(" 0 0 1\r\nx\r\n");
+                commands.append("get key").append(i).append(" missing\r\n");
+            }
+            commands.append("stats\r\n");
+            out.write(commands.toString().getBytes("US-ASCII"));
+            out.flush();
+            for (int i = 0; i < 100; i++) {
+                assertEquals("STORED", in.readLine());
+                assertEquals("VALUE key" + i + " 0 1", in.readLine());
+                assertEquals("x", in.readLine());
+                assertEquals("END", in.readLine());
+            }
+            String line;
+            while (!(line = in.readLine()).equals("END")) {
+                assertTrue(line.startsWith("STAT "));
+            }
+
+            // the responses to the commands of each read go out in one write
+            assertTrue(writes.get() + " writes for " + reads.get() + " reads", writes.get() <= reads.get());
+        } finally {
+            socket.close();
+            daemon.stop();
+        }
+    }
+}
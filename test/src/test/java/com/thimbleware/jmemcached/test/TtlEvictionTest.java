@@ -0,0 +1,92 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.thimbleware.jmemcached.test.TestElements.*;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class TtlEvictionTest {
+
+    private static final int MAX_SIZE = 8;
+
+    @Test
+    public void testShortLivedItemEvictedFirst() throws IOException {
+        CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.TTL_AWARE, MAX_SIZE, 1024 * 1024);
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            long now = LocalCacheElement.Now();
+
+            // the oldest entry never expires, the next one is gone in a minute
+            cache.set(element("forever", new byte[32], 0));
+            cache.set(element("shortlived", new byte[32], now + 60));
+            for (int i = 0; i < MAX_SIZE - 2; i++) {
+                cache.set(element("item" + i, new byte[32], 0));
+            }
+
+            cache.set(element("new", new byte[32], 0));
+
+            assertEquals(MAX_SIZE, cache.getCurrentItems());
+            assertNull("short lived item evicted", cache.get(key("shortlived"))[0]);
+            assertNotNull("older immortal item kept", cache.get(key("forever"))[0]);
+            assertNotNull(cache.get(key("new"))[0]);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testExpiredItemEvictedFirst() throws IOException {
+        CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.TTL_AWARE, MAX_SIZE, 1024 * 1024);
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            long now = LocalCacheElement.Now();
+
+            cache.set(element("forever", new byte[32], 0));
+            cache.set(element("soon", new byte[32], now + 60));
+            cache.set(element("expired", new byte[32], now - 10));
+            for (int i = 0; i < MAX_SIZE - 3; i++) {
+                cache.set(element("item" + i, new byte[32], 0));
+            }
+
+            cache.set(element("new", new byte[32], 0));
+
+            assertEquals(MAX_SIZE, cache.getCurrentItems());
+            assertNotNull("item with time left kept", storage.get(key("soon")));
+            assertNull("expired item evicted", storage.get(key("expired")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testBlockStorageEnforcesItemLimit() throws IOException {
+        CacheStorage<Key, LocalCacheElement> storage = new BlockStorageCacheStorage(2, 1024 * 1024, 8, 1024 * 1024, MAX_SIZE, ByteBufferBlockStore.getFactory());
+        Cache<LocalCacheElement> cache = new CacheImpl(storage);
+        try {
+            for (int i = 0; i < MAX_SIZE * 4; i++) {
+                cache.set(element("item" + i, new byte[32], 0));
+                assertNotNull("latest item stored", cache.get(key("item" + i))[0]);
+                assertTrue("item limit respected", cache.getCurrentItems() <= MAX_SIZE);
+            }
+            assertEquals(MAX_SIZE, cache.getCurrentItems());
+
+            // deleting everything that's left gives back all of the blocks
+            for (int i = 0; i < MAX_SIZE * 4; i++) {
+                cache.delete(key("item" + i), 0);
+            }
+            assertEquals(0, cache.getCurrentItems());
+            assertEquals(0, cache.getCurrentBytes());
+        } finally {
+            cache.close();
+        }
+    }
+}